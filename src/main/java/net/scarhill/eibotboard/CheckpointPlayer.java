@@ -0,0 +1,136 @@
+// Copyright (c) 2011 James Ancona. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package net.scarhill.eibotboard;
+
+import java.io.File;
+import java.io.IOException;
+
+import net.scarhill.eibotboard.UbwException.ErrorCode;
+
+/**
+ * Plays a {@link Plot} while keeping a {@link PlotJournal} of the nodes the
+ * board has finished, so that an interrupted plot can be resumed rather than
+ * started again.
+ * <p>
+ * Every <code>interval</code> moves the player marks its place on the board
+ * with {@link EbbCommand#setNodeCount(long)}, since the node counter doesn't
+ * count moves by itself, then reads the mark back with
+ * {@link EbbCommand#queryNodeCount()} once the board has got there and writes
+ * a checkpoint. When {@link #play(EbbCommand)} finds checkpoints in the
+ * journal, it resumes at the first unfinished node. If the board still has a
+ * node count between the last checkpoint and the end of the plot (the host was
+ * interrupted after marking a node but before writing it down, and the board
+ * wasn't reset) that is used; otherwise the plot resumes from the last
+ * checkpoint, with the carriage expected to be where it was then. The motor, servo, layer, node count and pen settings in force at that
+ * point are sent, one command after another, before the remaining commands.
+ */
+public class CheckpointPlayer {
+	private final Plot plot;
+	private final File journalFile;
+	private int interval = 100;
+	private long resumedFrom = -1;
+
+	public CheckpointPlayer(Plot plot, File journalFile) {
+		this.plot = plot;
+		this.journalFile = journalFile;
+	}
+
+	/**
+	 * @param nodes how many moves to play between checkpoints
+	 */
+	public void setInterval(int nodes) {
+		if (nodes < 1)
+			throw new IllegalArgumentException("Value '" + nodes + "' must be at least 1.");
+		this.interval = nodes;
+	}
+
+	/**
+	 * @return the node the last call to {@link #play(EbbCommand)} resumed after, or -1 if it started from the beginning
+	 */
+	public long getResumedFrom() {
+		return resumedFrom;
+	}
+
+	/**
+	 * Play the plot, or the rest of it if the journal shows that it was
+	 * interrupted. The journal is deleted once the plot has finished; if
+	 * playing fails, it is left for the next attempt.
+	 */
+	public void play(EbbCommand board) {
+		PlotJournal journal;
+		try {
+			journal = new PlotJournal(journalFile, plot);
+		} catch (IOException e) {
+			throw new UbwException("Error opening journal " + journalFile, e, ErrorCode.COMM_ERROR);
+		}
+		try {
+			int offset = 0;
+			long node = journal.getLastNode();
+			resumedFrom = node;
+			if (node < 0) {
+				board.setNodeCount(0);
+			} else {
+				long reported = board.queryNodeCount();
+				if (reported >= node && reported <= plot.getNodeCount())
+					node = reported;
+				resumedFrom = node;
+				offset = restore(board, node);
+			}
+			int end = plot.size();
+			long sent = node < 0 ? 0 : node;
+			while (offset < end) {
+				if (plot.opcode(offset) == Plot.SM && ++sent % interval == 0) {
+					offset = plot.play(board, offset);
+					board.setNodeCount(sent);
+					journal.checkpoint(board.queryNodeCount());
+				} else {
+					offset = plot.play(board, offset);
+				}
+			}
+			journal.delete();
+		} catch (IOException e) {
+			throw new UbwException("Error writing journal " + journalFile, e, ErrorCode.COMM_ERROR);
+		} finally {
+			try {
+				journal.close();
+			} catch (IOException e) {}
+		}
+	}
+
+	/**
+	 * Bring the board into the state it would be in after <code>node</code>
+	 * moves of the plot.
+	 *
+	 * @return the offset of the first command still to be played
+	 */
+	private int restore(EbbCommand board, long node) {
+		PlotState state = new PlotState();
+		int offset = 0;
+		int end = plot.size();
+		long moves = 0;
+		while (offset < end && moves < node) {
+			if (plot.opcode(offset) == Plot.SM)
+				moves++;
+			offset = plot.play(state, offset);
+		}
+		// settings that come after the last finished move but before the next one
+		while (offset < end && plot.opcode(offset) != Plot.SM)
+			offset = plot.play(state, offset);
+
+		state.restore(board);
+		board.setNodeCount(node);
+		board.setPenState(state.queryPen());
+		return offset;
+	}
+}
@@ -0,0 +1,263 @@
+// Copyright (c) 2011 James Ancona. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package net.scarhill.eibotboard;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+import net.scarhill.eibotboard.UbwException.ErrorCode;
+
+/**
+ * Lets any number of threads send commands to one board at once. Each
+ * command is added to a lock-free linked queue by the thread that sends it,
+ * already encoded. Whichever sender finds no other thread writing becomes the
+ * writer and writes everything queued so far in one flush, so under load
+ * commands go out in batches and no thread waits for another's round trip to
+ * send its own. The board answers commands in the order they were written, so
+ * the reader hands each reply line to the oldest command that hasn't had all
+ * of its lines yet, and wakes whoever is waiting for it.
+ * <p>
+ * Nodes leave the queue as they are answered: the reader follows the writer
+ * along the same list.
+ * <p>
+ * If the queue has a <code>lost</code> handler, a failed write suspends it
+ * instead of failing the commands, and the handler is run. Commands can still
+ * be queued while it is suspended. {@link #resume(OutputStream)} then sends
+ * again, on the new stream, every command that hadn't been fully answered.
+ */
+final class CommandQueue {
+	private final Runnable lost;
+	/** only changed by the writer */
+	private OutputStream out;
+	/** the last command queued */
+	private final AtomicReference<Request> tail;
+	private final AtomicBoolean writing = new AtomicBoolean();
+	/** the last command written, only changed by the writer */
+	private volatile Request written;
+	/** the last command fully answered, only changed by the reader */
+	private volatile Request answered;
+	private volatile boolean closed;
+	private volatile boolean suspended;
+	private volatile IOException failure;
+
+	CommandQueue(OutputStream out) {
+		this(out, null);
+	}
+
+	/**
+	 * @param lost run when a write fails, or <code>null</code> to fail every command instead
+	 */
+	CommandQueue(OutputStream out, Runnable lost) {
+		this.out = out;
+		this.lost = lost;
+		Request stub = new Request(null, 0, false);
+		tail = new AtomicReference<Request>(stub);
+		written = stub;
+		answered = stub;
+	}
+
+	/**
+	 * Queue a command and see that it is written.
+	 *
+	 * @param command the command, ending with a carriage return
+	 * @param replies the number of lines the board answers it with
+	 * @param packetReply <code>true</code> if the answer looks like a timer packet, starting with I or A
+	 */
+	Request submit(byte[] command, int replies, boolean packetReply) {
+		Request r = new Request(command, replies, packetReply);
+		Request previous = tail.getAndSet(r);
+		previous.next = r;
+		drain();
+		return r;
+	}
+
+	/**
+	 * Write everything queued, unless another thread is already doing it. A
+	 * writer looks again after letting go, so a command queued while it was
+	 * finishing isn't left behind. Once the queue has failed or been closed
+	 * nothing more is written, and every command fails.
+	 */
+	private void drain() {
+		while (!suspended && written.next != null && writing.compareAndSet(false, true)) {
+			Request r;
+			boolean suspend = false;
+			try {
+				if (failure == null && !closed && !suspended) {
+					while ((r = written.next) != null) {
+						r.sent = true;
+						out.write(r.command);
+						written = r;
+					}
+					out.flush();
+				}
+			} catch (IOException e) {
+				if (lost != null && !closed)
+					suspend = suspended = true;
+				else
+					failure = e;
+			} finally {
+				if (failure != null || closed) {
+					while ((r = written.next) != null)
+						written = r;
+					wakeAll();
+				}
+				writing.set(false);
+			}
+			if (suspend)
+				lost.run();
+		}
+	}
+
+	/**
+	 * Stop writing until {@link #resume(OutputStream)}, because the board has
+	 * gone and is being looked for.
+	 */
+	void suspend() {
+		suspended = true;
+	}
+
+	boolean isSuspended() {
+		return suspended;
+	}
+
+	/**
+	 * Carry on writing to <code>out</code>, starting with every command that
+	 * hadn't been fully answered. Only call this while nothing is reading
+	 * replies. A command that reached the board just before it went may be
+	 * carried out twice.
+	 */
+	void resume(OutputStream out) {
+		while (!writing.compareAndSet(false, true))
+			Thread.yield();
+		try {
+			Request r = answered;
+			Request last = written;
+			while (r != last) {
+				r = r.next;
+				r.sent = false;
+				r.received = 0;
+			}
+			this.out = out;
+			written = answered;
+			suspended = false;
+		} finally {
+			writing.set(false);
+		}
+		drain();
+	}
+
+	/**
+	 * @return <code>true</code> if the oldest unanswered command is answered with something like a timer packet
+	 */
+	boolean expectsPacket() {
+		Request r = answered.next;
+		return r != null && r.sent && r.packetReply;
+	}
+
+	/**
+	 * Hand a line from the board to the command it answers. Lines that answer
+	 * nothing are dropped.
+	 */
+	void received(String line) {
+		Request r = answered.next;
+		// a timer packet can come before the command it looks like is sent
+		if (r == null || !r.sent)
+			return;
+		r.lines[r.received] = line;
+		r.received++;
+		if (r.received == r.lines.length || line.startsWith("!")) {
+			r.done = true;
+			// r has been sent, so the writer doesn't need the old link
+			answered.next = null;
+			answered = r;
+		}
+		LockSupport.unpark(r.waiter);
+	}
+
+	/**
+	 * The board has gone: fail every command still waiting, and any sent later.
+	 */
+	void close() {
+		closed = true;
+		suspended = false;
+		wakeAll();
+		drain();
+	}
+
+	private void wakeAll() {
+		for (Request r = answered.next; r != null; r = r.next)
+			LockSupport.unpark(r.waiter);
+	}
+
+	/**
+	 * A queued command and the lines it has been answered with so far.
+	 */
+	final class Request {
+		private final byte[] command;
+		private final String[] lines;
+		private final boolean packetReply;
+		private volatile Request next;
+		private volatile boolean sent;
+		private volatile int received;
+		private volatile boolean done;
+		/** the thread reading the answer */
+		private volatile Thread waiter;
+		private int read;
+
+		private Request(byte[] command, int replies, boolean packetReply) {
+			this.command = command;
+			this.lines = new String[replies];
+			this.packetReply = packetReply;
+		}
+
+		/**
+		 * Wait for the next line of the answer. An error line is thrown as a
+		 * {@link UbwException}.
+		 */
+		String nextLine() {
+			while (read == received) {
+				boolean finished = done;
+				boolean gone = closed;
+				if (read < received)
+					// answered while we looked
+					break;
+				if (finished)
+					throw new UbwException("No more responses to '" + description() + "'", ErrorCode.RESPONSE_ERROR);
+				if (failure != null)
+					throw new UbwException("Exception writing command '" + description() + "' to device", failure, ErrorCode.COMM_ERROR);
+				if (gone)
+					throw new UbwException("Connection to device closed", ErrorCode.COMM_ERROR);
+				waiter = Thread.currentThread();
+				if (read == received && !done && !closed && failure == null)
+					LockSupport.park(this);
+				if (Thread.interrupted())
+					throw new UbwException("Exception receiving data", new InterruptedException(), ErrorCode.COMM_ERROR);
+			}
+			String line = lines[read++];
+			if (line.startsWith("!") && line.length() >= 2)
+				throw new UbwException("Error: " + line.substring(2), ErrorCode.fromStringValue(line.substring(0, 2)));
+			return line;
+		}
+
+		private String description() {
+			int n = command.length;
+			while (n > 0 && command[n - 1] == 13)
+				n--;
+			return new String(command, 0, Math.min(n, 64), Ubw.ASCII);
+		}
+	}
+}
@@ -0,0 +1,385 @@
+// Copyright (c) 2011 James Ancona. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package net.scarhill.eibotboard;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import net.scarhill.eibotboard.UbwException.ErrorCode;
+
+/**
+ * An {@link EbbCommand} for a board served by a remote {@link DeviceServer}.
+ * <p>
+ * Commands that don't return anything are pipelined: they are sent without
+ * waiting for the reply, with at most <code>window</code> of them outstanding.
+ * If one of them fails, the exception is thrown from the next call. Queries wait
+ * for their own reply, which the server sends only after every earlier command
+ * in the session has been executed. Call {@link #sync()} to wait for everything
+ * sent so far.
+ */
+public class DeviceClient implements EbbCommand, Closeable {
+	private static final Charset ASCII = Charset.forName("US-ASCII");
+	public static final int DEFAULT_WINDOW = 64;
+
+	private final Socket socket;
+	private final OutputStream out;
+	private final BufferedReader in;
+	private final int windowSize;
+	private final Semaphore window;
+	private final Map<Integer, Call> calls = new ConcurrentHashMap<Integer, Call>();
+	private final AtomicInteger nextSeq = new AtomicInteger(1);
+	private final AtomicReference<RuntimeException> failure = new AtomicReference<RuntimeException>();
+	private volatile TimerListener timerListener;
+	private volatile boolean closed;
+	private final int session;
+
+	public DeviceClient(String host, int port, String board) {
+		this(host, port, board, DEFAULT_WINDOW);
+	}
+	public DeviceClient(String host, int port, String board, int window) {
+		if (window < 1)
+			throw new IllegalArgumentException("Window must be at least 1.");
+		this.windowSize = window;
+		this.window = new Semaphore(window);
+		try {
+			socket = new Socket(host, port);
+			socket.setTcpNoDelay(true);
+			out = new BufferedOutputStream(socket.getOutputStream());
+			in = new BufferedReader(new InputStreamReader(socket.getInputStream(), ASCII));
+		} catch (IOException e) {
+			throw new UbwException("Error connecting to " + host + ":" + port, e, ErrorCode.COMM_ERROR);
+		}
+		Thread reader = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				readReplies();
+			}
+		}, "DeviceClient reader");
+		reader.setDaemon(true);
+		reader.start();
+		try {
+			session = Integer.parseInt(send(0, DeviceProtocol.OPEN + "," + board, false).await()[0]);
+		} catch (RuntimeException e) {
+			// closing the socket ends the reader too
+			closed = true;
+			try {
+				socket.close();
+			} catch (IOException e2) {}
+			throw e;
+		}
+	}
+
+	/**
+	 * Wait until every command sent so far has been executed by the board.
+	 *
+	 * @throws UbwException if any of them failed
+	 */
+	public void sync() {
+		window.acquireUninterruptibly(windowSize);
+		window.release(windowSize);
+		checkFailure();
+	}
+
+	@Override
+	public void close() {
+		if (closed)
+			return;
+		try {
+			sync();
+			send(session, DeviceProtocol.CLOSE, false).await();
+		} finally {
+			closed = true;
+			try {
+				socket.close();
+			} catch (IOException e) {}
+		}
+	}
+
+	@Override
+	public void configure(int dirA, int dirB, int dirC, int analogEnableCount) {
+		pipeline("C," + dirA + "," + dirB + "," + dirC + "," + analogEnableCount);
+	}
+	@Override
+	public void outputState(int portA, int portB, int portC) {
+		pipeline("O," + portA + "," + portB + "," + portC);
+	}
+	@Override
+	public int[] inputState() {
+		return DeviceProtocol.intValues(call("I"), 0);
+	}
+	@Override
+	public String version() {
+		String[] r = call("V");
+		StringBuilder version = new StringBuilder(r.length > 0 ? r[0] : "");
+		for (int i = 1; i < r.length; i++)
+			version.append(',').append(r[i]);
+		return version.toString();
+	}
+	@Override
+	public void reset() {
+		pipeline("R");
+	}
+	@Override
+	public void timerReadInputs(int timeBetweenPacketsInMilliseconds, TimerMode mode, TimerListener listener) {
+		timerListener = timeBetweenPacketsInMilliseconds > 0 ? listener : null;
+		call("T," + timeBetweenPacketsInMilliseconds + "," + mode.intValue());
+	}
+	@Override
+	public int[] sampleAnalogInputs() {
+		return DeviceProtocol.intValues(call("A"), 0);
+	}
+	@Override
+	public int memoryRead(int address) {
+		return Integer.parseInt(call("MR," + address)[0]);
+	}
+	@Override
+	public void memoryWrite(int address, int value) {
+		pipeline("MW," + address + "," + value);
+	}
+	@Override
+	public void pinDirection(Port port, int pin, PinDirection direction) {
+		pipeline("PD," + port + "," + pin + "," + direction.intValue());
+	}
+	@Override
+	public boolean pinInput(Port port, int pin) {
+		return call("PI," + port + "," + pin)[0].equals("1");
+	}
+	@Override
+	public void pinOutput(Port port, int pin, boolean value) {
+		pipeline("PO," + port + "," + pin + "," + (value ? "1" : "0"));
+	}
+	@Override
+	public void configure(int parameter, int value) {
+		pipeline("CU," + parameter + "," + value);
+	}
+	@Override
+	public void rcServoOutput(Port port, int pin, int value) {
+		pipeline("RC," + port + "," + pin + "," + value);
+	}
+	@Override
+	public void bulkConfigure(int init, int waitMask, int waitDelay, int strobeMask, int strobeDelay) {
+		pipeline("BC," + init + "," + waitMask + "," + waitDelay + "," + strobeMask + "," + strobeDelay);
+	}
+	@Override
+	public void bulkOutput(byte[] byteStream) {
+		pipeline("BO," + Ubw.toHex(byteStream));
+	}
+	@Override
+	public void bulkStream(byte[] byteStream) {
+		pipeline("BS," + Ubw.toHex(byteStream));
+	}
+
+	@Override
+	public int[] queryCurrent() {
+		return DeviceProtocol.intValues(call("QC"), 0);
+	}
+	@Override
+	public void nodeCountIncrement() {
+		pipeline("NI");
+	}
+	@Override
+	public void nodeCountDecrement() {
+		pipeline("ND");
+	}
+	@Override
+	public void bootLoad() {
+		pipeline("BL");
+	}
+	@Override
+	public void setNodeCount(long value) {
+		pipeline("SN," + value);
+	}
+	@Override
+	public void setLayer(int layer) {
+		pipeline("SL," + layer);
+	}
+	@Override
+	public int queryLayer() {
+		return Integer.parseInt(call("QL")[0]);
+	}
+	@Override
+	public long queryNodeCount() {
+		return Long.parseLong(call("QN")[0]);
+	}
+	@Override
+	public boolean queryButton() {
+		return call("QB")[0].equals("1");
+	}
+	@Override
+	public boolean queryPen() {
+		return call("QP")[0].equals("1");
+	}
+	@Override
+	public void togglePen() {
+		pipeline("TP");
+	}
+	@Override
+	public void togglePen(int duration) {
+		pipeline("TP," + duration);
+	}
+	@Override
+	public void stepperMotorMove(int duration, int axis1, int axis2) {
+		pipeline("SM," + duration + "," + axis1 + "," + axis2);
+	}
+	@Override
+	public void setPenState(boolean state) {
+		pipeline("SP," + (state ? "1" : "0"));
+	}
+	@Override
+	public void setPenState(boolean state, int duration) {
+		pipeline("SP," + (state ? "1," : "0,") + duration);
+	}
+	@Override
+	public void enableMotor(int motor1, int motor2) {
+		pipeline("EM," + motor1 + "," + motor2);
+	}
+	@Override
+	public void servoModeConfigure(int value1, int value2) {
+		pipeline("SC," + value1 + "," + value2);
+	}
+	@Override
+	public void rcServoOutput(int channel, int duration, int output_pin, int rate) {
+		pipeline("S2," + channel + "," + duration + "," + output_pin + "," + rate);
+	}
+
+	private void pipeline(String command) {
+		checkFailure();
+		window.acquireUninterruptibly();
+		send(session, command, true);
+	}
+
+	private String[] call(String command) {
+		checkFailure();
+		return send(session, command, false).await();
+	}
+
+	private void checkFailure() {
+		RuntimeException e = failure.getAndSet(null);
+		if (e != null)
+			throw e;
+		if (closed)
+			throw new UbwException("Client is closed", ErrorCode.COMM_ERROR);
+	}
+
+	private Call send(int sessionId, String command, boolean pipelined) {
+		int seq = nextSeq.getAndIncrement();
+		Call call = new Call(pipelined);
+		calls.put(seq, call);
+		// the reader may have failed the waiting calls already
+		if (closed && calls.remove(seq) != null) {
+			if (pipelined)
+				window.release();
+			throw new UbwException("Client is closed", ErrorCode.COMM_ERROR);
+		}
+		try {
+			synchronized (out) {
+				out.write((seq + "," + sessionId + "," + command + "\n").getBytes(ASCII));
+				out.flush();
+			}
+		} catch (IOException e) {
+			calls.remove(seq);
+			if (pipelined)
+				window.release();
+			throw new UbwException("Exception sending command '" + command + "'", e, ErrorCode.COMM_ERROR);
+		}
+		return call;
+	}
+
+	private void readReplies() {
+		try {
+			String line;
+			while ((line = in.readLine()) != null) {
+				String[] f = line.split(",");
+				int seq = Integer.parseInt(f[0]);
+				if (seq == DeviceProtocol.EVENT_SEQ) {
+					TimerListener listener = timerListener;
+					if (listener != null)
+						listener.timerResponse(TimerMode.fromChar(f[2].charAt(0)), DeviceProtocol.intValues(f, 3));
+					continue;
+				}
+				Call call = calls.remove(seq);
+				if (call == null)
+					continue;
+				RuntimeException error = f.length > 1 && f[1].equals(DeviceProtocol.OK) ? null : DeviceProtocol.toException(f);
+				if (call.pipelined) {
+					if (error != null)
+						failure.compareAndSet(null, error);
+					window.release();
+				} else {
+					String[] values = new String[Math.max(0, f.length - 2)];
+					System.arraycopy(f, 2, values, 0, values.length);
+					call.complete(values, error);
+				}
+			}
+		} catch (IOException e) {
+			if (!closed)
+				failure.compareAndSet(null, new UbwException("Exception receiving data", e, ErrorCode.COMM_ERROR));
+		} catch (RuntimeException e) {
+			// a malformed reply or a timer listener that threw; nothing after it can be trusted
+			failure.compareAndSet(null, new UbwException("Exception processing reply", e, ErrorCode.RESPONSE_ERROR));
+			try {
+				socket.close();
+			} catch (IOException e2) {}
+		}
+		closed = true;
+		UbwException lost = new UbwException("Connection to server closed", failure.get(), ErrorCode.COMM_ERROR);
+		for (Call call : calls.values()) {
+			if (call.pipelined)
+				window.release();
+			else
+				call.complete(null, lost);
+		}
+		calls.clear();
+	}
+
+	private static class Call {
+		final boolean pipelined;
+		private final CountDownLatch done = new CountDownLatch(1);
+		private String[] values;
+		private RuntimeException error;
+
+		Call(boolean pipelined) {
+			this.pipelined = pipelined;
+		}
+
+		void complete(String[] values, RuntimeException error) {
+			this.values = values;
+			this.error = error;
+			done.countDown();
+		}
+
+		String[] await() {
+			try {
+				done.await();
+			} catch (InterruptedException e) {
+				throw new UbwException("Interrupted waiting for reply", e, ErrorCode.COMM_ERROR);
+			}
+			if (error != null)
+				throw error;
+			return values;
+		}
+	}
+}
@@ -0,0 +1,252 @@
+// Copyright (c) 2011 James Ancona. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package net.scarhill.eibotboard;
+
+import net.scarhill.eibotboard.UbwCommand.PinDirection;
+import net.scarhill.eibotboard.UbwCommand.Port;
+import net.scarhill.eibotboard.UbwCommand.TimerListener;
+import net.scarhill.eibotboard.UbwCommand.TimerMode;
+import net.scarhill.eibotboard.UbwException.ErrorCode;
+
+/**
+ * The line protocol spoken between {@link DeviceServer} and {@link DeviceClient}.
+ * <p>
+ * Every request is a single line of comma separated ASCII fields:
+ * <pre>
+ * &lt;seq&gt;,&lt;session&gt;,&lt;command&gt;[,&lt;arg&gt;...]
+ * </pre>
+ * <code>command</code> is the EBB/UBW mnemonic of the {@link EbbCommand} method
+ * (e.g. <code>SM,1000,200,0</code>) plus the session commands <code>OPEN,&lt;board&gt;</code>
+ * and <code>CLOSE</code>. Every request is answered by exactly one line:
+ * <pre>
+ * &lt;seq&gt;,OK[,&lt;value&gt;...]
+ * &lt;seq&gt;,&lt;error code&gt;,&lt;message&gt;
+ * </pre>
+ * where the error code is one of the {@link ErrorCode} string values. Timer packets
+ * requested with <code>T</code> are pushed to the client with sequence number 0:
+ * <code>0,&lt;session&gt;,I,&lt;a&gt;,&lt;b&gt;,&lt;c&gt;</code>.
+ * <p>
+ * Requests are executed in order within a session, so a client may pipeline as
+ * many requests as it likes without waiting for the replies.
+ */
+final class DeviceProtocol {
+	static final String OPEN = "OPEN";
+	static final String CLOSE = "CLOSE";
+	static final String OK = "OK";
+	static final int EVENT_SEQ = 0;
+
+	private DeviceProtocol() {
+	}
+
+	/**
+	 * Call the method of <code>board</code> that matches the request in
+	 * <code>f</code> (starting with the mnemonic at <code>f[2]</code>) and append
+	 * any return value to <code>reply</code>.
+	 *
+	 * @throws UbwException if the request is malformed or the board fails
+	 */
+	static void dispatch(UbwCommand board, String[] f, StringBuilder reply, TimerListener listener) {
+		String cmd = f[2];
+		if (cmd.equals("SM")) {
+			args(f, 3);
+			ebb(board).stepperMotorMove(intArg(f, 3), intArg(f, 4), intArg(f, 5));
+		} else if (cmd.equals("SP")) {
+			if (f.length > 4)
+				ebb(board).setPenState(intArg(f, 3) != 0, intArg(f, 4));
+			else {
+				args(f, 1);
+				ebb(board).setPenState(intArg(f, 3) != 0);
+			}
+		} else if (cmd.equals("TP")) {
+			if (f.length > 3)
+				ebb(board).togglePen(intArg(f, 3));
+			else
+				ebb(board).togglePen();
+		} else if (cmd.equals("EM")) {
+			args(f, 2);
+			ebb(board).enableMotor(intArg(f, 3), intArg(f, 4));
+		} else if (cmd.equals("SC")) {
+			args(f, 2);
+			ebb(board).servoModeConfigure(intArg(f, 3), intArg(f, 4));
+		} else if (cmd.equals("S2")) {
+			args(f, 4);
+			ebb(board).rcServoOutput(intArg(f, 3), intArg(f, 4), intArg(f, 5), intArg(f, 6));
+		} else if (cmd.equals("SL")) {
+			args(f, 1);
+			ebb(board).setLayer(intArg(f, 3));
+		} else if (cmd.equals("SN")) {
+			args(f, 1);
+			ebb(board).setNodeCount(longArg(f, 3));
+		} else if (cmd.equals("NI")) {
+			ebb(board).nodeCountIncrement();
+		} else if (cmd.equals("ND")) {
+			ebb(board).nodeCountDecrement();
+		} else if (cmd.equals("QN")) {
+			reply.append(',').append(ebb(board).queryNodeCount());
+		} else if (cmd.equals("QL")) {
+			reply.append(',').append(ebb(board).queryLayer());
+		} else if (cmd.equals("QB")) {
+			reply.append(',').append(ebb(board).queryButton() ? 1 : 0);
+		} else if (cmd.equals("QP")) {
+			reply.append(',').append(ebb(board).queryPen() ? 1 : 0);
+		} else if (cmd.equals("QC")) {
+			appendValues(reply, ebb(board).queryCurrent());
+		} else if (cmd.equals("BL")) {
+			ebb(board).bootLoad();
+		} else if (cmd.equals("C")) {
+			args(f, 4);
+			board.configure(intArg(f, 3), intArg(f, 4), intArg(f, 5), intArg(f, 6));
+		} else if (cmd.equals("CU")) {
+			args(f, 2);
+			board.configure(intArg(f, 3), intArg(f, 4));
+		} else if (cmd.equals("O")) {
+			args(f, 3);
+			board.outputState(intArg(f, 3), intArg(f, 4), intArg(f, 5));
+		} else if (cmd.equals("I")) {
+			appendValues(reply, board.inputState());
+		} else if (cmd.equals("A")) {
+			appendValues(reply, board.sampleAnalogInputs());
+		} else if (cmd.equals("V")) {
+			reply.append(',').append(board.version());
+		} else if (cmd.equals("R")) {
+			board.reset();
+		} else if (cmd.equals("T")) {
+			args(f, 2);
+			int time = intArg(f, 3);
+			board.timerReadInputs(time, timerMode(intArg(f, 4)), time > 0 ? listener : null);
+		} else if (cmd.equals("MR")) {
+			args(f, 1);
+			reply.append(',').append(board.memoryRead(intArg(f, 3)));
+		} else if (cmd.equals("MW")) {
+			args(f, 2);
+			board.memoryWrite(intArg(f, 3), intArg(f, 4));
+		} else if (cmd.equals("PD")) {
+			args(f, 3);
+			board.pinDirection(portArg(f, 3), intArg(f, 4),
+					intArg(f, 5) == PinDirection.INPUT.intValue() ? PinDirection.INPUT : PinDirection.OUTPUT);
+		} else if (cmd.equals("PI")) {
+			args(f, 2);
+			reply.append(',').append(board.pinInput(portArg(f, 3), intArg(f, 4)) ? 1 : 0);
+		} else if (cmd.equals("PO")) {
+			args(f, 3);
+			board.pinOutput(portArg(f, 3), intArg(f, 4), intArg(f, 5) != 0);
+		} else if (cmd.equals("RC")) {
+			args(f, 3);
+			board.rcServoOutput(portArg(f, 3), intArg(f, 4), intArg(f, 5));
+		} else if (cmd.equals("BC")) {
+			args(f, 5);
+			board.bulkConfigure(intArg(f, 3), intArg(f, 4), intArg(f, 5), intArg(f, 6), intArg(f, 7));
+		} else if (cmd.equals("BO")) {
+			args(f, 1);
+			board.bulkOutput(fromHex(f[3]));
+		} else if (cmd.equals("BS")) {
+			args(f, 1);
+			board.bulkStream(fromHex(f[3]));
+		} else {
+			throw new UbwException("Unknown command '" + cmd + "'", ErrorCode.UNKNOWN_COMMAND);
+		}
+	}
+
+	/**
+	 * Append an error reply for <code>e</code>.
+	 */
+	static void appendError(StringBuilder reply, RuntimeException e) {
+		ErrorCode code = ErrorCode.RESPONSE_ERROR;
+		if (e instanceof UbwException && ((UbwException) e).getErrorCode() != null)
+			code = ((UbwException) e).getErrorCode();
+		else if (e instanceof IllegalArgumentException)
+			code = ErrorCode.INVALID_PARAMETER_VALUE;
+		String message = e.getMessage() == null ? e.toString() : e.getMessage();
+		reply.append(',').append(code.stringValue()).append(',').append(message.replace('\n', ' ').replace('\r', ' '));
+	}
+
+	/**
+	 * Convert an error reply into the exception that should be thrown on the client.
+	 */
+	static RuntimeException toException(String[] f) {
+		String message = f.length > 2 ? f[2] : "";
+		for (int i = 3; i < f.length; i++)
+			message += "," + f[i];
+		ErrorCode code = ErrorCode.fromStringValue(f[1]);
+		if (code == ErrorCode.INVALID_PARAMETER_VALUE && message.startsWith("Value '"))
+			return new IllegalArgumentException(message);
+		return new UbwException(message, code == null ? ErrorCode.RESPONSE_ERROR : code);
+	}
+
+	static void appendValues(StringBuilder reply, int[] values) {
+		for (int v : values)
+			reply.append(',').append(v);
+	}
+
+	static int[] intValues(String[] f, int start) {
+		int[] values = new int[f.length - start];
+		for (int i = start; i < f.length; i++)
+			values[i - start] = Integer.parseInt(f[i]);
+		return values;
+	}
+
+	static TimerMode timerMode(int value) {
+		return value == TimerMode.ANALOG.intValue() ? TimerMode.ANALOG : TimerMode.DIGITAL;
+	}
+
+	static char timerChar(TimerMode mode) {
+		return mode == TimerMode.ANALOG ? 'A' : 'I';
+	}
+
+	static byte[] fromHex(String hex) {
+		if (hex.length() % 2 != 0)
+			throw new UbwException("Odd length hex string", ErrorCode.INVALID_PARAMETER_VALUE);
+		byte[] raw = new byte[hex.length() / 2];
+		for (int i = 0; i < raw.length; i++)
+			raw[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+		return raw;
+	}
+
+	private static EbbCommand ebb(UbwCommand board) {
+		if (!(board instanceof EbbCommand))
+			throw new UbwException("Board does not support EBB commands", ErrorCode.UNKNOWN_COMMAND);
+		return (EbbCommand) board;
+	}
+
+	private static void args(String[] f, int count) {
+		if (f.length < 3 + count)
+			throw new UbwException("Missing parameter for '" + f[2] + "'", ErrorCode.MISSING_PARAMETER);
+		if (f.length > 3 + count)
+			throw new UbwException("Extra parameter for '" + f[2] + "'", ErrorCode.EXTRA_PARAMETER);
+	}
+
+	private static int intArg(String[] f, int i) {
+		try {
+			return Integer.parseInt(f[i]);
+		} catch (NumberFormatException e) {
+			throw new UbwException("Invalid parameter '" + f[i] + "'", e, ErrorCode.INVALID_PARAMETER_VALUE);
+		}
+	}
+
+	private static long longArg(String[] f, int i) {
+		try {
+			return Long.parseLong(f[i]);
+		} catch (NumberFormatException e) {
+			throw new UbwException("Invalid parameter '" + f[i] + "'", e, ErrorCode.INVALID_PARAMETER_VALUE);
+		}
+	}
+
+	private static Port portArg(String[] f, int i) {
+		try {
+			return Port.valueOf(f[i]);
+		} catch (IllegalArgumentException e) {
+			throw new UbwException("Invalid port '" + f[i] + "'", e, ErrorCode.INVALID_PARAMETER_VALUE);
+		}
+	}
+}
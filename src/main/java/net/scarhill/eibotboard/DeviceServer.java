@@ -0,0 +1,619 @@
+// Copyright (c) 2011 James Ancona. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package net.scarhill.eibotboard;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.scarhill.eibotboard.UbwCommand.TimerListener;
+import net.scarhill.eibotboard.UbwCommand.TimerMode;
+import net.scarhill.eibotboard.UbwException.ErrorCode;
+
+/**
+ * Serves one or more boards to remote {@link DeviceClient}s over TCP, using the
+ * line protocol described in {@link DeviceProtocol}.
+ * <p>
+ * All network I/O is done by a single selector thread. Each board has its own
+ * worker thread, which is the only thread that ever touches the board, so the
+ * boards need not be thread safe. A client opens a session on a board and may
+ * pipeline requests on it; the worker takes one request from each session in
+ * turn, so a client streaming thousands of moves can't starve another client's
+ * queries. When a connection has too many requests waiting, the server stops
+ * reading from it until the board catches up, and likewise when it has too many
+ * replies waiting because the client isn't reading them. Timer events that
+ * arrive while a connection is backed up like that are dropped, and counted in
+ * {@link Stats#getDroppedEvents()}.
+ */
+public class DeviceServer implements Closeable {
+	private static final Charset ASCII = Charset.forName("US-ASCII");
+	static final int MAX_QUEUED_PER_CONNECTION = 1024;
+	/** longer than any request, even a BO with the most bytes the firmware will take */
+	static final int MAX_LINE_LENGTH = 65536;
+
+	private final InetSocketAddress address;
+	private final Map<String, Board> boards = new ConcurrentHashMap<String, Board>();
+	private final Queue<Connection> pendingUpdates = new ConcurrentLinkedQueue<Connection>();
+	private final AtomicInteger nextSession = new AtomicInteger(1);
+	private final AtomicInteger connections = new AtomicInteger();
+	private final AtomicLong bytesIn = new AtomicLong();
+	private final AtomicLong bytesOut = new AtomicLong();
+	private Selector selector;
+	private ServerSocketChannel serverChannel;
+	private Thread selectorThread;
+	private volatile boolean running;
+	private volatile IOException error;
+
+	/**
+	 * @param port the TCP port to listen on, or 0 to pick a free one
+	 */
+	public DeviceServer(int port) {
+		this(new InetSocketAddress(port));
+	}
+	public DeviceServer(InetSocketAddress address) {
+		this.address = address;
+	}
+
+	/**
+	 * Make <code>board</code> available to clients as <code>name</code>. EBB
+	 * commands are only accepted if the board is an {@link EbbCommand}.
+	 */
+	public void addBoard(String name, UbwCommand board) {
+		if (name.indexOf(',') >= 0)
+			throw new IllegalArgumentException("Board name '" + name + "' must not contain a comma.");
+		Board b = new Board(name, board);
+		if (boards.put(name, b) != null)
+			throw new IllegalArgumentException("Board '" + name + "' already exists.");
+		if (running)
+			b.start();
+	}
+
+	public void start() throws IOException {
+		selector = Selector.open();
+		serverChannel = ServerSocketChannel.open();
+		serverChannel.socket().setReuseAddress(true);
+		serverChannel.socket().bind(address);
+		serverChannel.configureBlocking(false);
+		serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+		running = true;
+		for (Board b : boards.values())
+			b.start();
+		selectorThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				select();
+			}
+		}, "DeviceServer selector");
+		selectorThread.setDaemon(true);
+		selectorThread.start();
+	}
+
+	/**
+	 * @return the port the server is listening on
+	 */
+	public int getPort() {
+		return serverChannel.socket().getLocalPort();
+	}
+
+	/**
+	 * @return the statistics for the board called <code>name</code>
+	 */
+	public Stats getStats(String name) {
+		Board b = boards.get(name);
+		if (b == null)
+			throw new IllegalArgumentException("No board called '" + name + "'.");
+		return b.stats;
+	}
+
+	public int getConnectionCount() {
+		return connections.get();
+	}
+	public long getBytesIn() {
+		return bytesIn.get();
+	}
+	public long getBytesOut() {
+		return bytesOut.get();
+	}
+
+	/**
+	 * @return the error that stopped the server, or <code>null</code> if it hasn't failed
+	 */
+	public IOException getError() {
+		return error;
+	}
+
+	/**
+	 * Stop serving. The boards themselves are left open.
+	 */
+	@Override
+	public void close() {
+		running = false;
+		for (Board b : boards.values())
+			b.stop();
+		if (selector != null) {
+			selector.wakeup();
+			try {
+				selectorThread.join(2000);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private void select() {
+		try {
+			while (running) {
+				selector.select();
+				Connection c;
+				while ((c = pendingUpdates.poll()) != null)
+					c.updateInterest();
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					if (!key.isValid())
+						continue;
+					if (key.isAcceptable()) {
+						accept();
+						continue;
+					}
+					Connection conn = (Connection) key.attachment();
+					try {
+						if (key.isReadable())
+							conn.read();
+						if (key.isValid() && key.isWritable())
+							conn.write();
+					} catch (IOException e) {
+						conn.close();
+					}
+				}
+			}
+		} catch (IOException e) {
+			error = e;
+			running = false;
+		} finally {
+			for (SelectionKey key : selector.keys()) {
+				if (key.attachment() instanceof Connection)
+					((Connection) key.attachment()).close();
+			}
+			try {
+				serverChannel.close();
+				selector.close();
+			} catch (IOException e) {}
+		}
+	}
+
+	private void accept() throws IOException {
+		SocketChannel channel = serverChannel.accept();
+		if (channel == null)
+			return;
+		channel.configureBlocking(false);
+		channel.socket().setTcpNoDelay(true);
+		Connection conn = new Connection(channel);
+		conn.key = channel.register(selector, SelectionKey.OP_READ, conn);
+		connections.incrementAndGet();
+	}
+
+	/**
+	 * A client connection. Everything except {@link #reply(String)} and
+	 * {@link #requestDone()} runs on the selector thread.
+	 */
+	private class Connection {
+		private final SocketChannel channel;
+		private SelectionKey key;
+		private final ByteBuffer in = ByteBuffer.allocate(8192);
+		private final StringBuilder line = new StringBuilder();
+		private final Queue<String> replies = new ConcurrentLinkedQueue<String>();
+		private ByteBuffer writing;
+		private final AtomicBoolean updateScheduled = new AtomicBoolean();
+		private final AtomicInteger queued = new AtomicInteger();
+		// replies waiting to be written
+		private final AtomicInteger unsent = new AtomicInteger();
+		private final Map<Integer, Session> sessions = new HashMap<Integer, Session>();
+		private volatile boolean closed;
+
+		Connection(SocketChannel channel) {
+			this.channel = channel;
+		}
+
+		void read() throws IOException {
+			int n = channel.read(in);
+			if (n < 0) {
+				close();
+				return;
+			}
+			bytesIn.addAndGet(n);
+			in.flip();
+			while (in.hasRemaining()) {
+				char c = (char) (in.get() & 0xFF);
+				if (c == '\n') {
+					if (line.length() > 0)
+						handle(line.toString());
+					line.setLength(0);
+				} else if (c != '\r') {
+					if (line.length() == MAX_LINE_LENGTH) {
+						// not a client we understand; don't let it fill the heap
+						close();
+						return;
+					}
+					line.append(c);
+				}
+			}
+			in.clear();
+			if (backedUp())
+				updateInterest();
+		}
+
+		private void handle(String request) {
+			String[] f = request.split(",");
+			int seq;
+			int sessionId;
+			try {
+				seq = Integer.parseInt(f[0]);
+				sessionId = Integer.parseInt(f[1]);
+			} catch (RuntimeException e) {
+				reply("-1," + ErrorCode.RESPONSE_ERROR.stringValue() + ",Malformed request '" + request + "'");
+				return;
+			}
+			if (f.length < 3) {
+				reply(seq + "," + ErrorCode.MISSING_PARAMETER.stringValue() + ",Missing command");
+				return;
+			}
+			if (f[2].equals(DeviceProtocol.OPEN)) {
+				Board board = f.length > 3 ? boards.get(f[3]) : null;
+				if (board == null) {
+					reply(seq + "," + ErrorCode.INVALID_PARAMETER_VALUE.stringValue() + ",No such board");
+					return;
+				}
+				Session session = new Session(nextSession.getAndIncrement(), this, board);
+				sessions.put(session.id, session);
+				board.sessions.add(session);
+				reply(seq + ",OK," + session.id);
+				return;
+			}
+			Session session = sessions.get(sessionId);
+			if (session == null) {
+				reply(seq + "," + ErrorCode.INVALID_PARAMETER_VALUE.stringValue() + ",No such session");
+			} else if (f[2].equals(DeviceProtocol.CLOSE)) {
+				// answered by the worker, after everything queued ahead of it
+				sessions.remove(sessionId);
+				session.enqueue(new Request(seq, f));
+			} else {
+				session.enqueue(new Request(seq, f));
+			}
+		}
+
+		void reply(String reply) {
+			if (closed)
+				return;
+			unsent.incrementAndGet();
+			replies.add(reply);
+			scheduleUpdate();
+		}
+
+		/**
+		 * Queue a timer event, unless the client is too far behind with its replies.
+		 *
+		 * @return <code>false</code> if the event was dropped
+		 */
+		boolean event(String event) {
+			if (unsent.get() >= MAX_QUEUED_PER_CONNECTION)
+				return false;
+			reply(event);
+			return true;
+		}
+
+		private boolean backedUp() {
+			return queued.get() >= MAX_QUEUED_PER_CONNECTION || unsent.get() >= MAX_QUEUED_PER_CONNECTION;
+		}
+
+		void requestDone() {
+			if (queued.decrementAndGet() == MAX_QUEUED_PER_CONNECTION / 2)
+				scheduleUpdate();
+		}
+
+		private void scheduleUpdate() {
+			if (updateScheduled.compareAndSet(false, true)) {
+				pendingUpdates.add(this);
+				selector.wakeup();
+			}
+		}
+
+		void updateInterest() {
+			updateScheduled.set(false);
+			if (closed)
+				return;
+			int ops = 0;
+			if (!backedUp())
+				ops |= SelectionKey.OP_READ;
+			if (writing != null || !replies.isEmpty())
+				ops |= SelectionKey.OP_WRITE;
+			key.interestOps(ops);
+		}
+
+		void write() throws IOException {
+			while (true) {
+				if (writing == null) {
+					String reply = replies.poll();
+					if (reply == null)
+						break;
+					unsent.decrementAndGet();
+					writing = ASCII.encode(reply + "\n");
+				}
+				bytesOut.addAndGet(channel.write(writing));
+				if (writing.hasRemaining())
+					break;
+				writing = null;
+			}
+			updateInterest();
+		}
+
+		void close() {
+			if (closed)
+				return;
+			closed = true;
+			connections.decrementAndGet();
+			for (Session s : sessions.values())
+				s.close();
+			sessions.clear();
+			key.cancel();
+			try {
+				channel.close();
+			} catch (IOException e) {}
+		}
+	}
+
+	private static class Request {
+		final int seq;
+		final String[] fields;
+		final long queuedAt = System.nanoTime();
+
+		Request(int seq, String[] fields) {
+			this.seq = seq;
+			this.fields = fields;
+		}
+	}
+
+	private static class Session implements TimerListener {
+		final int id;
+		final Connection connection;
+		final Board board;
+		final Queue<Request> requests = new ConcurrentLinkedQueue<Request>();
+		volatile boolean closed;
+
+		Session(int id, Connection connection, Board board) {
+			this.id = id;
+			this.connection = connection;
+			this.board = board;
+		}
+
+		void enqueue(Request request) {
+			connection.queued.incrementAndGet();
+			requests.add(request);
+			board.signal();
+		}
+
+		void close() {
+			closed = true;
+			board.signal();
+		}
+
+		@Override
+		public void timerResponse(TimerMode mode, int... value) {
+			if (closed)
+				return;
+			StringBuilder event = new StringBuilder();
+			event.append(DeviceProtocol.EVENT_SEQ).append(',').append(id).append(',').append(DeviceProtocol.timerChar(mode));
+			DeviceProtocol.appendValues(event, value);
+			if (!connection.event(event.toString()))
+				board.stats.droppedEvents.incrementAndGet();
+		}
+	}
+
+	/**
+	 * A served board and the worker thread that executes requests on it.
+	 */
+	private class Board implements Runnable {
+		final String name;
+		final UbwCommand device;
+		final List<Session> sessions = new CopyOnWriteArrayList<Session>();
+		final Stats stats = new Stats();
+		private final Object lock = new Object();
+		// the session whose listener gets the timer packets, only touched by the worker
+		private Session timerSession;
+		private boolean signalled;
+		private volatile boolean stopped;
+		private Thread thread;
+
+		Board(String name, UbwCommand device) {
+			this.name = name;
+			this.device = device;
+		}
+
+		void start() {
+			thread = new Thread(this, "DeviceServer board " + name);
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		void stop() {
+			stopped = true;
+			signal();
+		}
+
+		void signal() {
+			synchronized (lock) {
+				signalled = true;
+				lock.notify();
+			}
+		}
+
+		@Override
+		public void run() {
+			StringBuilder reply = new StringBuilder();
+			while (!stopped) {
+				boolean worked = false;
+				// one request per session per round keeps the sessions fair
+				for (Session session : sessions) {
+					Request request = session.requests.poll();
+					if (session.closed) {
+						// the client has gone away; don't keep moving on its behalf
+						while (request != null) {
+							session.connection.requestDone();
+							request = session.requests.poll();
+						}
+						sessions.remove(session);
+						if (session == timerSession)
+							stopTimer();
+						continue;
+					}
+					if (request == null)
+						continue;
+					worked = true;
+					execute(session, request, reply);
+				}
+				if (!worked) {
+					synchronized (lock) {
+						while (!signalled && !stopped) {
+							try {
+								lock.wait();
+							} catch (InterruptedException e) {
+								return;
+							}
+						}
+						signalled = false;
+					}
+				}
+			}
+		}
+
+		private void execute(Session session, Request request, StringBuilder reply) {
+			long started = System.nanoTime();
+			boolean failed = false;
+			reply.setLength(0);
+			reply.append(request.seq).append(',').append(DeviceProtocol.OK);
+			try {
+				if (request.fields[2].equals(DeviceProtocol.CLOSE))
+					session.closed = true;
+				else
+					DeviceProtocol.dispatch(device, request.fields, reply, session);
+				if (request.fields[2].equals("T"))
+					timerSession = Integer.parseInt(request.fields[3]) == 0 ? null : session;
+			} catch (RuntimeException e) {
+				failed = true;
+				reply.setLength(0);
+				reply.append(request.seq);
+				DeviceProtocol.appendError(reply, e);
+			}
+			long finished = System.nanoTime();
+			stats.record(finished - request.queuedAt, finished - started, failed);
+			session.connection.reply(reply.toString());
+			session.connection.requestDone();
+		}
+
+		/**
+		 * Turn off the timer of a session that has closed, so the board stops
+		 * sending packets that nobody will read.
+		 */
+		private void stopTimer() {
+			timerSession = null;
+			try {
+				device.timerReadInputs(0, TimerMode.DIGITAL, null);
+			} catch (RuntimeException e) {
+				// the board has gone too; nothing more to stop
+			}
+		}
+	}
+
+	/**
+	 * Latency and throughput of one served board. Latency is measured from the
+	 * time a request is read until its reply is queued; service time is the
+	 * part of that spent executing on the board.
+	 */
+	public static class Stats {
+		private final long created = System.nanoTime();
+		// only updated by the board's worker thread
+		private volatile long commands;
+		private volatile long errors;
+		private volatile long latencyNanos;
+		private volatile long serviceNanos;
+		private volatile long maxLatencyNanos;
+		// updated by whichever thread the board delivers timer packets on
+		private final AtomicLong droppedEvents = new AtomicLong();
+
+		void record(long latency, long service, boolean failed) {
+			commands++;
+			if (failed)
+				errors++;
+			latencyNanos += latency;
+			serviceNanos += service;
+			if (latency > maxLatencyNanos)
+				maxLatencyNanos = latency;
+		}
+
+		public long getCommands() {
+			return commands;
+		}
+		public long getErrors() {
+			return errors;
+		}
+		/**
+		 * @return the timer events not sent because the client wasn't reading its replies
+		 */
+		public long getDroppedEvents() {
+			return droppedEvents.get();
+		}
+		public double getMeanLatencyMillis() {
+			long n = commands;
+			return n == 0 ? 0 : latencyNanos / 1e6 / n;
+		}
+		public double getMaxLatencyMillis() {
+			return maxLatencyNanos / 1e6;
+		}
+		public double getMeanServiceMillis() {
+			long n = commands;
+			return n == 0 ? 0 : serviceNanos / 1e6 / n;
+		}
+		/**
+		 * @return the average number of commands per second since the board was added
+		 */
+		public double getCommandsPerSecond() {
+			return commands / ((System.nanoTime() - created) / 1e9);
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%d commands, %d errors, %.1f/s, latency mean %.3f ms max %.3f ms, service mean %.3f ms",
+					getCommands(), getErrors(), getCommandsPerSecond(), getMeanLatencyMillis(),
+					getMaxLatencyMillis(), getMeanServiceMillis());
+		}
+	}
+}
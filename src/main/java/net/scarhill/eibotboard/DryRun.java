@@ -0,0 +1,359 @@
+// Copyright (c) 2011 James Ancona. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package net.scarhill.eibotboard;
+
+import java.util.Arrays;
+
+/**
+ * Accepts the same calls as an {@link Ebb}, but instead of moving anything
+ * adds up how long the board would take to execute them. The EBB holds off the
+ * next command for exactly the duration given to SM, SP and TP (500 ms when SP
+ * or TP has none), so as long as the host keeps the board's FIFO full the
+ * total is the plotting time. Every other command is counted but takes no
+ * time, and queries of the ports answer as an idle board with nothing
+ * connected would. As on the board, only SN, NI and ND change the node
+ * counter; moves don't.
+ * <p>
+ * Time is broken down by layer (as set with {@link #setLayer(int)}) and by
+ * {@link Phase}. Only running totals are kept, so memory use doesn't grow with
+ * the size of the job.
+ */
+public class DryRun extends EbbCommandAdapter {
+	/**
+	 * What the board is doing.
+	 */
+	public enum Phase {
+		/** moving with the pen down */
+		DRAW,
+		/** moving with the pen up */
+		TRAVEL,
+		/** waiting for the pen to go up or down */
+		PEN,
+		/** an SM that doesn't move either motor */
+		PAUSE
+	}
+
+	private final long[] phaseMillis = new long[Phase.values().length];
+	private final long[] layerMillis = new long[256];
+	private long totalMillis;
+	private long commands;
+	private long moves;
+	private long penMoves;
+	private int layer;
+	private boolean penUp = true;
+	private long nodeCount;
+	private long x;
+	private long y;
+	private PenTiming penTiming;
+
+	/**
+	 * @return the duration of a whole plot
+	 */
+	public static DryRun estimate(Plot plot) {
+		DryRun dryRun = new DryRun();
+		plot.play(dryRun);
+		return dryRun;
+	}
+
+	/**
+	 * Time SP and TP commands without a duration as an {@link Ebb} with the
+	 * same timing would, rather than with the firmware's default.
+	 */
+	public void setPenTiming(PenTiming timing) {
+		this.penTiming = timing;
+	}
+
+	/**
+	 * @return the total time in milliseconds
+	 */
+	public long getTotalMillis() {
+		return totalMillis;
+	}
+	public long getPhaseMillis(Phase phase) {
+		return phaseMillis[phase.ordinal()];
+	}
+	public long getLayerMillis(int layer) {
+		return layerMillis[layer];
+	}
+	/**
+	 * @return the layers that have any time spent in them
+	 */
+	public int[] getLayers() {
+		int count = 0;
+		for (long t : layerMillis)
+			if (t > 0)
+				count++;
+		int[] layers = new int[count];
+		count = 0;
+		for (int i = 0; i < layerMillis.length; i++)
+			if (layerMillis[i] > 0)
+				layers[count++] = i;
+		return layers;
+	}
+	public long getCommandCount() {
+		return commands;
+	}
+	/**
+	 * @return the number of SM commands
+	 */
+	public long getMoveCount() {
+		return moves;
+	}
+	/**
+	 * @return the number of times the pen went up or down
+	 */
+	public long getPenMoveCount() {
+		return penMoves;
+	}
+
+	/**
+	 * @return the motor 1 position in steps, relative to where the job started
+	 */
+	public long getX() {
+		return x;
+	}
+	/**
+	 * @return the motor 2 position in steps, relative to where the job started
+	 */
+	public long getY() {
+		return y;
+	}
+
+	/**
+	 * Start again from zero, with the pen up on layer 0.
+	 */
+	public void clear() {
+		Arrays.fill(phaseMillis, 0);
+		Arrays.fill(layerMillis, 0);
+		totalMillis = commands = moves = penMoves = nodeCount = x = y = 0;
+		layer = 0;
+		penUp = true;
+	}
+
+	private void add(Phase phase, int millis) {
+		phaseMillis[phase.ordinal()] += millis;
+		layerMillis[layer] += millis;
+		totalMillis += millis;
+	}
+
+	@Override
+	public void stepperMotorMove(int duration, int axis1, int axis2) {
+		commands++;
+		moves++;
+		x += axis1;
+		y += axis2;
+		add(axis1 == 0 && axis2 == 0 ? Phase.PAUSE : (penUp ? Phase.TRAVEL : Phase.DRAW), duration);
+	}
+
+	@Override
+	public void setPenState(boolean state) {
+		setPenState(state, penTiming != null ? penTiming.getMillis(state) : Plot.DEFAULT_PEN_DURATION);
+	}
+
+	@Override
+	public void setPenState(boolean state, int duration) {
+		commands++;
+		penMoves++;
+		penUp = state == Plot.PEN_UP;
+		add(Phase.PEN, duration);
+	}
+
+	@Override
+	public void togglePen() {
+		togglePen(penTiming != null ? penTiming.getMillis(penUp != Plot.PEN_UP) : Plot.DEFAULT_PEN_DURATION);
+	}
+
+	@Override
+	public void togglePen(int duration) {
+		setPenState(penUp != Plot.PEN_UP, duration);
+	}
+
+	@Override
+	public void setLayer(int layer) {
+		if (layer < 0 || layer >= layerMillis.length)
+			throw new IllegalArgumentException("Value '" + layer + "' must be between 0 and " + (layerMillis.length - 1) + ".");
+		commands++;
+		this.layer = layer;
+	}
+
+	@Override
+	public int queryLayer() {
+		return layer;
+	}
+
+	@Override
+	public boolean queryPen() {
+		return penUp;
+	}
+
+	@Override
+	public boolean queryButton() {
+		return false;
+	}
+
+	@Override
+	public void setNodeCount(long value) {
+		commands++;
+		nodeCount = value;
+	}
+
+	@Override
+	public void nodeCountIncrement() {
+		commands++;
+		nodeCount++;
+	}
+
+	@Override
+	public void nodeCountDecrement() {
+		commands++;
+		if (nodeCount > 0)
+			nodeCount--;
+	}
+
+	@Override
+	public long queryNodeCount() {
+		return nodeCount;
+	}
+
+	@Override
+	public void enableMotor(int motor1, int motor2) {
+		commands++;
+	}
+
+	@Override
+	public void servoModeConfigure(int value1, int value2) {
+		commands++;
+		if (penTiming != null)
+			penTiming.servoModeConfigure(value1, value2);
+	}
+
+	@Override
+	public void rcServoOutput(int channel, int duration, int output_pin, int rate) {
+		commands++;
+	}
+
+	@Override
+	public void reset() {
+		commands++;
+		nodeCount = 0;
+		layer = 0;
+		penUp = true;
+	}
+
+	@Override
+	public String version() {
+		return "DryRun";
+	}
+
+	/**
+	 * Counted, but there are no inputs to report, so <code>listener</code> is never called.
+	 */
+	@Override
+	public void timerReadInputs(int timeBetweenPacketsInMilliseconds, TimerMode mode, TimerListener listener) {
+		commands++;
+	}
+
+	// commands that only set up the ports or the board; the board answers them at once
+
+	@Override
+	public void configure(int dirA, int dirB, int dirC, int analogEnableCount) {
+		commands++;
+	}
+
+	@Override
+	public void configure(int parameter, int value) {
+		commands++;
+	}
+
+	@Override
+	public void outputState(int portA, int portB, int portC) {
+		commands++;
+	}
+
+	@Override
+	public void memoryWrite(int address, int value) {
+		commands++;
+	}
+
+	@Override
+	public void pinDirection(Port port, int pin, PinDirection direction) {
+		commands++;
+	}
+
+	@Override
+	public void pinOutput(Port port, int pin, boolean value) {
+		commands++;
+	}
+
+	@Override
+	public void rcServoOutput(Port port, int pin, int value) {
+		commands++;
+	}
+
+	@Override
+	public void bulkConfigure(int init, int waitMask, int waitDelay, int strobeMask, int strobeDelay) {
+		commands++;
+	}
+
+	@Override
+	public void bulkOutput(byte[] byteStream) {
+		commands++;
+	}
+
+	@Override
+	public void bulkStream(byte[] byteStream) {
+		commands++;
+	}
+
+	@Override
+	public void bootLoad() {
+		commands++;
+	}
+
+	// queries, which a dry run answers with an idle board's readings
+
+	@Override
+	public int[] inputState() {
+		return new int[3];
+	}
+
+	@Override
+	public int[] sampleAnalogInputs() {
+		return new int[0];
+	}
+
+	@Override
+	public int memoryRead(int address) {
+		return 0;
+	}
+
+	@Override
+	public boolean pinInput(Port port, int pin) {
+		return false;
+	}
+
+	@Override
+	public int[] queryCurrent() {
+		return new int[2];
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder s = new StringBuilder();
+		s.append(commands).append(" commands, ").append(totalMillis).append(" ms");
+		for (Phase phase : Phase.values())
+			s.append(", ").append(phase.name().toLowerCase()).append(' ').append(getPhaseMillis(phase)).append(" ms");
+		return s.toString();
+	}
+}
@@ -13,42 +13,194 @@
 // limitations under the License.
 package net.scarhill.eibotboard;
 
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.scarhill.eibotboard.FirmwareVersion.Feature;
+import net.scarhill.eibotboard.UbwException.ErrorCode;
+
+/**
+ * Commands that the board's firmware is too old for are rejected before
+ * anything is sent, and where there is a slower equivalent it is used instead.
+ */
 public class Ebb extends Ubw implements EbbCommand {
+	private PenTiming penTiming;
+	/** the pen state last set, or <code>null</code> if it isn't known */
+	private volatile Boolean pen;
+	private volatile Telemetry telemetry;
+	/** set while a thread is sampling, so that senders take turns */
+	private final AtomicBoolean sampling = new AtomicBoolean();
+	/** when the board will have finished the motion it has been sent, from System.currentTimeMillis() */
+	private final AtomicLong motionEnd = new AtomicLong();
+	// the settings to restore after reconnecting
+	private volatile String motors;
+	private final SortedMap<Integer, Integer> servo = Collections.synchronizedSortedMap(new TreeMap<Integer, Integer>());
+	private volatile int layer = -1;
+	/** the node count, or -1 if it isn't known */
+	private final AtomicLong nodeCount = new AtomicLong(-1);
 
 	public Ebb() {
 	}
 	public Ebb(String port) {
 		super(port);
 	}
+	public Ebb(InputStream in, OutputStream out) {
+		super(in, out);
+	}
+	public Ebb(String portName, InputStream in, OutputStream out) {
+		super(portName, in, out);
+	}
+
+
+	/**
+	 * @return <code>true</code> if the board's firmware has <code>feature</code>
+	 */
+	public boolean supports(Feature feature) {
+		return firmwareVersion().supports(feature);
+	}
 
+	/**
+	 * Time pen moves with a model of the servo instead of the firmware's
+	 * default. While one is set, {@link #setPenState(boolean)} and
+	 * {@link #togglePen()} send the time the model gives, and SC commands
+	 * update it.
+	 *
+	 * @param timing the model, or <code>null</code> to use the firmware's default again
+	 */
+	public void setPenTiming(PenTiming timing) {
+		this.penTiming = timing;
+	}
+
+	public PenTiming getPenTiming() {
+		return penTiming;
+	}
+
+	/**
+	 * Sample telemetry in the gaps between motion commands. The samples are
+	 * taken on the threads that send the commands, one at a time.
+	 *
+	 * @param telemetry the sampler, or <code>null</code> to stop sampling
+	 */
+	public void setTelemetry(Telemetry telemetry) {
+		this.telemetry = telemetry;
+	}
+
+	/**
+	 * @return an estimate of how long the board will be busy with the motion it has already been sent, in ms
+	 */
+	public long getQueuedMillis() {
+		return Math.max(0, motionEnd.get() - System.currentTimeMillis());
+	}
+
+	/**
+	 * Note that the board has accepted a command that keeps it busy for
+	 * <code>millis</code>, and give the telemetry a chance to sample.
+	 */
+	private void queued(int millis) {
+		long now = System.currentTimeMillis();
+		long end;
+		while (true) {
+			long old = motionEnd.get();
+			end = Math.max(old, now) + millis;
+			if (motionEnd.compareAndSet(old, end))
+				break;
+		}
+		Telemetry t = telemetry;
+		// one sender samples at a time; the others carry on sending
+		if (t != null && sampling.compareAndSet(false, true)) {
+			try {
+				t.sample(this, end - now);
+			} finally {
+				sampling.set(false);
+			}
+		}
+	}
+
+	/**
+	 * Add the motor enable and microstep mode, the servo settings, the layer,
+	 * the node count and the pen state, when they are known, after the port
+	 * settings. The board's node counter changes only on SN, NI and ND, not
+	 * as moves finish, so the count kept from those is the board's own.
+	 */
+	@Override
+	protected void restoreCommands(List<String> commands) {
+		super.restoreCommands(commands);
+		if (motors != null)
+			commands.add(motors);
+		synchronized (servo) {
+			for (Map.Entry<Integer, Integer> e : servo.entrySet())
+				commands.add("SC," + e.getKey() + "," + e.getValue());
+		}
+		if (layer >= 0)
+			commands.add("SL," + layer);
+		long n = nodeCount.get();
+		if (n >= 0)
+			commands.add("SN," + n);
+		Boolean p = pen;
+		if (p != null)
+			commands.add("SP," + (p ? "1" : "0"));
+	}
+
+	@Override
+	protected int replyLines(String command) {
+		// the queries answer with a value, then OK
+		if (command.equals("QC") || command.equals("QL") || command.equals("QN") || command.equals("QB")
+				|| command.equals("QP"))
+			return 2;
+		return super.replyLines(command);
+	}
+
+	private void require(Feature feature, String command) {
+		if (!supports(feature))
+			throw new UbwException("Firmware '" + firmwareVersion() + "' does not support " + command, ErrorCode.UNKNOWN_COMMAND);
+	}
 
 	@Override
 	public int[] queryCurrent() {
+		require(Feature.QUERY_CURRENT, "QC");
 		execute("QC");
-		String[] response = readResponse().split(",");
-		int[] ret = new int[2];
-		int i = 0;
-		for (String r : response) {
-			ret[i++] = Integer.parseInt(r);
-		}
+		int[] ret = parseFields(readResponse(), 0);
 		readResponse();
 		return ret;
 	}
 
 	@Override
 	public void nodeCountIncrement() {
+		require(Feature.NODE_COUNT, "NI");
 		execute("NI");
 		readResponse();
+		countNode(1);
 	}
 
 	@Override
 	public void nodeCountDecrement() {
+		require(Feature.NODE_COUNT, "ND");
 		execute("ND");
 		readResponse();
+		countNode(-1);
+	}
+
+	/**
+	 * Follow an NI or ND on the known node count, which the board doesn't take below zero.
+	 */
+	private void countNode(int delta) {
+		while (true) {
+			long n = nodeCount.get();
+			if (n < 0 || n + delta < 0 || nodeCount.compareAndSet(n, n + delta))
+				return;
+		}
 	}
 
 	@Override
 	public void bootLoad() {
+		require(Feature.BOOT_LOAD, "BL");
 		execute("BL");
 		readResponse();
 	}
@@ -56,36 +208,46 @@ public class Ebb extends Ubw implements EbbCommand {
 	@Override
 	public void setNodeCount(long value) {
 		validateRange(value, 0L, ((long) 1 << 32) - 1L);
+		require(Feature.NODE_COUNT, "SN");
 		execute("SN," + value);
 		readResponse();
+		nodeCount.set(value);
 	}
 
 	@Override
 	public void setLayer(int layer) {
 		validateByte(layer);
+		require(Feature.LAYER, "SL");
 		execute("SL," + layer);
 		readResponse();
+		this.layer = layer;
 	}
 
 	@Override
 	public int queryLayer() {
+		require(Feature.LAYER, "QL");
 		execute("QL");
 		String s = readResponse();
 		readResponse();
-		return Integer.parseInt(s);
+		layer = Integer.parseInt(s);
+		return layer;
 	}
 
 	@Override
 	public long queryNodeCount() {
 		// Note: this will fail for unsigned values larger than Long.MAX_VALUE
+		require(Feature.NODE_COUNT, "QN");
 		execute("QN");
 		String s = readResponse();
 		readResponse();
-		return Long.parseLong(s);
+		long n = Long.parseLong(s);
+		nodeCount.set(n);
+		return n;
 	}
 
 	@Override
 	public boolean queryButton() {
+		require(Feature.LAYER, "QB");
 		execute("QB");
 		String s = readResponse();
 		readResponse();
@@ -94,23 +256,38 @@ public class Ebb extends Ubw implements EbbCommand {
 
 	@Override
 	public boolean queryPen() {
+		require(Feature.PEN_TOGGLE, "QP");
 		execute("QP");
 		String s = readResponse();
 		readResponse();
-		return s.equals("1");
+		pen = s.equals("1");
+		return pen;
 	}
 
 	@Override
 	public void togglePen() {
+		if (penTiming != null && supports(Feature.PEN_DURATION)) {
+			// not knowing which way it goes, allow for the slower
+			togglePen(pen != null ? penTiming.getMillis(!pen) : Math.max(penTiming.getUpMillis(), penTiming.getDownMillis()));
+			return;
+		}
+		require(Feature.PEN_TOGGLE, "TP");
 		execute("TP");
 		readResponse();
+		if (pen != null)
+			pen = !pen;
+		queued(Plot.DEFAULT_PEN_DURATION);
 	}
 
 	@Override
 	public void togglePen(int duration) {
 		validateRange(duration, 0, 65535);
-		execute("TP," + duration);
+		require(Feature.PEN_DURATION, "TP");
+		execute("TP", duration);
 		readResponse();
+		if (pen != null)
+			pen = !pen;
+		queued(duration);
 	}
 
 	@Override
@@ -118,20 +295,39 @@ public class Ebb extends Ubw implements EbbCommand {
 		validateRange(duration, 0, 65535);
 		validateRange(axis1, -32767, 32767);
 		validateRange(axis2, -32767, 32767);
-		execute("SM," + duration + "," + axis1 + "," + axis2);
+		execute("SM", duration, axis1, axis2);
 		readResponse();
+		queued(duration);
 	}
 
 	@Override
 	public void setPenState(boolean state) {
-		execute("SP," + (state ? "1" : "0"));
+		if (penTiming != null) {
+			setPenState(state, penTiming.getMillis(state));
+			return;
+		}
+		sendPenState(state);
+	}
+	private void sendPenState(boolean state) {
+		execute("SP", state ? 1 : 0);
 		readResponse();
+		pen = state;
+		queued(Plot.DEFAULT_PEN_DURATION);
 	}
 	@Override
 	public void setPenState(boolean state, int duration) {
 		validateRange(duration, 0, 65535);
-		execute("SP," + (state ? "1," : "0,") + duration);
-		readResponse();
+		if (supports(Feature.PEN_DURATION)) {
+			execute("SP", state ? 1 : 0, duration);
+			readResponse();
+			pen = state;
+			queued(duration);
+		} else {
+			// older firmware: the same pause as a move that goes nowhere
+			sendPenState(state);
+			if (duration > 0)
+				stepperMotorMove(duration, 0, 0);
+		}
 	}
 
 	@Override
@@ -139,18 +335,26 @@ public class Ebb extends Ubw implements EbbCommand {
 		validateRange(motor1, 0, 5);
 		validateRange(motor2, 0, 1);
 		if (motor1 > 1)
-			execute("EM," + motor1);
-		else
-			execute("EM," + motor1 + "," + motor2);
+			require(Feature.MICROSTEP_MODES, "EM," + motor1);
+		String command = motor1 > 1 ? "EM," + motor1 : "EM," + motor1 + "," + motor2;
+		execute(command);
 		readResponse();
+		motors = command;
 	}
 
     @Override
     public void servoModeConfigure(int value1, int value2) {
         validateByte(value1);
         validateRange(value2, 0, 65535);
+        if (value1 == 11 || value1 == 12)
+            require(Feature.SERVO_RATE_UP_DOWN, "SC," + value1);
+        else if (value1 == 13)
+            require(Feature.ALT_PAUSE, "SC," + value1);
         execute("SC," + value1 + "," + value2);
         readResponse();
+        servo.put(value1, value2);
+        if (penTiming != null)
+            penTiming.servoModeConfigure(value1, value2);
     }
 
 	@Override
@@ -158,6 +362,7 @@ public class Ebb extends Ubw implements EbbCommand {
 		validateRange(channel, 0, 7);
 		validateRange(duration, 0, 32000);
 		validateRange(output_pin, 0, 24);
+		require(Feature.RC_SERVO_CHANNELS, "S2");
 		execute("S2," + channel + "," + duration + "," + output_pin + "," + rate);
 		readResponse();
 	}
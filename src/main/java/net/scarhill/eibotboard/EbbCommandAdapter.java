@@ -0,0 +1,167 @@
+// Copyright (c) 2011 James Ancona. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package net.scarhill.eibotboard;
+
+/**
+ * An {@link EbbCommand} whose methods all throw
+ * {@link UnsupportedOperationException}. Extend it to implement just the
+ * commands that make sense for something that isn't a real board.
+ */
+public abstract class EbbCommandAdapter implements EbbCommand {
+
+	protected UnsupportedOperationException unsupported(String command) {
+		return new UnsupportedOperationException(command + " is not supported by " + getClass().getSimpleName());
+	}
+
+	@Override
+	public void configure(int dirA, int dirB, int dirC, int analogEnableCount) {
+		throw unsupported("C");
+	}
+	@Override
+	public void outputState(int portA, int portB, int portC) {
+		throw unsupported("O");
+	}
+	@Override
+	public int[] inputState() {
+		throw unsupported("I");
+	}
+	@Override
+	public String version() {
+		throw unsupported("V");
+	}
+	@Override
+	public void reset() {
+		throw unsupported("R");
+	}
+	@Override
+	public void timerReadInputs(int timeBetweenPacketsInMilliseconds, TimerMode mode, TimerListener listener) {
+		throw unsupported("T");
+	}
+	@Override
+	public int[] sampleAnalogInputs() {
+		throw unsupported("A");
+	}
+	@Override
+	public int memoryRead(int address) {
+		throw unsupported("MR");
+	}
+	@Override
+	public void memoryWrite(int address, int value) {
+		throw unsupported("MW");
+	}
+	@Override
+	public void pinDirection(Port port, int pin, PinDirection direction) {
+		throw unsupported("PD");
+	}
+	@Override
+	public boolean pinInput(Port port, int pin) {
+		throw unsupported("PI");
+	}
+	@Override
+	public void pinOutput(Port port, int pin, boolean value) {
+		throw unsupported("PO");
+	}
+	@Override
+	public void configure(int parameter, int value) {
+		throw unsupported("CU");
+	}
+	@Override
+	public void rcServoOutput(Port port, int pin, int value) {
+		throw unsupported("RC");
+	}
+	@Override
+	public void bulkConfigure(int init, int waitMask, int waitDelay, int strobeMask, int strobeDelay) {
+		throw unsupported("BC");
+	}
+	@Override
+	public void bulkOutput(byte[] byteStream) {
+		throw unsupported("BO");
+	}
+	@Override
+	public void bulkStream(byte[] byteStream) {
+		throw unsupported("BS");
+	}
+	@Override
+	public int[] queryCurrent() {
+		throw unsupported("QC");
+	}
+	@Override
+	public void nodeCountIncrement() {
+		throw unsupported("NI");
+	}
+	@Override
+	public void nodeCountDecrement() {
+		throw unsupported("ND");
+	}
+	@Override
+	public void bootLoad() {
+		throw unsupported("BL");
+	}
+	@Override
+	public void setNodeCount(long value) {
+		throw unsupported("SN");
+	}
+	@Override
+	public void setLayer(int layer) {
+		throw unsupported("SL");
+	}
+	@Override
+	public int queryLayer() {
+		throw unsupported("QL");
+	}
+	@Override
+	public long queryNodeCount() {
+		throw unsupported("QN");
+	}
+	@Override
+	public boolean queryButton() {
+		throw unsupported("QB");
+	}
+	@Override
+	public boolean queryPen() {
+		throw unsupported("QP");
+	}
+	@Override
+	public void togglePen() {
+		throw unsupported("TP");
+	}
+	@Override
+	public void togglePen(int duration) {
+		throw unsupported("TP");
+	}
+	@Override
+	public void stepperMotorMove(int duration, int axis1, int axis2) {
+		throw unsupported("SM");
+	}
+	@Override
+	public void setPenState(boolean state) {
+		throw unsupported("SP");
+	}
+	@Override
+	public void setPenState(boolean state, int duration) {
+		throw unsupported("SP");
+	}
+	@Override
+	public void enableMotor(int motor1, int motor2) {
+		throw unsupported("EM");
+	}
+	@Override
+	public void servoModeConfigure(int value1, int value2) {
+		throw unsupported("SC");
+	}
+	@Override
+	public void rcServoOutput(int channel, int duration, int output_pin, int rate) {
+		throw unsupported("S2");
+	}
+}
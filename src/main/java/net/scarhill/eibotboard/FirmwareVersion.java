@@ -0,0 +1,152 @@
+// Copyright (c) 2011 James Ancona. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package net.scarhill.eibotboard;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A parsed firmware version string, as returned by {@link UbwCommand#version()},
+ * e.g. "EBBv13_and_above EB Firmware Version 2.0.1" or "UBW FW D Version 1.4.0".
+ * It knows which of the optional EBB commands the firmware supports.
+ */
+public class FirmwareVersion implements Comparable<FirmwareVersion> {
+	private static final Pattern VERSION = Pattern.compile("Version\\s+(\\d+)\\.(\\d+)(?:\\.(\\d+))?");
+
+	/**
+	 * Commands and parameters that were added to the EBB firmware after the
+	 * first release, with the first version that has them.
+	 */
+	public enum Feature {
+		/** TP and QP */
+		PEN_TOGGLE(1, 9, 0),
+		/** the <code>duration</code> parameter of SP and TP */
+		PEN_DURATION(1, 9, 0),
+		/** microstep modes 2 to 5 for EM */
+		MICROSTEP_MODES(1, 9, 0),
+		/** SL, QL and QB */
+		LAYER(1, 9, 2),
+		/** SC,11 and SC,12 */
+		SERVO_RATE_UP_DOWN(1, 9, 2),
+		/** SN, QN, NI and ND */
+		NODE_COUNT(1, 9, 5),
+		/** BL */
+		BOOT_LOAD(1, 9, 5),
+		/** SC,13 */
+		ALT_PAUSE(2, 0, 0),
+		/** S2 */
+		RC_SERVO_CHANNELS(2, 2, 0),
+		/** QC */
+		QUERY_CURRENT(2, 2, 3);
+
+		private final int major;
+		private final int minor;
+		private final int patch;
+
+		private Feature(int major, int minor, int patch) {
+			this.major = major;
+			this.minor = minor;
+			this.patch = patch;
+		}
+	}
+
+	private final String versionString;
+	private final boolean ebb;
+	private final int major;
+	private final int minor;
+	private final int patch;
+	private final boolean known;
+
+	public FirmwareVersion(String versionString) {
+		this.versionString = versionString;
+		ebb = !versionString.startsWith("UBW");
+		Matcher m = VERSION.matcher(versionString);
+		known = m.find();
+		if (known) {
+			major = Integer.parseInt(m.group(1));
+			minor = Integer.parseInt(m.group(2));
+			patch = m.group(3) == null ? 0 : Integer.parseInt(m.group(3));
+		} else {
+			major = minor = patch = 0;
+		}
+	}
+
+	/**
+	 * @return <code>true</code> if the firmware has <code>feature</code>. If the
+	 * version string couldn't be parsed, every feature is assumed to be there
+	 * and it is left to the board to reject what it doesn't know.
+	 */
+	public boolean supports(Feature feature) {
+		if (!known)
+			return true;
+		return ebb && atLeast(feature.major, feature.minor, feature.patch);
+	}
+
+	public boolean atLeast(int major, int minor, int patch) {
+		if (this.major != major)
+			return this.major > major;
+		if (this.minor != minor)
+			return this.minor > minor;
+		return this.patch >= patch;
+	}
+
+	/**
+	 * @return <code>true</code> for an EBB, <code>false</code> for a UBW
+	 */
+	public boolean isEbb() {
+		return ebb;
+	}
+	/**
+	 * @return <code>false</code> if no version number could be found in the version string
+	 */
+	public boolean isKnown() {
+		return known;
+	}
+	public int getMajor() {
+		return major;
+	}
+	public int getMinor() {
+		return minor;
+	}
+	public int getPatch() {
+		return patch;
+	}
+	public String getVersionString() {
+		return versionString;
+	}
+
+	@Override
+	public int compareTo(FirmwareVersion o) {
+		if (major != o.major)
+			return major < o.major ? -1 : 1;
+		if (minor != o.minor)
+			return minor < o.minor ? -1 : 1;
+		return patch < o.patch ? -1 : (patch == o.patch ? 0 : 1);
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		return o instanceof FirmwareVersion && ((FirmwareVersion) o).versionString.equals(versionString);
+	}
+
+	@Override
+	public int hashCode() {
+		return versionString.hashCode();
+	}
+
+	@Override
+	public String toString() {
+		return versionString;
+	}
+}
@@ -0,0 +1,174 @@
+// Copyright (c) 2011 James Ancona. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package net.scarhill.eibotboard;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Reads the subset of G-code that plotter tool chains produce and passes it to
+ * a {@link PathSink} one line at a time:
+ * <ul>
+ * <li>G0 (travel, pen up) and G1 (draw, pen down), with X and Y</li>
+ * <li>G2 and G3 (clockwise and counterclockwise arcs) with X, Y, I and J,
+ * flattened into lines within <code>tolerance</code> millimeters</li>
+ * <li>G20 and G21 (inches and millimeters) and G90 and G91 (absolute and
+ * relative coordinates)</li>
+ * <li>M3 and M5, or a Z word, to lower and raise the pen: while the pen is up
+ * G1 moves travel, and while it is down G0 moves draw</li>
+ * </ul>
+ * Motion commands are modal, comments in parentheses or after a semicolon are
+ * skipped and other words (F, feed rates, tool changes) are ignored, since the
+ * speeds are set where the drawing is converted to steps. Coordinates are
+ * passed on in millimeters.
+ */
+public class GcodeReader {
+	private final BufferedReader in;
+	private final PathSink sink;
+	private double tolerance = 0.01;
+	private double scale = 1;
+	private boolean relative;
+	private int motion = 0;
+	private Boolean penDown;
+	private double x;
+	private double y;
+	private long lineNumber;
+
+	public GcodeReader(Reader in, PathSink sink) {
+		this.in = in instanceof BufferedReader ? (BufferedReader) in : new BufferedReader(in);
+		this.sink = sink;
+	}
+
+	/**
+	 * @param tolerance the largest distance, in millimeters, between an arc and the lines that replace it
+	 */
+	public void setTolerance(double tolerance) {
+		if (!(tolerance > 0))
+			throw new IllegalArgumentException("Value '" + tolerance + "' must be greater than 0.");
+		this.tolerance = tolerance;
+	}
+
+	/**
+	 * Read the whole program, then call {@link PathSink#end()}. The reader is
+	 * not closed.
+	 */
+	public void read() throws IOException {
+		String line;
+		while ((line = in.readLine()) != null) {
+			lineNumber++;
+			line(line);
+		}
+		sink.end();
+	}
+
+	private void line(String line) throws IOException {
+		double newX = Double.NaN, newY = Double.NaN, i = 0, j = 0;
+		int lineMotion = motion;
+		int n = line.length();
+		int p = 0;
+		while (p < n) {
+			char c = Character.toUpperCase(line.charAt(p));
+			if (c == ';')
+				break;
+			if (c == '(') {
+				int close = line.indexOf(')', p);
+				p = close < 0 ? n : close + 1;
+				continue;
+			}
+			if (!Character.isLetter(c)) {
+				p++;
+				continue;
+			}
+			int start = ++p;
+			while (p < n && (Character.isDigit(line.charAt(p)) || "+-. ".indexOf(line.charAt(p)) >= 0))
+				p++;
+			double value;
+			try {
+				value = Double.parseDouble(line.substring(start, p).replace(" ", ""));
+			} catch (NumberFormatException e) {
+				throw new IOException("Invalid word '" + line.substring(start - 1, p).trim() + "' on line " + lineNumber);
+			}
+			switch (c) {
+			case 'G':
+				int g = (int) value;
+				if (g >= 0 && g <= 3)
+					lineMotion = g;
+				else if (g == 20)
+					scale = 25.4;
+				else if (g == 21)
+					scale = 1;
+				else if (g == 90)
+					relative = false;
+				else if (g == 91)
+					relative = true;
+				break;
+			case 'M':
+				if (value == 3 || value == 4)
+					penDown = Boolean.TRUE;
+				else if (value == 5)
+					penDown = Boolean.FALSE;
+				break;
+			case 'X':
+				newX = value * scale;
+				break;
+			case 'Y':
+				newY = value * scale;
+				break;
+			case 'Z':
+				penDown = value <= 0;
+				break;
+			case 'I':
+				i = value * scale;
+				break;
+			case 'J':
+				j = value * scale;
+				break;
+			}
+		}
+		motion = lineMotion;
+		if (Double.isNaN(newX) && Double.isNaN(newY))
+			return;
+		double toX = Double.isNaN(newX) ? x : (relative ? x + newX : newX);
+		double toY = Double.isNaN(newY) ? y : (relative ? y + newY : newY);
+		boolean draw = penDown != null ? penDown.booleanValue() : motion != 0;
+		if (!draw) {
+			sink.moveTo(toX, toY);
+		} else if (motion == 2 || motion == 3) {
+			arc(x + i, y + j, toX, toY, motion == 2);
+		} else {
+			sink.lineTo(toX, toY);
+		}
+		x = toX;
+		y = toY;
+	}
+
+	private void arc(double cx, double cy, double toX, double toY, boolean clockwise) {
+		double r = Math.hypot(x - cx, y - cy);
+		double start = Math.atan2(y - cy, x - cx);
+		double delta = Math.atan2(toY - cy, toX - cx) - start;
+		// G-code's y axis points up, so clockwise is a negative angle
+		if (clockwise && delta >= 0)
+			delta -= 2 * Math.PI;
+		else if (!clockwise && delta <= 0)
+			delta += 2 * Math.PI;
+		double step = r > tolerance ? 2 * Math.acos(1 - tolerance / r) : Math.PI / 2;
+		int n = (int) Math.min(10000, Math.max(1, Math.ceil(Math.abs(delta) / step)));
+		for (int k = 1; k < n; k++) {
+			double a = start + delta * k / n;
+			sink.lineTo(cx + r * Math.cos(a), cy + r * Math.sin(a));
+		}
+		sink.lineTo(toX, toY);
+	}
+}
@@ -0,0 +1,317 @@
+// Copyright (c) 2011 James Ancona. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package net.scarhill.eibotboard;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Divides a {@link Plot} into segments at its SL commands, recording where
+ * each segment starts and ends and what it does, so that one layer or a few
+ * of them can be plotted without going through the rest.
+ * <p>
+ * For each segment the index holds its layer, byte offsets, duration, the
+ * distance drawn and travelled in steps, the number of pen lifts, and the
+ * carriage position and pen state at its start and end. {@link #play(Plot,
+ * EbbCommand, int, int...)} uses those to go straight from one selected
+ * segment to the next with a single pen up move. The carriage is expected to
+ * start at the position the plot starts from, with the pen up.
+ */
+public class LayerIndex {
+	/** the encoded length of one segment */
+	static final int ENTRY = 73;
+
+	private static final int PEN_UP_AT_START = 1;
+	private static final int PEN_UP_AT_END = 2;
+	private static final int SETTINGS = 4;
+	private static final int STARTS_WITH_SL = 8;
+
+	private final int count;
+	private final int[] layer;
+	private final int[] from;
+	private final int[] to;
+	private final long[] millis;
+	private final long[] drawSteps;
+	private final long[] travelSteps;
+	private final int[] penLifts;
+	private final long[] startX;
+	private final long[] startY;
+	private final long[] endX;
+	private final long[] endY;
+	private final byte[] flags;
+
+	private LayerIndex(int count) {
+		this.count = count;
+		layer = new int[count];
+		from = new int[count];
+		to = new int[count];
+		millis = new long[count];
+		drawSteps = new long[count];
+		travelSteps = new long[count];
+		penLifts = new int[count];
+		startX = new long[count];
+		startY = new long[count];
+		endX = new long[count];
+		endY = new long[count];
+		flags = new byte[count];
+	}
+
+	/**
+	 * Index <code>plot</code> by running through it once.
+	 */
+	public static LayerIndex build(Plot plot) {
+		int segments = 0;
+		for (int offset = 0; offset < plot.size(); offset = plot.next(offset)) {
+			if (offset == 0 || plot.opcode(offset) == Plot.SL)
+				segments++;
+		}
+		LayerIndex index = new LayerIndex(segments);
+		DryRun state = new DryRun();
+		int i = -1;
+		double draw = 0;
+		double travel = 0;
+		for (int offset = 0; offset < plot.size();) {
+			byte op = plot.opcode(offset);
+			if (offset == 0 || op == Plot.SL) {
+				if (i >= 0)
+					index.end(i, state, offset, draw, travel);
+				i++;
+				draw = 0;
+				travel = 0;
+				index.layer[i] = op == Plot.SL ? plot.u8(offset + 1) : state.queryLayer();
+				index.from[i] = offset;
+				index.millis[i] = state.getTotalMillis();
+				index.startX[i] = state.getX();
+				index.startY[i] = state.getY();
+				index.flags[i] = (byte) ((state.queryPen() == Plot.PEN_UP ? PEN_UP_AT_START : 0)
+						| (op == Plot.SL ? STARTS_WITH_SL : 0));
+			}
+			if (op == Plot.SM) {
+				double distance = Math.hypot(plot.s16(offset + 3), plot.s16(offset + 5));
+				if (state.queryPen() == Plot.PEN_UP)
+					travel += distance;
+				else
+					draw += distance;
+			} else if (op == Plot.EM || op == Plot.SC || op == Plot.S2) {
+				index.flags[i] |= SETTINGS;
+			}
+			boolean pen = state.queryPen();
+			offset = plot.play(state, offset);
+			if (pen != Plot.PEN_UP && state.queryPen() == Plot.PEN_UP)
+				index.penLifts[i]++;
+		}
+		if (i >= 0)
+			index.end(i, state, plot.size(), draw, travel);
+		return index;
+	}
+
+	private void end(int i, DryRun state, int offset, double draw, double travel) {
+		to[i] = offset;
+		millis[i] = state.getTotalMillis() - millis[i];
+		drawSteps[i] = Math.round(draw);
+		travelSteps[i] = Math.round(travel);
+		endX[i] = state.getX();
+		endY[i] = state.getY();
+		if (state.queryPen() == Plot.PEN_UP)
+			flags[i] |= PEN_UP_AT_END;
+	}
+
+	/**
+	 * @return the number of segments, one for each SL command plus one for any commands before the first
+	 */
+	public int getSegmentCount() {
+		return count;
+	}
+	public int getLayer(int segment) {
+		return layer[segment];
+	}
+	/**
+	 * @return the offset of the first command of a segment
+	 */
+	public int getFrom(int segment) {
+		return from[segment];
+	}
+	/**
+	 * @return the offset just past the last command of a segment
+	 */
+	public int getTo(int segment) {
+		return to[segment];
+	}
+	public long getMillis(int segment) {
+		return millis[segment];
+	}
+	public long getDrawSteps(int segment) {
+		return drawSteps[segment];
+	}
+	public long getTravelSteps(int segment) {
+		return travelSteps[segment];
+	}
+	public int getPenLifts(int segment) {
+		return penLifts[segment];
+	}
+
+	/**
+	 * @return the layers in the plot, in ascending order
+	 */
+	public int[] getLayers() {
+		int[] layers = Arrays.copyOf(layer, count);
+		Arrays.sort(layers);
+		int n = 0;
+		for (int i = 0; i < layers.length; i++) {
+			if (n == 0 || layers[i] != layers[n - 1])
+				layers[n++] = layers[i];
+		}
+		return Arrays.copyOf(layers, n);
+	}
+
+	/**
+	 * @return the offset where <code>layer</code> first starts, or -1 if the plot doesn't use it
+	 */
+	public int getLayerOffset(int layer) {
+		for (int i = 0; i < count; i++) {
+			if (this.layer[i] == layer)
+				return from[i];
+		}
+		return -1;
+	}
+
+	public long getLayerMillis(int layer) {
+		long total = 0;
+		for (int i = 0; i < count; i++) {
+			if (this.layer[i] == layer)
+				total += millis[i];
+		}
+		return total;
+	}
+
+	public long getLayerDrawSteps(int layer) {
+		long total = 0;
+		for (int i = 0; i < count; i++) {
+			if (this.layer[i] == layer)
+				total += drawSteps[i];
+		}
+		return total;
+	}
+
+	public long getLayerTravelSteps(int layer) {
+		long total = 0;
+		for (int i = 0; i < count; i++) {
+			if (this.layer[i] == layer)
+				total += travelSteps[i];
+		}
+		return total;
+	}
+
+	public int getLayerPenLifts(int layer) {
+		int total = 0;
+		for (int i = 0; i < count; i++) {
+			if (this.layer[i] == layer)
+				total += penLifts[i];
+		}
+		return total;
+	}
+
+	/**
+	 * Play only the segments of <code>plot</code> on the given layers, in plot
+	 * order. Before each segment that doesn't follow on from the one before, the
+	 * pen is raised and the carriage travels to where the segment starts; the
+	 * board's layer is set to each segment's layer, and motor and servo settings
+	 * made in skipped segments are still sent. The pen is raised at the end, and
+	 * the carriage left where the last played segment ends.
+	 *
+	 * @param travelSpeed the speed of the moves between segments, in steps per second
+	 */
+	public void play(Plot plot, EbbCommand board, int travelSpeed, int... layers) {
+		long x = 0;
+		long y = 0;
+		boolean pen = Plot.PEN_UP;
+		int boardLayer = -1;
+		for (int i = 0; i < count; i++) {
+			if (!contains(layers, layer[i])) {
+				if ((flags[i] & SETTINGS) != 0)
+					playSettings(plot, board, i);
+				continue;
+			}
+			if (x != startX[i] || y != startY[i]) {
+				if (pen != Plot.PEN_UP) {
+					board.setPenState(Plot.PEN_UP);
+					pen = Plot.PEN_UP;
+				}
+				Moves.travel(board, startX[i] - x, startY[i] - y, travelSpeed);
+			}
+			boolean penAtStart = (flags[i] & PEN_UP_AT_START) != 0 ? Plot.PEN_UP : !Plot.PEN_UP;
+			if (pen != penAtStart)
+				board.setPenState(penAtStart);
+			if ((flags[i] & STARTS_WITH_SL) == 0 && boardLayer != layer[i])
+				board.setLayer(layer[i]);
+			plot.play(board, from[i], to[i]);
+			x = endX[i];
+			y = endY[i];
+			pen = (flags[i] & PEN_UP_AT_END) != 0 ? Plot.PEN_UP : !Plot.PEN_UP;
+			boardLayer = layer[i];
+		}
+		if (pen != Plot.PEN_UP)
+			board.setPenState(Plot.PEN_UP);
+	}
+
+	private static boolean contains(int[] layers, int layer) {
+		for (int l : layers) {
+			if (l == layer)
+				return true;
+		}
+		return false;
+	}
+
+	private void playSettings(Plot plot, EbbCommand board, int segment) {
+		for (int offset = from[segment]; offset < to[segment]; offset = plot.next(offset)) {
+			byte op = plot.opcode(offset);
+			if (op == Plot.EM || op == Plot.SC || op == Plot.S2)
+				plot.play(board, offset);
+		}
+	}
+
+	/**
+	 * @return the number of bytes {@link #write(ByteBuffer)} puts
+	 */
+	int encodedLength() {
+		return count * ENTRY;
+	}
+
+	void write(ByteBuffer b) {
+		for (int i = 0; i < count; i++) {
+			b.putInt(layer[i]).putInt(from[i]).putInt(to[i]).putLong(millis[i]).putLong(drawSteps[i])
+					.putLong(travelSteps[i]).putInt(penLifts[i]).putLong(startX[i]).putLong(startY[i])
+					.putLong(endX[i]).putLong(endY[i]).put(flags[i]);
+		}
+	}
+
+	static LayerIndex read(ByteBuffer b, int count) {
+		LayerIndex index = new LayerIndex(count);
+		for (int i = 0; i < count; i++) {
+			index.layer[i] = b.getInt();
+			index.from[i] = b.getInt();
+			index.to[i] = b.getInt();
+			index.millis[i] = b.getLong();
+			index.drawSteps[i] = b.getLong();
+			index.travelSteps[i] = b.getLong();
+			index.penLifts[i] = b.getInt();
+			index.startX[i] = b.getLong();
+			index.startY[i] = b.getLong();
+			index.endX[i] = b.getLong();
+			index.endY[i] = b.getLong();
+			index.flags[i] = b.get();
+		}
+		return index;
+	}
+}
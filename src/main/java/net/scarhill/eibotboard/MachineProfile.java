@@ -0,0 +1,199 @@
+// Copyright (c) 2011 James Ancona. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package net.scarhill.eibotboard;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * The machine settings a compiled plot depends on: the microstep mode set with
+ * {@link EbbCommand#enableMotor(int, int)}, the servo settings made with
+ * {@link EbbCommand#servoModeConfigure(int, int)}, the scale, the origin, the
+ * speed limits and the pen timing. Two compilations of the same drawing with
+ * compilers from {@link #newCompiler()} give the same plot if and only if
+ * their profiles are equal, which is what lets a {@link PlanCache} reuse
+ * plots.
+ */
+public class MachineProfile {
+	private int microstepMode = 1;
+	private final SortedMap<Integer, Integer> servo = new TreeMap<Integer, Integer>();
+	private double stepsPerUnit = 1;
+	private double originX;
+	private double originY;
+	private int drawSpeed = 1000;
+	private int travelSpeed = 3000;
+	private int penUpDuration = Plot.DEFAULT_PEN_DURATION;
+	private int penDownDuration = Plot.DEFAULT_PEN_DURATION;
+	private double tolerance = -1;
+	private PenTiming penTiming;
+
+	public int getMicrostepMode() {
+		return microstepMode;
+	}
+	/**
+	 * @param mode the first argument of the EM command that sets the microstep mode, 1 to 5
+	 */
+	public void setMicrostepMode(int mode) {
+		this.microstepMode = mode;
+	}
+
+	/**
+	 * @return the SC settings, by parameter number
+	 */
+	public SortedMap<Integer, Integer> getServoSettings() {
+		return servo;
+	}
+	/**
+	 * Record an SC setting, as sent with {@link EbbCommand#servoModeConfigure(int, int)}.
+	 */
+	public void setServo(int parameter, int value) {
+		servo.put(parameter, value);
+	}
+
+	public double getStepsPerUnit() {
+		return stepsPerUnit;
+	}
+	public void setStepsPerUnit(double stepsPerUnit) {
+		this.stepsPerUnit = stepsPerUnit;
+	}
+	public double getOriginX() {
+		return originX;
+	}
+	public double getOriginY() {
+		return originY;
+	}
+	/**
+	 * @see PlotCompiler#setOrigin(double, double)
+	 */
+	public void setOrigin(double x, double y) {
+		this.originX = x;
+		this.originY = y;
+	}
+	public int getDrawSpeed() {
+		return drawSpeed;
+	}
+	public void setDrawSpeed(int stepsPerSecond) {
+		this.drawSpeed = stepsPerSecond;
+	}
+	public int getTravelSpeed() {
+		return travelSpeed;
+	}
+	public void setTravelSpeed(int stepsPerSecond) {
+		this.travelSpeed = stepsPerSecond;
+	}
+	public int getPenUpDuration() {
+		return penUpDuration;
+	}
+	public int getPenDownDuration() {
+		return penDownDuration;
+	}
+	public void setPenDurations(int up, int down) {
+		this.penUpDuration = up;
+		this.penDownDuration = down;
+	}
+	public PenTiming getPenTiming() {
+		return penTiming;
+	}
+	/**
+	 * @param timing the pen timing, or <code>null</code> to use the fixed pen durations
+	 */
+	public void setPenTiming(PenTiming timing) {
+		this.penTiming = timing;
+	}
+	public double getTolerance() {
+		return tolerance;
+	}
+	/**
+	 * @param tolerance the simplification tolerance in drawing units, or a negative value not to simplify
+	 */
+	public void setTolerance(double tolerance) {
+		this.tolerance = tolerance;
+	}
+
+	/**
+	 * @return a compiler for this machine. Compile plots to be cached under
+	 *         this profile with it, since the scale can't be changed later.
+	 */
+	public PlotCompiler newCompiler() {
+		PlotCompiler compiler = new PlotCompiler(stepsPerUnit);
+		compiler.setDrawSpeed(drawSpeed);
+		compiler.setTravelSpeed(travelSpeed);
+		compiler.setOrigin(originX, originY);
+		compiler.setPenDurations(penUpDuration, penDownDuration);
+		compiler.setPenTiming(penTiming);
+		compiler.setTolerance(tolerance);
+		return compiler;
+	}
+
+	/**
+	 * Add the profile to a digest, field by field in a fixed order, after the
+	 * {@link PlotCompiler#VERSION} the plots are compiled with.
+	 */
+	public void digest(MessageDigest digest) {
+		ByteBuffer b = ByteBuffer.allocate(68 + 8 * servo.size());
+		b.putInt(PlotCompiler.VERSION);
+		b.putInt(microstepMode).putDouble(stepsPerUnit).putDouble(originX).putDouble(originY).putInt(drawSpeed)
+				.putInt(travelSpeed).putInt(penUpDuration).putInt(penDownDuration).putDouble(tolerance)
+				.putInt(servo.size());
+		for (Map.Entry<Integer, Integer> e : servo.entrySet())
+			b.putInt(e.getKey()).putInt(e.getValue());
+		digest.update(b.array(), 0, b.position());
+		digest.update(timing(penTiming));
+	}
+
+	/**
+	 * @return the pen timing settings, or nothing if there is no pen timing
+	 */
+	private static byte[] timing(PenTiming timing) {
+		if (timing == null)
+			return new byte[1];
+		ByteBuffer b = ByteBuffer.allocate(64);
+		b.put((byte) 1);
+		timing.write(b);
+		return Arrays.copyOf(b.array(), b.position());
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (!(o instanceof MachineProfile))
+			return false;
+		MachineProfile p = (MachineProfile) o;
+		return microstepMode == p.microstepMode && servo.equals(p.servo)
+				&& Double.compare(stepsPerUnit, p.stepsPerUnit) == 0 && Double.compare(originX, p.originX) == 0
+				&& Double.compare(originY, p.originY) == 0 && drawSpeed == p.drawSpeed
+				&& travelSpeed == p.travelSpeed && penUpDuration == p.penUpDuration
+				&& penDownDuration == p.penDownDuration && Double.compare(tolerance, p.tolerance) == 0
+				&& Arrays.equals(timing(penTiming), timing(p.penTiming));
+	}
+
+	@Override
+	public int hashCode() {
+		int h = microstepMode;
+		h = 31 * h + servo.hashCode();
+		h = 31 * h + (int) Double.doubleToLongBits(stepsPerUnit);
+		h = 31 * h + drawSpeed;
+		h = 31 * h + travelSpeed;
+		h = 31 * h + penUpDuration;
+		h = 31 * h + penDownDuration;
+		h = 31 * h + (int) Double.doubleToLongBits(originX);
+		h = 31 * h + (int) Double.doubleToLongBits(originY);
+		h = 31 * h + (int) Double.doubleToLongBits(tolerance);
+		h = 31 * h + Arrays.hashCode(timing(penTiming));
+		return h;
+	}
+}
@@ -0,0 +1,58 @@
+// Copyright (c) 2011 James Ancona. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package net.scarhill.eibotboard;
+
+/**
+ * Helpers for generating moves.
+ */
+public final class Moves {
+	/** the largest number of steps a single SM can make on one axis */
+	public static final int MAX_STEPS = 32767;
+	/** the longest duration of a single SM */
+	public static final int MAX_DURATION = 65535;
+
+	private Moves() {
+	}
+
+	/**
+	 * Move the carriage by an arbitrary distance in a straight line at
+	 * <code>stepsPerSecond</code>, splitting it into as many SM commands as the
+	 * EBB's limits require. The pen is left as it is.
+	 *
+	 * @return the number of SM commands sent
+	 */
+	public static int travel(EbbCommand board, long dx, long dy, int stepsPerSecond) {
+		if (stepsPerSecond < 1)
+			throw new IllegalArgumentException("Value '" + stepsPerSecond + "' must be at least 1.");
+		long steps = Math.max(Math.abs(dx), Math.abs(dy));
+		if (steps == 0)
+			return 0;
+		long millis = Math.max(1, (steps * 1000 + stepsPerSecond - 1) / stepsPerSecond);
+		long pieces = Math.max((steps + MAX_STEPS - 1) / MAX_STEPS, (millis + MAX_DURATION - 1) / MAX_DURATION);
+		long doneX = 0;
+		long doneY = 0;
+		long doneMillis = 0;
+		for (long i = 1; i <= pieces; i++) {
+			// end points are rounded from the exact line, so the pieces add up exactly
+			long toX = dx * i / pieces;
+			long toY = dy * i / pieces;
+			long toMillis = millis * i / pieces;
+			board.stepperMotorMove((int) Math.max(1, toMillis - doneMillis), (int) (toX - doneX), (int) (toY - doneY));
+			doneX = toX;
+			doneY = toY;
+			doneMillis = toMillis;
+		}
+		return (int) pieces;
+	}
+}
@@ -0,0 +1,171 @@
+// Copyright (c) 2011 James Ancona. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package net.scarhill.eibotboard;
+
+/**
+ * A {@link PathSink} that removes points which don't change the drawing by
+ * more than <code>tolerance</code> before passing it on, using the
+ * Douglas-Peucker algorithm. Runs of collinear points and repeated points are
+ * the simplest case and always collapse to a single line.
+ * <p>
+ * Each stroke is buffered until it ends, up to <code>maxPoints</code>; a
+ * longer stroke is simplified in pieces of that many points, so memory stays
+ * bounded. Put it in front of a {@link StepEmitter} with a tolerance of half a
+ * step in drawing units (<code>0.5 / stepsPerUnit</code>) to drop every point
+ * that makes no visible difference.
+ */
+public class PathSimplifier implements PathSink {
+	private final PathSink next;
+	private final double tolerance;
+	private final int maxPoints;
+	private final double[] xs;
+	private final double[] ys;
+	private final boolean[] keep;
+	private final int[] stack;
+	private int n;
+	private long pointsIn;
+	private long pointsOut;
+
+	/**
+	 * @param tolerance the largest distance, in drawing units, a removed point may be from the simplified line
+	 */
+	public PathSimplifier(PathSink next, double tolerance) {
+		this(next, tolerance, 8192);
+	}
+
+	public PathSimplifier(PathSink next, double tolerance, int maxPoints) {
+		if (tolerance < 0)
+			throw new IllegalArgumentException("Value '" + tolerance + "' must be at least 0.");
+		if (maxPoints < 2)
+			throw new IllegalArgumentException("Value '" + maxPoints + "' must be at least 2.");
+		this.next = next;
+		this.tolerance = tolerance;
+		this.maxPoints = maxPoints;
+		xs = new double[maxPoints];
+		ys = new double[maxPoints];
+		keep = new boolean[maxPoints];
+		stack = new int[2 * maxPoints];
+	}
+
+	/**
+	 * @return the number of points received
+	 */
+	public long getPointsIn() {
+		return pointsIn;
+	}
+
+	/**
+	 * @return the number of points passed on
+	 */
+	public long getPointsOut() {
+		return pointsOut;
+	}
+
+	@Override
+	public void moveTo(double x, double y) {
+		flush();
+		pointsIn++;
+		pointsOut++;
+		next.moveTo(x, y);
+		n = 0;
+		add(x, y);
+	}
+
+	@Override
+	public void lineTo(double x, double y) {
+		pointsIn++;
+		if (n > 0 && xs[n - 1] == x && ys[n - 1] == y)
+			return;
+		if (n == 0) {
+			// a line with no moveto before it starts at the origin
+			add(0, 0);
+		}
+		add(x, y);
+		if (n == maxPoints) {
+			flush();
+			// carry on from the last point
+			xs[0] = x;
+			ys[0] = y;
+			n = 1;
+		}
+	}
+
+	@Override
+	public void end() {
+		flush();
+		n = 0;
+		next.end();
+	}
+
+	private void add(double x, double y) {
+		xs[n] = x;
+		ys[n] = y;
+		n++;
+	}
+
+	/**
+	 * Simplify the buffered points and pass on all but the first, which has
+	 * already been passed on.
+	 */
+	private void flush() {
+		if (n < 2)
+			return;
+		for (int i = 0; i < n; i++)
+			keep[i] = false;
+		keep[0] = true;
+		keep[n - 1] = true;
+		int top = 0;
+		stack[top++] = 0;
+		stack[top++] = n - 1;
+		while (top > 0) {
+			int last = stack[--top];
+			int first = stack[--top];
+			int farthest = -1;
+			double max = tolerance;
+			for (int i = first + 1; i < last; i++) {
+				double d = distance(i, first, last);
+				if (d > max) {
+					max = d;
+					farthest = i;
+				}
+			}
+			if (farthest >= 0) {
+				keep[farthest] = true;
+				stack[top++] = first;
+				stack[top++] = farthest;
+				stack[top++] = farthest;
+				stack[top++] = last;
+			}
+		}
+		for (int i = 1; i < n; i++) {
+			if (keep[i]) {
+				pointsOut++;
+				next.lineTo(xs[i], ys[i]);
+			}
+		}
+	}
+
+	/**
+	 * @return the distance of point <code>i</code> from the segment between points <code>a</code> and <code>b</code>
+	 */
+	private double distance(int i, int a, int b) {
+		double dx = xs[b] - xs[a];
+		double dy = ys[b] - ys[a];
+		double px = xs[i] - xs[a];
+		double py = ys[i] - ys[a];
+		double length2 = dx * dx + dy * dy;
+		double t = length2 == 0 ? 0 : Math.max(0, Math.min(1, (px * dx + py * dy) / length2));
+		return Math.hypot(px - t * dx, py - t * dy);
+	}
+}
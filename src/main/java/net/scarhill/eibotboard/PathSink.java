@@ -0,0 +1,35 @@
+// Copyright (c) 2011 James Ancona. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package net.scarhill.eibotboard;
+
+/**
+ * Receives a drawing as a stream of straight lines, one point at a time. The
+ * readers ({@link SvgPathReader}, {@link GcodeReader}) push points into a
+ * sink as soon as they have parsed them, and sinks can be chained, so a whole
+ * pipeline runs in constant memory however large the input is.
+ */
+public interface PathSink {
+	/**
+	 * Start a new stroke at (x, y), moving there with the pen up.
+	 */
+	void moveTo(double x, double y);
+	/**
+	 * Draw a straight line from the current point to (x, y) with the pen down.
+	 */
+	void lineTo(double x, double y);
+	/**
+	 * The drawing is complete.
+	 */
+	void end();
+}
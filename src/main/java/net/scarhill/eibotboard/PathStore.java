@@ -0,0 +1,272 @@
+// Copyright (c) 2011 James Ancona. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package net.scarhill.eibotboard;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A {@link PathSink} that keeps a whole drawing outside the Java heap, so that
+ * drawings of millions of points can be held for the stages that need all of
+ * them (optimization, chunking for a {@link PlotCompiler}) without creating
+ * an object per point or adding to garbage collection pauses.
+ * <p>
+ * Coordinates are stored as pairs of doubles in fixed size segments of direct
+ * memory, or of a memory-mapped file if one is given. A stroke is the points
+ * from a {@link #moveTo(double, double)} up to the next one, and only the index
+ * of each stroke's first point is kept; whether the pen is down at a point
+ * follows from that. Points are read through a {@link Cursor} or replayed into
+ * another sink, straight from the store. Once the drawing has been written any
+ * number of threads may read it at once.
+ */
+public class PathStore implements PathSink, Closeable {
+	private static final int DEFAULT_SEGMENT_POINTS = 1 << 20;
+
+	private final int segmentPoints;
+	private final RandomAccessFile file;
+	private final List<DoubleBuffer> segments = new ArrayList<DoubleBuffer>();
+	private long points;
+	private long[] strokes = new long[64];
+	private int strokeCount;
+
+	/**
+	 * Create a store in direct memory.
+	 */
+	public PathStore() {
+		this.segmentPoints = DEFAULT_SEGMENT_POINTS;
+		this.file = null;
+	}
+
+	/**
+	 * Create a store backed by <code>file</code>, which is overwritten.
+	 */
+	public PathStore(File file) throws IOException {
+		this(file, DEFAULT_SEGMENT_POINTS);
+	}
+
+	/**
+	 * @param file the file to map, or <code>null</code> for direct memory
+	 * @param segmentPoints the number of points in each block of storage
+	 */
+	PathStore(File file, int segmentPoints) throws IOException {
+		this.segmentPoints = segmentPoints;
+		if (file != null) {
+			this.file = new RandomAccessFile(file, "rw");
+			this.file.setLength(0);
+		} else {
+			this.file = null;
+		}
+	}
+
+	@Override
+	public void moveTo(double x, double y) {
+		if (strokeCount == strokes.length)
+			strokes = Arrays.copyOf(strokes, strokeCount * 2);
+		strokes[strokeCount++] = points;
+		add(x, y);
+	}
+
+	@Override
+	public void lineTo(double x, double y) {
+		if (strokeCount == 0)
+			moveTo(0, 0);
+		add(x, y);
+	}
+
+	@Override
+	public void end() {
+	}
+
+	private void add(double x, double y) {
+		int segment = (int) (points / segmentPoints);
+		if (segment == segments.size())
+			segments.add(allocate(segment));
+		int i = (int) (points % segmentPoints) * 2;
+		DoubleBuffer b = segments.get(segment);
+		b.put(i, x);
+		b.put(i + 1, y);
+		points++;
+	}
+
+	private DoubleBuffer allocate(int segment) {
+		long bytes = (long) segmentPoints * 16;
+		if (file == null)
+			return ByteBuffer.allocateDirect((int) bytes).asDoubleBuffer();
+		try {
+			return file.getChannel().map(FileChannel.MapMode.READ_WRITE, segment * bytes, bytes).asDoubleBuffer();
+		} catch (IOException e) {
+			throw new UbwException("Unable to extend path store", e, UbwException.ErrorCode.COMM_ERROR);
+		}
+	}
+
+	public long getPointCount() {
+		return points;
+	}
+
+	public int getStrokeCount() {
+		return strokeCount;
+	}
+
+	/**
+	 * @return the index of the first point of a stroke
+	 */
+	public long getStrokeStart(int stroke) {
+		return strokes[stroke];
+	}
+
+	/**
+	 * @return the index just past the last point of a stroke
+	 */
+	public long getStrokeEnd(int stroke) {
+		return stroke + 1 < strokeCount ? strokes[stroke + 1] : points;
+	}
+
+	public double getX(long point) {
+		return segments.get((int) (point / segmentPoints)).get((int) (point % segmentPoints) * 2);
+	}
+
+	public double getY(long point) {
+		return segments.get((int) (point / segmentPoints)).get((int) (point % segmentPoints) * 2 + 1);
+	}
+
+	/**
+	 * @return a cursor over every point
+	 */
+	public Cursor cursor() {
+		return cursor(0, strokeCount);
+	}
+
+	/**
+	 * @return a cursor over the strokes from <code>from</code> up to but not including <code>to</code>
+	 */
+	public Cursor cursor(int from, int to) {
+		return new Cursor(from, to);
+	}
+
+	/**
+	 * Send the strokes from <code>from</code> up to but not including
+	 * <code>to</code> to <code>sink</code>. {@link PathSink#end()} is not called.
+	 */
+	public void replay(int from, int to, PathSink sink) {
+		Cursor c = cursor(from, to);
+		while (c.next()) {
+			if (c.isMove())
+				sink.moveTo(c.getX(), c.getY());
+			else
+				sink.lineTo(c.getX(), c.getY());
+		}
+	}
+
+	/**
+	 * Divide the drawing into chunks of whole strokes for a {@link PlotCompiler}.
+	 * The chunks read from the store when they are compiled.
+	 */
+	public List<PlotCompiler.Chunk> chunks(int strokesPerChunk) {
+		if (strokesPerChunk < 1)
+			throw new IllegalArgumentException("Value '" + strokesPerChunk + "' must be at least 1.");
+		List<PlotCompiler.Chunk> chunks = new ArrayList<PlotCompiler.Chunk>();
+		for (int from = 0; from < strokeCount; from += strokesPerChunk) {
+			final int start = from;
+			final int end = Math.min(strokeCount, from + strokesPerChunk);
+			chunks.add(new PlotCompiler.Chunk() {
+				@Override
+				public void draw(PathSink sink) {
+					replay(start, end, sink);
+				}
+			});
+		}
+		return chunks;
+	}
+
+	/**
+	 * Release the backing file. Direct memory is released when the store is
+	 * garbage collected.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (file != null)
+			file.close();
+	}
+
+	/**
+	 * Steps through the points of a range of strokes. A cursor is only used by
+	 * one thread, but any number of them may read a store at once.
+	 */
+	public final class Cursor {
+		private final long end;
+		private long index;
+		private int stroke;
+		private long nextStroke;
+		private DoubleBuffer segment;
+		private int position;
+		private boolean move;
+
+		Cursor(int from, int to) {
+			end = to > from ? getStrokeEnd(to - 1) : 0;
+			index = from < strokeCount ? strokes[from] - 1 : end;
+			stroke = from - 1;
+			nextStroke = index + 1;
+		}
+
+		/**
+		 * Advance to the next point.
+		 *
+		 * @return <code>false</code> if there are no more points
+		 */
+		public boolean next() {
+			if (++index >= end)
+				return false;
+			position = (int) (index % segmentPoints) * 2;
+			if (position == 0 || segment == null)
+				segment = segments.get((int) (index / segmentPoints));
+			move = index == nextStroke;
+			if (move) {
+				stroke++;
+				nextStroke = stroke + 1 < strokeCount ? strokes[stroke + 1] : Long.MAX_VALUE;
+			}
+			return true;
+		}
+
+		public double getX() {
+			return segment.get(position);
+		}
+
+		public double getY() {
+			return segment.get(position + 1);
+		}
+
+		/**
+		 * @return <code>true</code> if this point starts a stroke, so the pen is up on the way to it
+		 */
+		public boolean isMove() {
+			return move;
+		}
+
+		public int getStroke() {
+			return stroke;
+		}
+
+		public long getIndex() {
+			return index;
+		}
+	}
+}
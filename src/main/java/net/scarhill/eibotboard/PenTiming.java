@@ -0,0 +1,174 @@
+// Copyright (c) 2011 James Ancona. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package net.scarhill.eibotboard;
+
+import java.nio.ByteBuffer;
+import java.util.Properties;
+
+/**
+ * Works out how long the pen servo takes to go up or down, so that SP and TP
+ * can wait just that long instead of the firmware's default of 500 ms.
+ * <p>
+ * The servo travels between the pen up position (SC,4) and the pen down
+ * position (SC,5), which are in units of 1/12 &micro;s of pulse width. The
+ * firmware moves the pulse width by the up or down rate (SC,11 and SC,12, or
+ * both at once with SC,10) once every RC servo cycle, or in one jump if the
+ * rate is 0. The servo itself can't follow faster than its own slew rate. So a
+ * move takes
+ * <pre>
+ *   (travel / min(rate / cycle, slew) + settle) * (1 + margin)
+ * </pre>
+ * milliseconds. The slew rate, settling time, cycle time and margin are the
+ * machine's calibration profile, which can be kept in a {@link Properties}.
+ * The defaults are the firmware's default servo settings and a cautious
+ * profile for a small hobby servo.
+ *
+ * @see Ebb#setPenTiming(PenTiming)
+ */
+public class PenTiming {
+	private int upPosition = 12000;
+	private int downPosition = 16000;
+	private int upRate = 400;
+	private int downRate = 400;
+	private double slew = 40;
+	private int settleMillis = 30;
+	private double cycleMillis = 21;
+	private double margin = 0.2;
+
+	/**
+	 * Follow an SC command. Settings that don't affect the pen servo are ignored.
+	 */
+	public synchronized void servoModeConfigure(int value1, int value2) {
+		switch (value1) {
+		case 4:
+			upPosition = value2;
+			break;
+		case 5:
+			downPosition = value2;
+			break;
+		case 10:
+			upRate = value2;
+			downRate = value2;
+			break;
+		case 11:
+			upRate = value2;
+			break;
+		case 12:
+			downRate = value2;
+			break;
+		}
+	}
+
+	/**
+	 * @return the time the pen takes to reach <code>state</code> from the other position, in ms
+	 */
+	public synchronized int getMillis(boolean state) {
+		int rate = state == Plot.PEN_UP ? upRate : downRate;
+		double travel = Math.abs(downPosition - upPosition);
+		double speed = rate == 0 ? slew : Math.min(rate / cycleMillis, slew);
+		double millis = (travel / speed + settleMillis) * (1 + margin);
+		return (int) Math.min(65535, Math.ceil(millis));
+	}
+
+	public int getUpMillis() {
+		return getMillis(Plot.PEN_UP);
+	}
+
+	public int getDownMillis() {
+		return getMillis(!Plot.PEN_UP);
+	}
+
+	/**
+	 * @param unitsPerMilli the fastest the servo can follow, in units of pulse width per ms
+	 */
+	public synchronized void setSlew(double unitsPerMilli) {
+		if (!(unitsPerMilli > 0))
+			throw new IllegalArgumentException("Value '" + unitsPerMilli + "' must be greater than 0.");
+		this.slew = unitsPerMilli;
+	}
+
+	/**
+	 * @param millis how long the pen takes to stop bouncing once the servo has arrived
+	 */
+	public synchronized void setSettleMillis(int millis) {
+		if (millis < 0)
+			throw new IllegalArgumentException("Value '" + millis + "' must be at least 0.");
+		this.settleMillis = millis;
+	}
+
+	/**
+	 * @param millis the period of the firmware's RC servo cycle
+	 */
+	public synchronized void setCycleMillis(double millis) {
+		if (!(millis > 0))
+			throw new IllegalArgumentException("Value '" + millis + "' must be greater than 0.");
+		this.cycleMillis = millis;
+	}
+
+	/**
+	 * @param margin the fraction added to every computed time, 0.2 for 20% longer
+	 */
+	public synchronized void setMargin(double margin) {
+		if (margin < 0)
+			throw new IllegalArgumentException("Value '" + margin + "' must be at least 0.");
+		this.margin = margin;
+	}
+
+	/**
+	 * Write every setting that affects the computed times to <code>b</code>, in a fixed order.
+	 */
+	synchronized void write(ByteBuffer b) {
+		b.putInt(upPosition).putInt(downPosition).putInt(upRate).putInt(downRate).putDouble(slew)
+				.putInt(settleMillis).putDouble(cycleMillis).putDouble(margin);
+	}
+
+	/**
+	 * Read a calibration profile. Missing properties keep their current values.
+	 * Values are checked as the setters check them, and if any is out of range
+	 * none of the profile is applied.
+	 *
+	 * @throws IllegalArgumentException if a value is out of range
+	 * @throws NumberFormatException if a value isn't a number
+	 */
+	public synchronized void load(Properties profile) {
+		double newSlew = Double.parseDouble(profile.getProperty("pen.slew", Double.toString(slew)));
+		int newSettle = Integer.parseInt(profile.getProperty("pen.settle", Integer.toString(settleMillis)));
+		double newCycle = Double.parseDouble(profile.getProperty("pen.cycle", Double.toString(cycleMillis)));
+		double newMargin = Double.parseDouble(profile.getProperty("pen.margin", Double.toString(margin)));
+		double oldSlew = slew, oldCycle = cycleMillis, oldMargin = margin;
+		int oldSettle = settleMillis;
+		try {
+			setSlew(newSlew);
+			setSettleMillis(newSettle);
+			setCycleMillis(newCycle);
+			setMargin(newMargin);
+		} catch (IllegalArgumentException e) {
+			slew = oldSlew;
+			settleMillis = oldSettle;
+			cycleMillis = oldCycle;
+			margin = oldMargin;
+			throw e;
+		}
+	}
+
+	/**
+	 * Write the calibration profile.
+	 */
+	public synchronized void store(Properties profile) {
+		profile.setProperty("pen.slew", Double.toString(slew));
+		profile.setProperty("pen.settle", Integer.toString(settleMillis));
+		profile.setProperty("pen.cycle", Double.toString(cycleMillis));
+		profile.setProperty("pen.margin", Double.toString(margin));
+	}
+}
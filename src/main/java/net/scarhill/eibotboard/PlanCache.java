@@ -0,0 +1,197 @@
+// Copyright (c) 2011 James Ancona. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package net.scarhill.eibotboard;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A directory of compiled plots, saved as {@link PlotFile}s and named by a
+ * hash of the drawing they were compiled from and the {@link MachineProfile}
+ * they were compiled for, so that compiling the same drawing for the same
+ * machine again can be skipped.
+ * <p>
+ * Entries are memory-mapped when they are read, so a hit costs no copying.
+ * When the files take up more than <code>maxBytes</code>, the least recently
+ * used are deleted. The use order is kept in the files' modification times,
+ * so it survives restarts.
+ */
+public class PlanCache {
+	private static final String SUFFIX = ".ebp";
+
+	private final File directory;
+	private final long maxBytes;
+	/** entry sizes, least recently used first */
+	private final LinkedHashMap<String, Long> entries = new LinkedHashMap<String, Long>(16, 0.75f, true);
+	private long size;
+	private long hits;
+	private long misses;
+
+	public PlanCache(File directory, long maxBytes) throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Unable to create " + directory);
+		this.directory = directory;
+		this.maxBytes = maxBytes;
+		File[] files = directory.listFiles(new FileFilter() {
+			@Override
+			public boolean accept(File file) {
+				return file.isFile() && file.getName().endsWith(SUFFIX);
+			}
+		});
+		Arrays.sort(files, new Comparator<File>() {
+			@Override
+			public int compare(File a, File b) {
+				long ma = a.lastModified();
+				long mb = b.lastModified();
+				return ma < mb ? -1 : (ma == mb ? 0 : 1);
+			}
+		});
+		for (File file : files) {
+			String name = file.getName();
+			entries.put(name.substring(0, name.length() - SUFFIX.length()), file.length());
+			size += file.length();
+		}
+	}
+
+	/**
+	 * Compute the key of a drawing compiled for <code>profile</code>: the
+	 * SHA-256 of the drawing and the profile, in hex. The stream is read to the
+	 * end but not closed.
+	 */
+	public static String key(InputStream drawing, MachineProfile profile) throws IOException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		byte[] buffer = new byte[65536];
+		int n;
+		while ((n = drawing.read(buffer)) != -1)
+			digest.update(buffer, 0, n);
+		profile.digest(digest);
+		StringBuilder key = new StringBuilder();
+		for (byte b : digest.digest())
+			key.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+		return key.toString();
+	}
+
+	/**
+	 * @return the plot stored under <code>key</code>, or <code>null</code> if there is none
+	 */
+	public synchronized PlotFile get(String key) throws IOException {
+		if (entries.get(key) == null) {
+			misses++;
+			return null;
+		}
+		File file = file(key);
+		PlotFile plot = null;
+		try {
+			plot = PlotFile.open(file);
+		} catch (IOException e) {
+			// damaged or removed behind our back
+		} catch (UbwException e) {
+			// the commands are damaged
+		}
+		if (plot == null) {
+			remove(key);
+			misses++;
+			return null;
+		}
+		file.setLastModified(System.currentTimeMillis());
+		hits++;
+		return plot;
+	}
+
+	/**
+	 * Store <code>plot</code> under <code>key</code>, evicting the least recently
+	 * used entries if that takes the cache over its size.
+	 *
+	 * @return the stored plot, mapped from its file
+	 */
+	public synchronized PlotFile put(String key, Plot plot) throws IOException {
+		File file = file(key);
+		File temp = new File(directory, key + ".tmp");
+		PlotFile.write(plot, temp);
+		remove(key);
+		if (!temp.renameTo(file)) {
+			temp.delete();
+			throw new IOException("Unable to rename " + temp + " to " + file);
+		}
+		entries.put(key, file.length());
+		size += file.length();
+		evict(key);
+		return PlotFile.open(file);
+	}
+
+	private void evict(String keep) {
+		Iterator<Map.Entry<String, Long>> i = entries.entrySet().iterator();
+		while (size > maxBytes && i.hasNext()) {
+			Map.Entry<String, Long> e = i.next();
+			if (e.getKey().equals(keep))
+				continue;
+			// a file that is still mapped can be deleted on Unix, but not on Windows; leave it for next time
+			if (file(e.getKey()).delete() || !file(e.getKey()).exists()) {
+				size -= e.getValue();
+				i.remove();
+			}
+		}
+	}
+
+	private void remove(String key) {
+		Long old = entries.remove(key);
+		if (old != null) {
+			size -= old;
+			file(key).delete();
+		}
+	}
+
+	private File file(String key) {
+		if (key.length() == 0 || key.indexOf('/') >= 0 || key.indexOf('\\') >= 0 || key.startsWith("."))
+			throw new IllegalArgumentException("Invalid cache key '" + key + "'");
+		return new File(directory, key + SUFFIX);
+	}
+
+	public synchronized boolean contains(String key) {
+		return entries.containsKey(key);
+	}
+
+	/**
+	 * @return the total size of the cached files in bytes
+	 */
+	public synchronized long getSize() {
+		return size;
+	}
+
+	public synchronized int getEntryCount() {
+		return entries.size();
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+}
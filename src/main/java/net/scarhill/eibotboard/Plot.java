@@ -0,0 +1,222 @@
+// Copyright (c) 2011 James Ancona. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package net.scarhill.eibotboard;
+
+import java.nio.ByteBuffer;
+
+import net.scarhill.eibotboard.UbwException.ErrorCode;
+
+/**
+ * A compiled plotting job: the sequence of {@link EbbCommand} calls it makes,
+ * encoded compactly in a byte buffer so that it can be generated once and then
+ * replayed to any number of boards. Build one with a {@link PlotRecorder}.
+ * <p>
+ * Each command is an opcode byte followed by its arguments, big-endian:
+ * <table>
+ * <tr><th>Opcode</th><th>Arguments</th></tr>
+ * <tr><td>SM</td><td>u16 duration, s16 axis1, s16 axis2</td></tr>
+ * <tr><td>SP</td><td>u8 state</td></tr>
+ * <tr><td>SP_DURATION</td><td>u8 state, u16 duration</td></tr>
+ * <tr><td>TP</td><td></td></tr>
+ * <tr><td>TP_DURATION</td><td>u16 duration</td></tr>
+ * <tr><td>EM</td><td>u8 motor1, u8 motor2</td></tr>
+ * <tr><td>SC</td><td>u8 value1, u16 value2</td></tr>
+ * <tr><td>S2</td><td>u8 channel, u16 duration, u8 output_pin, s32 rate</td></tr>
+ * <tr><td>SL</td><td>u8 layer</td></tr>
+ * <tr><td>SN</td><td>u32 value</td></tr>
+ * <tr><td>NI, ND</td><td></td></tr>
+ * </table>
+ * Commands are addressed by their byte offset. A <i>node</i> is an SM command,
+ * numbered from the start of the plot. The EBB's node counter doesn't follow
+ * the moves: it only changes on SN, NI and ND. So a player that wants to know
+ * how far a board has really got sends <code>SN,n</code> after the plot's n-th
+ * move and reads it back with {@link EbbCommand#queryNodeCount()}. The board
+ * takes commands in order and holds the next one back while its motion FIFO is
+ * full, so the answer only comes once it has started that move.
+ */
+public class Plot {
+	public static final byte SM = 1;
+	public static final byte SP = 2;
+	public static final byte SP_DURATION = 3;
+	public static final byte TP = 4;
+	public static final byte TP_DURATION = 5;
+	public static final byte EM = 6;
+	public static final byte SC = 7;
+	public static final byte S2 = 8;
+	public static final byte SL = 9;
+	public static final byte SN = 10;
+	public static final byte NI = 11;
+	public static final byte ND = 12;
+
+	/** the pen state that raises the pen: "SP,1", reported as <code>true</code> by QP */
+	public static final boolean PEN_UP = true;
+	/** the duration the EBB applies to SP and TP without one */
+	public static final int DEFAULT_PEN_DURATION = 500;
+
+	private static final int[] LENGTHS = { 0, 7, 2, 4, 1, 3, 3, 4, 9, 2, 5, 1, 1 };
+
+	private final ByteBuffer commands;
+	private final int commandCount;
+	private final long nodeCount;
+
+	/**
+	 * @param commands encoded commands from position 0 to the limit
+	 */
+	Plot(ByteBuffer commands, int commandCount, long nodeCount) {
+		this.commands = commands;
+		this.commandCount = commandCount;
+		this.nodeCount = nodeCount;
+	}
+
+	/**
+	 * Wrap already encoded commands, checking that they are well formed.
+	 */
+	public static Plot wrap(ByteBuffer commands) {
+		ByteBuffer b = commands.slice();
+		int count = 0;
+		long nodes = 0;
+		int offset = 0;
+		while (offset < b.limit()) {
+			byte op = b.get(offset);
+			if (op < SM || op > ND || offset + LENGTHS[op] > b.limit())
+				throw new UbwException("Malformed plot at offset " + offset, ErrorCode.RESPONSE_ERROR);
+			if (op == SM)
+				nodes++;
+			count++;
+			offset += LENGTHS[op];
+		}
+		return new Plot(b, count, nodes);
+	}
+
+	/**
+	 * @return the encoded length of a command
+	 */
+	public static int length(byte opcode) {
+		return LENGTHS[opcode];
+	}
+
+	/**
+	 * @return the size of the plot in bytes, which is also the offset just past the last command
+	 */
+	public int size() {
+		return commands.limit();
+	}
+	public int getCommandCount() {
+		return commandCount;
+	}
+	/**
+	 * @return the number of SM commands
+	 */
+	public long getNodeCount() {
+		return nodeCount;
+	}
+
+	public byte opcode(int offset) {
+		return commands.get(offset);
+	}
+
+	/**
+	 * @return the offset of the command following the one at <code>offset</code>
+	 */
+	public int next(int offset) {
+		return offset + LENGTHS[commands.get(offset)];
+	}
+
+	/**
+	 * @return a read only view of the encoded commands
+	 */
+	public ByteBuffer getBuffer() {
+		return commands.asReadOnlyBuffer();
+	}
+
+	/**
+	 * Play the whole plot.
+	 */
+	public void play(EbbCommand board) {
+		play(board, 0, size());
+	}
+
+	/**
+	 * Play the commands from offset <code>from</code> up to but not including <code>to</code>.
+	 */
+	public void play(EbbCommand board, int from, int to) {
+		int offset = from;
+		while (offset < to)
+			offset = play(board, offset);
+	}
+
+	/**
+	 * Play the single command at <code>offset</code>.
+	 *
+	 * @return the offset of the next command
+	 */
+	public int play(EbbCommand board, int offset) {
+		ByteBuffer b = commands;
+		byte op = b.get(offset);
+		switch (op) {
+		case SM:
+			board.stepperMotorMove(u16(offset + 1), b.getShort(offset + 3), b.getShort(offset + 5));
+			break;
+		case SP:
+			board.setPenState(b.get(offset + 1) != 0);
+			break;
+		case SP_DURATION:
+			board.setPenState(b.get(offset + 1) != 0, u16(offset + 2));
+			break;
+		case TP:
+			board.togglePen();
+			break;
+		case TP_DURATION:
+			board.togglePen(u16(offset + 1));
+			break;
+		case EM:
+			board.enableMotor(u8(offset + 1), u8(offset + 2));
+			break;
+		case SC:
+			board.servoModeConfigure(u8(offset + 1), u16(offset + 2));
+			break;
+		case S2:
+			board.rcServoOutput(u8(offset + 1), u16(offset + 2), u8(offset + 4), b.getInt(offset + 5));
+			break;
+		case SL:
+			board.setLayer(u8(offset + 1));
+			break;
+		case SN:
+			board.setNodeCount(b.getInt(offset + 1) & 0xFFFFFFFFL);
+			break;
+		case NI:
+			board.nodeCountIncrement();
+			break;
+		case ND:
+			board.nodeCountDecrement();
+			break;
+		default:
+			throw new UbwException("Unknown opcode " + op + " at offset " + offset, ErrorCode.RESPONSE_ERROR);
+		}
+		return offset + LENGTHS[op];
+	}
+
+	int u8(int offset) {
+		return commands.get(offset) & 0xFF;
+	}
+	int u16(int offset) {
+		return commands.getShort(offset) & 0xFFFF;
+	}
+	int s16(int offset) {
+		return commands.getShort(offset);
+	}
+	int s32(int offset) {
+		return commands.getInt(offset);
+	}
+}
@@ -0,0 +1,233 @@
+// Copyright (c) 2011 James Ancona. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package net.scarhill.eibotboard;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Plays one compiled {@link Plot} on many boards at once, keeping them roughly
+ * in step.
+ * <p>
+ * Every board gets its own thread, so each keeps its own flow control: a
+ * thread blocks only on its own board's replies. Every <code>syncInterval</code>
+ * nodes a thread marks its place on the board with
+ * {@link EbbCommand#setNodeCount(long)}, reads the mark back with
+ * {@link EbbCommand#queryNodeCount()} once the board has got there (see
+ * {@link Plot}), and waits if that board is more than
+ * <code>maxLead</code> nodes ahead of the slowest board still in step. If the
+ * slowest board doesn't catch up within <code>lagTimeout</code> milliseconds it
+ * drops out of lockstep and finishes the plot on its own, so one slow board
+ * can't hold up the rest. A board that fails drops out immediately.
+ */
+public class PlotBroadcaster {
+	private final Plot plot;
+	private int syncInterval = 50;
+	private long maxLead = 200;
+	private long lagTimeout = 5000;
+
+	public PlotBroadcaster(Plot plot) {
+		this.plot = plot;
+	}
+
+	/**
+	 * @param nodes how many moves each board plays between node count queries
+	 */
+	public void setSyncInterval(int nodes) {
+		if (nodes < 1)
+			throw new IllegalArgumentException("Value '" + nodes + "' must be at least 1.");
+		this.syncInterval = nodes;
+	}
+
+	/**
+	 * @param nodes how many moves a board may be ahead of the slowest board in step
+	 */
+	public void setMaxLead(long nodes) {
+		this.maxLead = nodes;
+	}
+
+	/**
+	 * @param millis how long the other boards wait for a lagging board before dropping it from lockstep
+	 */
+	public void setLagTimeout(long millis) {
+		this.lagTimeout = millis;
+	}
+
+	/**
+	 * Play the plot on all <code>boards</code>, returning when every board has
+	 * finished or failed.
+	 *
+	 * @return the outcome for each board, in the same order as <code>boards</code>
+	 */
+	public List<Outcome> broadcast(List<? extends EbbCommand> boards) throws InterruptedException {
+		final Lockstep lockstep = new Lockstep(boards.size());
+		final List<Outcome> outcomes = new ArrayList<Outcome>();
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < boards.size(); i++) {
+			final int index = i;
+			final EbbCommand board = boards.get(i);
+			final Outcome outcome = new Outcome(board);
+			outcomes.add(outcome);
+			Thread t = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					play(index, board, outcome, lockstep);
+				}
+			}, "PlotBroadcaster " + i);
+			threads.add(t);
+			t.start();
+		}
+		try {
+			for (Thread t : threads)
+				t.join();
+		} catch (InterruptedException e) {
+			for (Thread t : threads)
+				t.interrupt();
+			throw e;
+		}
+		for (int i = 0; i < outcomes.size(); i++)
+			outcomes.get(i).inStep = lockstep.inStep[i];
+		return outcomes;
+	}
+
+	private void play(int index, EbbCommand board, Outcome outcome, Lockstep lockstep) {
+		long started = System.currentTimeMillis();
+		try {
+			board.setNodeCount(0);
+			int offset = 0;
+			int end = plot.size();
+			long sent = 0;
+			while (offset < end) {
+				if (Thread.interrupted())
+					throw new InterruptedException();
+				if (plot.opcode(offset) == Plot.SM && ++sent % syncInterval == 0) {
+					offset = plot.play(board, offset);
+					board.setNodeCount(sent);
+					long done = board.queryNodeCount();
+					outcome.nodes = done;
+					lockstep.report(index, done);
+					lockstep.awaitPeers(index, done);
+				} else {
+					offset = plot.play(board, offset);
+				}
+			}
+			board.setNodeCount(sent);
+			outcome.nodes = board.queryNodeCount();
+			outcome.finished = true;
+		} catch (InterruptedException e) {
+			outcome.error = e;
+		} catch (RuntimeException e) {
+			outcome.error = e;
+		} finally {
+			outcome.elapsedMillis = System.currentTimeMillis() - started;
+			lockstep.finish(index, outcome.finished);
+		}
+	}
+
+	private class Lockstep {
+		private final long[] nodes;
+		private final boolean[] inStep;
+		private final boolean[] done;
+
+		Lockstep(int boards) {
+			nodes = new long[boards];
+			inStep = new boolean[boards];
+			done = new boolean[boards];
+			Arrays.fill(inStep, true);
+		}
+
+		synchronized void report(int board, long node) {
+			nodes[board] = node;
+			notifyAll();
+		}
+
+		synchronized void finish(int board, boolean finished) {
+			done[board] = true;
+			if (!finished)
+				inStep[board] = false;
+			notifyAll();
+		}
+
+		synchronized void awaitPeers(int board, long node) throws InterruptedException {
+			long deadline = System.currentTimeMillis() + lagTimeout;
+			while (inStep[board]) {
+				long slowest = Long.MAX_VALUE;
+				for (int i = 0; i < nodes.length; i++) {
+					if (inStep[i] && !done[i])
+						slowest = Math.min(slowest, nodes[i]);
+				}
+				if (node - slowest <= maxLead)
+					return;
+				long remaining = deadline - System.currentTimeMillis();
+				if (remaining <= 0) {
+					for (int i = 0; i < nodes.length; i++) {
+						if (inStep[i] && !done[i] && node - nodes[i] > maxLead)
+							inStep[i] = false;
+					}
+					notifyAll();
+					return;
+				}
+				wait(remaining);
+			}
+		}
+	}
+
+	/**
+	 * What happened on one board.
+	 */
+	public static class Outcome {
+		private final EbbCommand board;
+		private volatile long nodes;
+		private volatile boolean finished;
+		private volatile boolean inStep;
+		private volatile Throwable error;
+		private volatile long elapsedMillis;
+
+		Outcome(EbbCommand board) {
+			this.board = board;
+		}
+
+		public EbbCommand getBoard() {
+			return board;
+		}
+		/**
+		 * @return the last node count reported by the board
+		 */
+		public long getNodes() {
+			return nodes;
+		}
+		/**
+		 * @return <code>true</code> if the whole plot was played
+		 */
+		public boolean isFinished() {
+			return finished;
+		}
+		/**
+		 * @return <code>false</code> if the board dropped out of lockstep because it lagged or failed
+		 */
+		public boolean isInStep() {
+			return inStep;
+		}
+		/**
+		 * @return the exception that stopped the board, or <code>null</code>
+		 */
+		public Throwable getError() {
+			return error;
+		}
+		public long getElapsedMillis() {
+			return elapsedMillis;
+		}
+	}
+}
@@ -0,0 +1,238 @@
+// Copyright (c) 2011 James Ancona. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package net.scarhill.eibotboard;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Compiles a drawing divided into {@link Chunk}s on a fork/join pool, running
+ * each chunk through a {@link PathSimplifier} and a {@link StepEmitter} into
+ * its own {@link Plot}, and hands the compiled chunks to a board in order.
+ * <p>
+ * Every chunk starts with a pen up move, so it can be compiled without knowing
+ * where the one before it ends: its plot starts from the chunk's first point,
+ * and the travel to that point is added when the chunk is played. The result
+ * is the same, command for command, as compiling the whole drawing on one
+ * thread. The board gets its first command as soon as the first chunk is
+ * ready, while up to <code>lookahead</code> later chunks compile in the
+ * background.
+ */
+public class PlotCompiler {
+	/**
+	 * The version of the plots the compiler makes. Raise it whenever a change
+	 * here, in {@link StepEmitter} or in {@link PathSimplifier} makes the same
+	 * drawing compile to different commands, so that plots cached by a
+	 * {@link PlanCache} before the change aren't used.
+	 */
+	public static final int VERSION = 1;
+
+	/**
+	 * A part of a drawing: typically a group of whole strokes, or the strokes
+	 * in one region.
+	 */
+	public interface Chunk {
+		/**
+		 * Send the chunk's strokes to <code>sink</code>, starting with a
+		 * {@link PathSink#moveTo(double, double)}. Don't call {@link PathSink#end()}.
+		 * This is called on a pool thread.
+		 */
+		void draw(PathSink sink);
+	}
+
+	private final double stepsPerUnit;
+	private double originX;
+	private double originY;
+	private int drawSpeed = 1000;
+	private int travelSpeed = 3000;
+	private int penUpDuration = Plot.DEFAULT_PEN_DURATION;
+	private int penDownDuration = Plot.DEFAULT_PEN_DURATION;
+	private PenTiming penTiming;
+	private double tolerance = -1;
+	private ForkJoinPool pool;
+	private int lookahead;
+
+	/**
+	 * @param stepsPerUnit the number of motor steps in one drawing unit
+	 */
+	public PlotCompiler(double stepsPerUnit) {
+		this.stepsPerUnit = stepsPerUnit;
+	}
+
+	/**
+	 * @see StepEmitter#setOrigin(double, double)
+	 */
+	public void setOrigin(double x, double y) {
+		this.originX = x;
+		this.originY = y;
+	}
+
+	public void setDrawSpeed(int stepsPerSecond) {
+		this.drawSpeed = stepsPerSecond;
+	}
+
+	public void setTravelSpeed(int stepsPerSecond) {
+		this.travelSpeed = stepsPerSecond;
+	}
+
+	public void setPenDurations(int up, int down) {
+		this.penUpDuration = up;
+		this.penDownDuration = down;
+	}
+
+	/**
+	 * Time pen moves as an {@link Ebb} with the same timing would, rather than
+	 * with the fixed pen durations.
+	 *
+	 * @see StepEmitter#setPenTiming(PenTiming)
+	 */
+	public void setPenTiming(PenTiming timing) {
+		this.penTiming = timing;
+	}
+
+	/**
+	 * @param tolerance the {@link PathSimplifier} tolerance in drawing units, or a negative value not to simplify
+	 */
+	public void setTolerance(double tolerance) {
+		this.tolerance = tolerance;
+	}
+
+	/**
+	 * @param pool the pool to compile on; by default a pool with one thread for each processor
+	 */
+	public void setPool(ForkJoinPool pool) {
+		this.pool = pool;
+	}
+
+	/**
+	 * @param chunks how many chunks may be compiled ahead of the one being played; by default twice the pool's parallelism
+	 */
+	public void setLookahead(int chunks) {
+		if (chunks < 1)
+			throw new IllegalArgumentException("Value '" + chunks + "' must be at least 1.");
+		this.lookahead = chunks;
+	}
+
+	/**
+	 * Compile <code>chunks</code> into a single plot.
+	 */
+	public Plot compile(List<? extends Chunk> chunks) {
+		PlotRecorder recorder = new PlotRecorder();
+		compile(chunks, recorder);
+		return recorder.toPlot();
+	}
+
+	/**
+	 * Compile <code>chunks</code> and send them to <code>board</code> as they
+	 * are ready. The carriage is expected to start at the origin with the pen
+	 * up, and is left at the end of the last stroke.
+	 */
+	public void compile(List<? extends Chunk> chunks, EbbCommand board) {
+		ForkJoinPool pool = this.pool != null ? this.pool : new ForkJoinPool();
+		int ahead = lookahead > 0 ? lookahead : 2 * pool.getParallelism();
+		int count = chunks.size();
+		List<ForkJoinTask<Compiled>> tasks = new ArrayList<ForkJoinTask<Compiled>>(count);
+		try {
+			long x = 0;
+			long y = 0;
+			for (int i = 0; i < count; i++) {
+				while (tasks.size() < count && tasks.size() <= i + ahead)
+					tasks.add(pool.submit(new ChunkTask(chunks.get(tasks.size()))));
+				Compiled chunk = tasks.get(i).join();
+				tasks.set(i, null);
+				if (chunk.plot == null)
+					continue;
+				Moves.travel(board, chunk.startX - x, chunk.startY - y, travelSpeed);
+				chunk.plot.play(board);
+				x = chunk.endX;
+				y = chunk.endY;
+			}
+		} finally {
+			for (ForkJoinTask<Compiled> task : tasks) {
+				if (task != null)
+					task.cancel(false);
+			}
+			if (this.pool == null)
+				pool.shutdown();
+		}
+	}
+
+	private static class Compiled {
+		Plot plot;
+		long startX;
+		long startY;
+		long endX;
+		long endY;
+	}
+
+	private class ChunkTask extends RecursiveTask<Compiled> {
+		private static final long serialVersionUID = 1L;
+		private final Chunk chunk;
+
+		ChunkTask(Chunk chunk) {
+			this.chunk = chunk;
+		}
+
+		@Override
+		protected Compiled compute() {
+			PlotRecorder recorder = new PlotRecorder();
+			final StepEmitter emitter = new StepEmitter(recorder, stepsPerUnit);
+			emitter.setOrigin(originX, originY);
+			emitter.setDrawSpeed(drawSpeed);
+			emitter.setTravelSpeed(travelSpeed);
+			emitter.setPenDurations(penUpDuration, penDownDuration);
+			emitter.setPenTiming(penTiming);
+			final Compiled compiled = new Compiled();
+			// the chunk's first move is where its plot starts
+			PathSink start = new PathSink() {
+				private boolean started;
+
+				@Override
+				public void moveTo(double x, double y) {
+					if (started) {
+						emitter.moveTo(x, y);
+					} else {
+						started = true;
+						emitter.setPosition(x, y);
+						compiled.startX = emitter.getX();
+						compiled.startY = emitter.getY();
+					}
+				}
+
+				@Override
+				public void lineTo(double x, double y) {
+					if (!started)
+						throw new IllegalStateException("A chunk must start with moveTo");
+					emitter.lineTo(x, y);
+				}
+
+				@Override
+				public void end() {
+					emitter.end();
+				}
+			};
+			PathSink sink = tolerance >= 0 ? new PathSimplifier(start, tolerance) : start;
+			chunk.draw(sink);
+			sink.end();
+			compiled.endX = emitter.getX();
+			compiled.endY = emitter.getY();
+			if (recorder.size() > 0)
+				compiled.plot = recorder.toPlot();
+			return compiled;
+		}
+	}
+}
@@ -0,0 +1,159 @@
+// Copyright (c) 2011 James Ancona. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package net.scarhill.eibotboard;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A {@link Plot} saved to disk, so that a job compiled once can be replayed
+ * any number of times without generating its paths again.
+ * <p>
+ * The file is a header followed by the plot's commands, in exactly the
+ * encoding {@link Plot} uses in memory:
+ * <table>
+ * <tr><td>int</td><td>magic, "EBP1"</td></tr>
+ * <tr><td>int</td><td>header length in bytes</td></tr>
+ * <tr><td>int</td><td>command count</td></tr>
+ * <tr><td>long</td><td>node count</td></tr>
+ * <tr><td>long</td><td>estimated duration in ms, from {@link DryRun}</td></tr>
+ * <tr><td>int</td><td>number of {@link LayerIndex} segments</td></tr>
+ * <tr><td></td><td>the layer index, {@link LayerIndex#ENTRY} bytes for each segment</td></tr>
+ * <tr><td>int</td><td>length of the commands in bytes</td></tr>
+ * </table>
+ * {@link #open(File)} memory-maps the file and checks that the commands are
+ * well formed, reading through them once, and then plays them straight from
+ * the mapping, so its commands never occupy the heap. The layer index is read
+ * with the header, so
+ * {@link #play(EbbCommand, int, int...)} can go straight to any layer.
+ */
+public class PlotFile {
+	private static final int MAGIC = 0x45425031; // "EBP1"
+
+	private final Plot plot;
+	private final long estimatedMillis;
+	private final LayerIndex layers;
+
+	private PlotFile(Plot plot, long estimatedMillis, LayerIndex layers) {
+		this.plot = plot;
+		this.estimatedMillis = estimatedMillis;
+		this.layers = layers;
+	}
+
+	/**
+	 * Save <code>plot</code> to <code>file</code>, replacing anything already there.
+	 */
+	public static void write(Plot plot, File file) throws IOException {
+		long millis = DryRun.estimate(plot).getTotalMillis();
+		LayerIndex layers = LayerIndex.build(plot);
+		int headerLength = 36 + layers.encodedLength();
+		ByteBuffer header = ByteBuffer.allocate(headerLength);
+		header.putInt(MAGIC).putInt(headerLength).putInt(plot.getCommandCount()).putLong(plot.getNodeCount())
+				.putLong(millis).putInt(layers.getSegmentCount());
+		layers.write(header);
+		header.putInt(plot.size());
+		header.flip();
+
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			FileChannel channel = raf.getChannel();
+			channel.truncate(0);
+			ByteBuffer commands = plot.getBuffer();
+			commands.rewind();
+			ByteBuffer[] parts = { header, commands };
+			while (header.hasRemaining() || commands.hasRemaining())
+				channel.write(parts);
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Map a file written by {@link #write(Plot, File)}, checking its commands
+	 * as {@link Plot#wrap(ByteBuffer)} does, so that a damaged file fails here
+	 * rather than part way through a plot.
+	 *
+	 * @throws UbwException if the commands are malformed
+	 */
+	public static PlotFile open(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			if (map.limit() < 36 || map.getInt(0) != MAGIC)
+				throw new IOException(file + " is not a plot file");
+			int headerLength = map.getInt(4);
+			int entries = map.getInt(28);
+			if (headerLength != 36 + entries * LayerIndex.ENTRY || headerLength > map.limit())
+				throw new IOException(file + " has a corrupt header");
+			int length = map.getInt(headerLength - 4);
+			if (map.limit() != headerLength + length)
+				throw new IOException(file + " is truncated");
+			map.position(32);
+			LayerIndex layers = LayerIndex.read(map, entries);
+			map.position(headerLength);
+			Plot plot;
+			try {
+				plot = Plot.wrap(map.slice());
+			} catch (UbwException e) {
+				throw new UbwException(file + ": " + e.getMessage(), e, e.getErrorCode());
+			}
+			if (plot.getCommandCount() != map.getInt(8) || plot.getNodeCount() != map.getLong(12))
+				throw new IOException(file + " has a corrupt header");
+			for (int i = 0; i < entries; i++) {
+				if (layers.getFrom(i) < 0 || layers.getFrom(i) > layers.getTo(i) || layers.getTo(i) > plot.size())
+					throw new IOException(file + " has a corrupt layer index");
+			}
+			return new PlotFile(plot, map.getLong(20), layers);
+		} finally {
+			// the mapping stays valid after the channel is closed
+			raf.close();
+		}
+	}
+
+	public Plot getPlot() {
+		return plot;
+	}
+
+	/**
+	 * @return how long the plot takes to play, in ms
+	 */
+	public long getEstimatedMillis() {
+		return estimatedMillis;
+	}
+
+	public LayerIndex getLayerIndex() {
+		return layers;
+	}
+
+	/**
+	 * Play the whole plot.
+	 */
+	public void play(EbbCommand board) {
+		plot.play(board);
+	}
+
+	/**
+	 * Play only the given layers.
+	 *
+	 * @see LayerIndex#play(Plot, EbbCommand, int, int...)
+	 */
+	public void play(EbbCommand board, int travelSpeed, int... layers) {
+		this.layers.play(plot, board, travelSpeed, layers);
+	}
+}
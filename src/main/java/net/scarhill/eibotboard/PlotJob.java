@@ -0,0 +1,130 @@
+// Copyright (c) 2011 James Ancona. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package net.scarhill.eibotboard;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link Plot} queued on a {@link PlotScheduler}, together with how far it
+ * has got. A job that is preempted remembers the offset of its next command,
+ * the position of the carriage relative to where it started and the settings
+ * it had made, so that it can be resumed later, on any board.
+ */
+public class PlotJob {
+	public enum State {
+		QUEUED, RUNNING, PREEMPTED, DONE, FAILED
+	}
+
+	private final String name;
+	private final Plot plot;
+	private final int priority;
+	private final long estimatedMillis;
+	private final CountDownLatch finished = new CountDownLatch(1);
+	private volatile State state = State.QUEUED;
+	private volatile Throwable error;
+	private volatile int preemptions;
+	long sequence;
+	long submittedAt;
+	long finishedAt;
+	// where to carry on from, only touched by the board thread running the job
+	int offset;
+	// the commands played so far: time, pen state, position, settings and node count
+	final PlotState progress = new PlotState();
+	volatile boolean preemptRequested;
+	volatile EbbCommand board;
+
+	/**
+	 * @param priority larger numbers run first under {@link PlotScheduler.Policy#PRIORITY}
+	 */
+	public PlotJob(String name, Plot plot, int priority) {
+		this.name = name;
+		this.plot = plot;
+		this.priority = priority;
+		this.estimatedMillis = DryRun.estimate(plot).getTotalMillis();
+	}
+
+	public String getName() {
+		return name;
+	}
+	public Plot getPlot() {
+		return plot;
+	}
+	public int getPriority() {
+		return priority;
+	}
+	/**
+	 * @return the plotting time of the whole job, from a {@link DryRun}
+	 */
+	public long getEstimatedMillis() {
+		return estimatedMillis;
+	}
+	/**
+	 * @return the estimated plotting time still to go
+	 */
+	public long getRemainingMillis() {
+		return estimatedMillis - progress.getTotalMillis();
+	}
+	public State getState() {
+		return state;
+	}
+	void setState(State state) {
+		this.state = state;
+	}
+	public int getPreemptions() {
+		return preemptions;
+	}
+	void preempted() {
+		preemptions++;
+		preemptRequested = false;
+		state = State.PREEMPTED;
+	}
+	/**
+	 * @return the exception that made the job fail, or <code>null</code>
+	 */
+	public Throwable getError() {
+		return error;
+	}
+	/**
+	 * @return the time from submission to completion, or -1 if the job isn't finished
+	 */
+	public long getTurnaroundMillis() {
+		return finishedAt == 0 ? -1 : finishedAt - submittedAt;
+	}
+
+	void finish(Throwable error) {
+		this.error = error;
+		finishedAt = System.currentTimeMillis();
+		state = error == null ? State.DONE : State.FAILED;
+		finished.countDown();
+	}
+
+	/**
+	 * Wait for the job to finish or fail.
+	 */
+	public void await() throws InterruptedException {
+		finished.await();
+	}
+	/**
+	 * @return <code>false</code> if the job didn't finish in time
+	 */
+	public boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+		return finished.await(timeout, unit);
+	}
+
+	@Override
+	public String toString() {
+		return name + " (" + state + ")";
+	}
+}
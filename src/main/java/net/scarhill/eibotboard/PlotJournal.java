@@ -0,0 +1,139 @@
+// Copyright (c) 2011 James Ancona. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package net.scarhill.eibotboard;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only file recording how far a {@link Plot} has got, as the number
+ * of nodes the board has confirmed. It starts with a 16 byte header (magic,
+ * plot size and CRC of the plot) so that a journal is never applied to a
+ * different plot, followed by one 12 byte record per checkpoint: the node
+ * count and a check word. A record torn by a crash fails its check and is
+ * ignored, leaving the previous checkpoint in force.
+ */
+public class PlotJournal implements Closeable {
+	private static final int MAGIC = 0x45424A31; // "EBJ1"
+	private static final int HEADER = 16;
+	private static final int RECORD = 12;
+
+	private final File file;
+	private final RandomAccessFile raf;
+	private final FileChannel channel;
+	private final ByteBuffer record = ByteBuffer.allocate(RECORD);
+	private long lastNode = -1;
+	private long validRecords;
+
+	/**
+	 * Open the journal for <code>plot</code>, reading any checkpoints already in
+	 * it. A journal left by a different plot is discarded.
+	 */
+	public PlotJournal(File file, Plot plot) throws IOException {
+		this.file = file;
+		raf = new RandomAccessFile(file, "rw");
+		channel = raf.getChannel();
+		ByteBuffer header = ByteBuffer.allocate(HEADER);
+		header.putInt(MAGIC).putInt(plot.size()).putLong(checksum(plot));
+		header.flip();
+		ByteBuffer existing = ByteBuffer.allocate(HEADER);
+		channel.read(existing, 0);
+		existing.flip();
+		if (existing.equals(header)) {
+			readCheckpoints();
+		} else {
+			channel.truncate(0);
+			channel.write(header, 0);
+			channel.force(true);
+		}
+		channel.position(HEADER + validRecords * RECORD);
+	}
+
+	private void readCheckpoints() throws IOException {
+		long records = (channel.size() - HEADER) / RECORD;
+		ByteBuffer r = ByteBuffer.allocate(RECORD);
+		for (long i = 0; i < records; i++) {
+			r.clear();
+			channel.read(r, HEADER + i * RECORD);
+			long node = r.getLong(0);
+			if (r.getInt(8) != check(node))
+				break;
+			lastNode = node;
+			validRecords = i + 1;
+		}
+		// drop anything after the last good record
+		channel.truncate(HEADER + validRecords * RECORD);
+	}
+
+	/**
+	 * @return the node count of the last checkpoint, or -1 if there is none
+	 */
+	public long getLastNode() {
+		return lastNode;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Record that the board has finished <code>node</code> nodes. The record is
+	 * forced to disk before this returns.
+	 */
+	public void checkpoint(long node) throws IOException {
+		record.clear();
+		record.putLong(node).putInt(check(node));
+		record.flip();
+		while (record.hasRemaining())
+			channel.write(record);
+		channel.force(false);
+		lastNode = node;
+		validRecords++;
+	}
+
+	@Override
+	public void close() throws IOException {
+		raf.close();
+	}
+
+	/**
+	 * Close the journal and remove its file, once the plot has finished.
+	 */
+	public void delete() throws IOException {
+		close();
+		if (!file.delete())
+			throw new IOException("Unable to delete " + file);
+	}
+
+	private static int check(long node) {
+		return (int) (node ^ (node >>> 32)) ^ MAGIC;
+	}
+
+	static long checksum(Plot plot) {
+		CRC32 crc = new CRC32();
+		ByteBuffer b = plot.getBuffer();
+		byte[] chunk = new byte[8192];
+		while (b.hasRemaining()) {
+			int n = Math.min(chunk.length, b.remaining());
+			b.get(chunk, 0, n);
+			crc.update(chunk, 0, n);
+		}
+		return crc.getValue();
+	}
+}
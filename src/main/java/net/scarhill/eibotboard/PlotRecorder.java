@@ -0,0 +1,217 @@
+// Copyright (c) 2011 James Ancona. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package net.scarhill.eibotboard;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Records the plotting commands sent to it into a {@link Plot}, so that path
+ * generation code written against {@link EbbCommand} can compile a job once
+ * instead of driving a board directly. Arguments are validated just as
+ * {@link Ebb} validates them. QP, QL, QN and QB answer as a board that had just
+ * been reset would after the commands recorded so far: the pen starts up, on
+ * layer 0, with a node count of 0, and the button is never pressed. The other
+ * queries and the UBW I/O commands can't be recorded and throw
+ * {@link UnsupportedOperationException}.
+ */
+public class PlotRecorder extends EbbCommandAdapter {
+	private ByteBuffer buffer;
+	private int commandCount;
+	private long nodeCount;
+	// follows the pen, layer and node counter for the queries
+	private final DryRun state = new DryRun();
+
+	public PlotRecorder() {
+		this(4096);
+	}
+	/**
+	 * @param capacity the initial size of the buffer in bytes
+	 */
+	public PlotRecorder(int capacity) {
+		buffer = ByteBuffer.allocate(Math.max(capacity, 16));
+	}
+
+	/**
+	 * @return the commands recorded so far. The recorder may continue to be used.
+	 */
+	public Plot toPlot() {
+		ByteBuffer commands = ByteBuffer.allocate(buffer.position());
+		commands.put(buffer.array(), 0, buffer.position());
+		commands.flip();
+		return new Plot(commands, commandCount, nodeCount);
+	}
+
+	/**
+	 * @return the number of bytes recorded so far, which is the offset the next command will have
+	 */
+	public int size() {
+		return buffer.position();
+	}
+
+	public int getCommandCount() {
+		return commandCount;
+	}
+
+	/**
+	 * Append the whole of another plot.
+	 */
+	public void append(Plot plot) {
+		ByteBuffer commands = plot.getBuffer();
+		ensure(commands.remaining());
+		buffer.put(commands);
+		commandCount += plot.getCommandCount();
+		nodeCount += plot.getNodeCount();
+		plot.play(state);
+	}
+
+	@Override
+	public boolean queryPen() {
+		return state.queryPen();
+	}
+
+	@Override
+	public int queryLayer() {
+		return state.queryLayer();
+	}
+
+	@Override
+	public long queryNodeCount() {
+		return state.queryNodeCount();
+	}
+
+	@Override
+	public boolean queryButton() {
+		return false;
+	}
+
+	@Override
+	public void stepperMotorMove(int duration, int axis1, int axis2) {
+		validateRange(duration, 0, 65535);
+		validateRange(axis1, -32767, 32767);
+		validateRange(axis2, -32767, 32767);
+		start(Plot.SM);
+		buffer.putShort((short) duration);
+		buffer.putShort((short) axis1);
+		buffer.putShort((short) axis2);
+		nodeCount++;
+	}
+
+	@Override
+	public void setPenState(boolean state) {
+		start(Plot.SP);
+		buffer.put((byte) (state ? 1 : 0));
+		this.state.setPenState(state, 0);
+	}
+
+	@Override
+	public void setPenState(boolean state, int duration) {
+		validateRange(duration, 0, 65535);
+		start(Plot.SP_DURATION);
+		buffer.put((byte) (state ? 1 : 0));
+		buffer.putShort((short) duration);
+		this.state.setPenState(state, 0);
+	}
+
+	@Override
+	public void togglePen() {
+		start(Plot.TP);
+		state.togglePen(0);
+	}
+
+	@Override
+	public void togglePen(int duration) {
+		validateRange(duration, 0, 65535);
+		start(Plot.TP_DURATION);
+		buffer.putShort((short) duration);
+		state.togglePen(0);
+	}
+
+	@Override
+	public void enableMotor(int motor1, int motor2) {
+		validateRange(motor1, 0, 5);
+		validateRange(motor2, 0, 1);
+		start(Plot.EM);
+		buffer.put((byte) motor1);
+		buffer.put((byte) motor2);
+	}
+
+	@Override
+	public void servoModeConfigure(int value1, int value2) {
+		validateRange(value1, 0, 255);
+		validateRange(value2, 0, 65535);
+		start(Plot.SC);
+		buffer.put((byte) value1);
+		buffer.putShort((short) value2);
+	}
+
+	@Override
+	public void rcServoOutput(int channel, int duration, int output_pin, int rate) {
+		validateRange(channel, 0, 7);
+		validateRange(duration, 0, 32000);
+		validateRange(output_pin, 0, 24);
+		start(Plot.S2);
+		buffer.put((byte) channel);
+		buffer.putShort((short) duration);
+		buffer.put((byte) output_pin);
+		buffer.putInt(rate);
+	}
+
+	@Override
+	public void setLayer(int layer) {
+		validateRange(layer, 0, 255);
+		start(Plot.SL);
+		buffer.put((byte) layer);
+		state.setLayer(layer);
+	}
+
+	@Override
+	public void setNodeCount(long value) {
+		validateRange(value, 0L, ((long) 1 << 32) - 1L);
+		start(Plot.SN);
+		buffer.putInt((int) value);
+		state.setNodeCount(value);
+	}
+
+	@Override
+	public void nodeCountIncrement() {
+		start(Plot.NI);
+		state.nodeCountIncrement();
+	}
+
+	@Override
+	public void nodeCountDecrement() {
+		start(Plot.ND);
+		state.nodeCountDecrement();
+	}
+
+	private void start(byte opcode) {
+		ensure(Plot.length(opcode));
+		buffer.put(opcode);
+		commandCount++;
+	}
+
+	private void ensure(int length) {
+		if (buffer.remaining() < length) {
+			ByteBuffer bigger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + length));
+			buffer.flip();
+			bigger.put(buffer);
+			buffer = bigger;
+		}
+	}
+
+	private void validateRange(long value, long l, long m) {
+		if (value < l || value > m)
+			throw new IllegalArgumentException("Value '" + value + "' must be between " + l + " and " + m + ".");
+	}
+}
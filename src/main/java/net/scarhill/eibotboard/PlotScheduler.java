@@ -0,0 +1,233 @@
+// Copyright (c) 2011 James Ancona. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package net.scarhill.eibotboard;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Runs queued {@link PlotJob}s on a pool of boards. Every board has a thread
+ * that takes the best waiting job according to the {@link Policy}, so no board
+ * sits idle while there is work queued.
+ * <p>
+ * When a job arrives that should run before one that is already running and
+ * every board is busy, the worst running job is preempted at its next safe
+ * point: when the pen is up. The offset of its next command is saved, the
+ * carriage goes back to where the job started and the job is queued again.
+ * When it resumes, possibly on another board, the motor, servo and layer
+ * settings the job had made are sent again, the carriage travels back out, the
+ * node count is set to what the job's own SN, NI and ND commands had made it
+ * and the job carries on where it stopped. Every job is expected to start with the carriage at the
+ * same home position, and is returned there when it finishes.
+ */
+public class PlotScheduler {
+	public enum Policy {
+		/** in order of submission */
+		FIFO,
+		/** the job with the least estimated plotting time left first */
+		SHORTEST_FIRST,
+		/** the job with the highest priority first, in order of submission */
+		PRIORITY
+	}
+
+	private final Comparator<PlotJob> order;
+	private final PriorityQueue<PlotJob> queue;
+	private final List<PlotJob> running = new ArrayList<PlotJob>();
+	private final List<PlotJob> finished = new ArrayList<PlotJob>();
+	private final List<Thread> workers = new ArrayList<Thread>();
+	private volatile boolean preemptive = true;
+	private volatile int travelSpeed = 2000;
+	private long nextSequence;
+	private int idle;
+	private boolean shutdown;
+
+	public PlotScheduler(List<? extends EbbCommand> boards, Policy policy) {
+		order = comparator(policy);
+		queue = new PriorityQueue<PlotJob>(16, order);
+		for (int i = 0; i < boards.size(); i++) {
+			final EbbCommand board = boards.get(i);
+			Thread worker = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					work(board);
+				}
+			}, "PlotScheduler " + i);
+			worker.setDaemon(true);
+			workers.add(worker);
+			worker.start();
+		}
+	}
+
+	private static Comparator<PlotJob> comparator(final Policy policy) {
+		return new Comparator<PlotJob>() {
+			@Override
+			public int compare(PlotJob a, PlotJob b) {
+				if (policy == Policy.SHORTEST_FIRST) {
+					long ra = a.getRemainingMillis();
+					long rb = b.getRemainingMillis();
+					if (ra != rb)
+						return ra < rb ? -1 : 1;
+				} else if (policy == Policy.PRIORITY) {
+					if (a.getPriority() != b.getPriority())
+						return a.getPriority() > b.getPriority() ? -1 : 1;
+				}
+				return a.sequence < b.sequence ? -1 : (a.sequence == b.sequence ? 0 : 1);
+			}
+		};
+	}
+
+	/**
+	 * @param preemptive <code>false</code> to always let running jobs finish
+	 */
+	public void setPreemptive(boolean preemptive) {
+		this.preemptive = preemptive;
+	}
+
+	/**
+	 * @param stepsPerSecond the speed of the pen up moves to and from the home position
+	 */
+	public void setTravelSpeed(int stepsPerSecond) {
+		this.travelSpeed = stepsPerSecond;
+	}
+
+	public synchronized void submit(PlotJob job) {
+		if (shutdown)
+			throw new IllegalStateException("Scheduler has been shut down");
+		job.sequence = nextSequence++;
+		job.submittedAt = System.currentTimeMillis();
+		queue.add(job);
+		notifyAll();
+		if (preemptive && idle == 0) {
+			PlotJob worst = null;
+			for (PlotJob r : running) {
+				if (!r.preemptRequested && (worst == null || order.compare(r, worst) > 0))
+					worst = r;
+			}
+			if (worst != null && order.compare(job, worst) < 0)
+				worst.preemptRequested = true;
+		}
+	}
+
+	/**
+	 * Finish the queued jobs, then stop.
+	 */
+	public void shutdown() throws InterruptedException {
+		synchronized (this) {
+			shutdown = true;
+			notifyAll();
+		}
+		for (Thread worker : workers)
+			worker.join();
+	}
+
+	/**
+	 * @return the number of jobs queued or running
+	 */
+	public synchronized int getPendingCount() {
+		return queue.size() + running.size();
+	}
+
+	/**
+	 * @return the mean time from submission to completion of the jobs finished so far
+	 */
+	public synchronized double getMeanTurnaroundMillis() {
+		if (finished.isEmpty())
+			return 0;
+		long total = 0;
+		for (PlotJob job : finished)
+			total += job.getTurnaroundMillis();
+		return (double) total / finished.size();
+	}
+
+	private synchronized PlotJob take(EbbCommand board) throws InterruptedException {
+		idle++;
+		try {
+			while (queue.isEmpty() && !shutdown)
+				wait();
+		} finally {
+			idle--;
+		}
+		PlotJob job = queue.poll();
+		if (job != null) {
+			running.add(job);
+			job.board = board;
+			job.setState(PlotJob.State.RUNNING);
+		}
+		return job;
+	}
+
+	private synchronized void requeue(PlotJob job) {
+		running.remove(job);
+		job.board = null;
+		job.preempted();
+		queue.add(job);
+		notifyAll();
+	}
+
+	private synchronized void done(PlotJob job, Throwable error) {
+		running.remove(job);
+		finished.add(job);
+		job.finish(error);
+	}
+
+	private void work(EbbCommand board) {
+		try {
+			PlotJob job;
+			while ((job = take(board)) != null) {
+				try {
+					if (run(board, job))
+						done(job, null);
+					else
+						requeue(job);
+				} catch (RuntimeException e) {
+					done(job, e);
+				}
+			}
+		} catch (InterruptedException e) {
+		}
+	}
+
+	/**
+	 * @return <code>true</code> if the job finished, <code>false</code> if it was preempted
+	 */
+	private boolean run(EbbCommand board, PlotJob job) {
+		Plot plot = job.getPlot();
+		PlotState progress = job.progress;
+		if (job.offset == 0) {
+			board.setNodeCount(0);
+		} else {
+			progress.restore(board);
+			Moves.travel(board, progress.getX(), progress.getY(), travelSpeed);
+			board.setNodeCount(progress.queryNodeCount());
+		}
+		int offset = job.offset;
+		int end = plot.size();
+		while (offset < end) {
+			if (job.preemptRequested && progress.queryPen() == Plot.PEN_UP && offset > job.offset) {
+				job.offset = offset;
+				Moves.travel(board, -progress.getX(), -progress.getY(), travelSpeed);
+				return false;
+			}
+			plot.play(board, offset);
+			offset = plot.play(progress, offset);
+		}
+		job.offset = offset;
+		if (progress.queryPen() != Plot.PEN_UP)
+			board.setPenState(Plot.PEN_UP);
+		Moves.travel(board, -progress.getX(), -progress.getY(), travelSpeed);
+		return true;
+	}
+}
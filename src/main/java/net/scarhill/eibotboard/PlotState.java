@@ -0,0 +1,69 @@
+// Copyright (c) 2011 James Ancona. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package net.scarhill.eibotboard;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A {@link DryRun} that also follows the settings a plot makes, so that they
+ * can be sent to a board that is to carry on part way through: the last EM
+ * command, the SC settings, the S2 channels and the layer.
+ */
+class PlotState extends DryRun {
+	private int[] motors;
+	private final Map<Integer, Integer> servo = new TreeMap<Integer, Integer>();
+	private final Map<Integer, int[]> channels = new TreeMap<Integer, int[]>();
+
+	/**
+	 * Send the settings followed so far to <code>board</code>. The position,
+	 * node count and pen are left to the caller.
+	 */
+	void restore(EbbCommand board) {
+		// EM sets the step mode and enables the motors together, so only the last one counts
+		if (motors != null)
+			board.enableMotor(motors[0], motors[1]);
+		for (Map.Entry<Integer, Integer> e : servo.entrySet())
+			board.servoModeConfigure(e.getKey(), e.getValue());
+		for (int[] s2 : channels.values())
+			board.rcServoOutput(s2[0], s2[1], s2[2], s2[3]);
+		board.setLayer(queryLayer());
+	}
+
+	@Override
+	public void clear() {
+		super.clear();
+		motors = null;
+		servo.clear();
+		channels.clear();
+	}
+
+	@Override
+	public void enableMotor(int motor1, int motor2) {
+		super.enableMotor(motor1, motor2);
+		motors = new int[] {motor1, motor2};
+	}
+
+	@Override
+	public void servoModeConfigure(int value1, int value2) {
+		super.servoModeConfigure(value1, value2);
+		servo.put(value1, value2);
+	}
+
+	@Override
+	public void rcServoOutput(int channel, int duration, int output_pin, int rate) {
+		super.rcServoOutput(channel, duration, output_pin, rate);
+		channels.put(channel, new int[] {channel, duration, output_pin, rate});
+	}
+}
@@ -0,0 +1,250 @@
+// Copyright (c) 2011 James Ancona. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package net.scarhill.eibotboard;
+
+/**
+ * The last stage of a drawing pipeline: converts drawing units to motor steps
+ * and sends SP and SM commands to a board (or a {@link PlotRecorder}) as each
+ * point arrives.
+ * <p>
+ * Points are scaled by <code>stepsPerUnit</code>, offset by the origin, and
+ * rounded to whole steps from their absolute position, so rounding errors
+ * never accumulate. The pen is raised before a {@link #moveTo(double, double)}
+ * and lowered before the first {@link #lineTo(double, double)} of a stroke;
+ * lines that round to no movement at all are dropped.
+ * <p>
+ * Lines so short that they would take less than a millisecond at the drawing
+ * speed are coalesced: they are merged into a single SM for as long as every
+ * point skipped stays less than one step from the merged line, and until the
+ * merged line is long enough to send by itself. Consecutive pen up moves are
+ * always merged into one.
+ */
+public class StepEmitter implements PathSink {
+	private final EbbCommand board;
+	private final double stepsPerUnit;
+	private double originX;
+	private double originY;
+	private int drawSpeed = 1000;
+	private int travelSpeed = 3000;
+	private int penUpDuration = Plot.DEFAULT_PEN_DURATION;
+	private int penDownDuration = Plot.DEFAULT_PEN_DURATION;
+	private boolean penUp = true;
+	private long x;
+	private long y;
+	private long moves;
+	private boolean coalescing = true;
+	private PenTiming penTiming;
+
+	// the line being extended by moves too short to send on their own
+	private boolean pending;
+	private long pendingX;
+	private long pendingY;
+	private final long[] viaX = new long[64];
+	private final long[] viaY = new long[64];
+	private int vias;
+
+	// where the pen up move that hasn't been sent yet goes
+	private boolean travelling;
+	private long travelX;
+	private long travelY;
+
+	/**
+	 * @param stepsPerUnit the number of motor steps in one drawing unit
+	 */
+	public StepEmitter(EbbCommand board, double stepsPerUnit) {
+		this.board = board;
+		this.stepsPerUnit = stepsPerUnit;
+	}
+
+	/**
+	 * @param x the drawing position, in drawing units, where the carriage starts
+	 */
+	public void setOrigin(double x, double y) {
+		this.originX = x;
+		this.originY = y;
+	}
+
+	/**
+	 * Tell the emitter that the carriage is already at (x, y), in drawing
+	 * units, so that a stroke can start there without a pen up move. Nothing
+	 * is sent.
+	 */
+	public void setPosition(double x, double y) {
+		this.x = steps(x, originX);
+		this.y = steps(y, originY);
+		travelling = false;
+	}
+
+	/**
+	 * @return the position of the carriage in steps from the origin, once everything has been sent
+	 */
+	public long getX() {
+		return x;
+	}
+
+	public long getY() {
+		return y;
+	}
+
+	/**
+	 * @param stepsPerSecond speed with the pen down
+	 */
+	public void setDrawSpeed(int stepsPerSecond) {
+		this.drawSpeed = stepsPerSecond;
+	}
+
+	/**
+	 * @param stepsPerSecond speed with the pen up
+	 */
+	public void setTravelSpeed(int stepsPerSecond) {
+		this.travelSpeed = stepsPerSecond;
+	}
+
+	/**
+	 * @param up the duration of the SP command that raises the pen
+	 * @param down the duration of the SP command that lowers the pen
+	 */
+	public void setPenDurations(int up, int down) {
+		this.penUpDuration = up;
+		this.penDownDuration = down;
+	}
+
+	/**
+	 * Take the pen durations from a model of the servo, as it stands when each
+	 * pen move is sent.
+	 */
+	public void setPenTiming(PenTiming timing) {
+		this.penTiming = timing;
+	}
+
+	/**
+	 * @param coalescing <code>false</code> to send every line as it arrives
+	 */
+	public void setCoalescing(boolean coalescing) {
+		this.coalescing = coalescing;
+	}
+
+	/**
+	 * @return the number of SM commands sent so far
+	 */
+	public long getMoveCount() {
+		return moves;
+	}
+
+	@Override
+	public void moveTo(double x, double y) {
+		flush();
+		if (!penUp) {
+			board.setPenState(Plot.PEN_UP, penTiming != null ? penTiming.getUpMillis() : penUpDuration);
+			penUp = true;
+		}
+		// only where the pen comes down matters, so moves in a row are merged
+		travelX = steps(x, originX);
+		travelY = steps(y, originY);
+		travelling = true;
+	}
+
+	@Override
+	public void lineTo(double x, double y) {
+		long toX = steps(x, originX);
+		long toY = steps(y, originY);
+		if (travelling) {
+			travelling = false;
+			moves += Moves.travel(board, travelX - this.x, travelY - this.y, travelSpeed);
+			this.x = travelX;
+			this.y = travelY;
+		}
+		if (pending ? toX == pendingX && toY == pendingY : toX == this.x && toY == this.y)
+			return;
+		if (penUp) {
+			board.setPenState(!Plot.PEN_UP, penTiming != null ? penTiming.getDownMillis() : penDownDuration);
+			penUp = false;
+		}
+		if (!coalescing) {
+			pendingX = toX;
+			pendingY = toY;
+			pending = true;
+			flush();
+			return;
+		}
+		if (pending) {
+			if (vias < viaX.length && onLine(pendingX, pendingY, toX, toY) && viasOnLine(toX, toY)) {
+				viaX[vias] = pendingX;
+				viaY[vias] = pendingY;
+				vias++;
+			} else {
+				flush();
+			}
+		}
+		pendingX = toX;
+		pendingY = toY;
+		pending = true;
+		if (Math.max(Math.abs(toX - this.x), Math.abs(toY - this.y)) * 1000 >= drawSpeed)
+			flush();
+	}
+
+	@Override
+	public void end() {
+		flush();
+		if (!penUp) {
+			board.setPenState(Plot.PEN_UP, penTiming != null ? penTiming.getUpMillis() : penUpDuration);
+			penUp = true;
+		}
+		if (travelling) {
+			travelling = false;
+			moves += Moves.travel(board, travelX - x, travelY - y, travelSpeed);
+			x = travelX;
+			y = travelY;
+		}
+	}
+
+	/**
+	 * Send the pending line.
+	 */
+	private void flush() {
+		if (!pending)
+			return;
+		moves += Moves.travel(board, pendingX - x, pendingY - y, drawSpeed);
+		x = pendingX;
+		y = pendingY;
+		pending = false;
+		vias = 0;
+	}
+
+	private boolean viasOnLine(long toX, long toY) {
+		for (int i = 0; i < vias; i++) {
+			if (!onLine(viaX[i], viaY[i], toX, toY))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @return whether (px, py) is less than a step from the segment from the current position to (toX, toY)
+	 */
+	private boolean onLine(long px, long py, long toX, long toY) {
+		double dx = toX - x;
+		double dy = toY - y;
+		double ox = px - x;
+		double oy = py - y;
+		double length2 = dx * dx + dy * dy;
+		// past either end, as when a line doubles back, is measured to that end
+		double t = length2 == 0 ? 0 : Math.max(0, Math.min(1, (ox * dx + oy * dy) / length2));
+		return Math.hypot(ox - t * dx, oy - t * dy) < 1;
+	}
+
+	private long steps(double value, double origin) {
+		return Math.round((value - origin) * stepsPerUnit);
+	}
+}
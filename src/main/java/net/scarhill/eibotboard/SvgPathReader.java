@@ -0,0 +1,425 @@
+// Copyright (c) 2011 James Ancona. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package net.scarhill.eibotboard;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Reads the <code>d</code> attributes of the <code>&lt;path&gt;</code> elements
+ * of an SVG document and passes them to a {@link PathSink} as straight lines.
+ * <p>
+ * The document is read one character at a time and every segment is passed on
+ * as soon as its last coordinate has been read, so only a few numbers are ever
+ * held in memory, however long the file or a single path is. All path commands
+ * are supported; curves and arcs are flattened into lines that stay within
+ * <code>tolerance</code> user units of the true curve. Other elements, and
+ * <code>transform</code> attributes, are ignored, so the drawing is in the
+ * document's user units with y increasing downwards.
+ */
+public class SvgPathReader {
+	private final Reader in;
+	private final PathSink sink;
+	private double tolerance = 0.1;
+	private final StringBuilder number = new StringBuilder();
+	private int peek = -2;
+
+	// path state
+	private double x;
+	private double y;
+	private double startX;
+	private double startY;
+	private double controlX;
+	private double controlY;
+	private char last;
+
+	public SvgPathReader(Reader in, PathSink sink) {
+		this.in = in instanceof BufferedReader ? in : new BufferedReader(in);
+		this.sink = sink;
+	}
+
+	/**
+	 * @param tolerance the largest distance, in user units, between a curve and the lines that replace it
+	 */
+	public void setTolerance(double tolerance) {
+		if (!(tolerance > 0))
+			throw new IllegalArgumentException("Value '" + tolerance + "' must be greater than 0.");
+		this.tolerance = tolerance;
+	}
+
+	/**
+	 * Read the whole document, then call {@link PathSink#end()}. The reader is
+	 * not closed.
+	 */
+	public void read() throws IOException {
+		int c;
+		while ((c = next()) != -1) {
+			if (c != '<')
+				continue;
+			if (peek() == '!') {
+				skipComment();
+				continue;
+			}
+			String name = name();
+			if (name.equals("path"))
+				attributes();
+			else
+				skipTag();
+		}
+		sink.end();
+	}
+
+	private void skipComment() throws IOException {
+		next();
+		if (peek() != '-') {
+			// a DOCTYPE or CDATA section, which can't contain paths
+			skipTag();
+			return;
+		}
+		int dashes = 0;
+		int c;
+		while ((c = next()) != -1) {
+			if (c == '>' && dashes >= 2)
+				return;
+			dashes = c == '-' ? dashes + 1 : 0;
+		}
+	}
+
+	private void skipTag() throws IOException {
+		int quote = 0;
+		int c;
+		while ((c = next()) != -1) {
+			if (quote != 0) {
+				if (c == quote)
+					quote = 0;
+			} else if (c == '"' || c == '\'') {
+				quote = c;
+			} else if (c == '>') {
+				return;
+			}
+		}
+	}
+
+	private String name() throws IOException {
+		StringBuilder name = new StringBuilder();
+		int c;
+		while ((c = peek()) != -1 && !Character.isWhitespace(c) && c != '>' && c != '/' && c != '=') {
+			name.append((char) next());
+		}
+		return name.toString();
+	}
+
+	private void attributes() throws IOException {
+		while (true) {
+			skipWhitespace();
+			int c = peek();
+			if (c == -1)
+				return;
+			if (c == '>') {
+				next();
+				return;
+			}
+			if (c == '/') {
+				next();
+				continue;
+			}
+			String name = name();
+			skipWhitespace();
+			if (peek() != '=')
+				continue;
+			next();
+			skipWhitespace();
+			int quote = next();
+			if (quote != '"' && quote != '\'')
+				throw new IOException("Expected quoted value for attribute " + name);
+			if (name.equals("d")) {
+				path(quote);
+			} else {
+				while ((c = next()) != -1 && c != quote)
+					;
+			}
+		}
+	}
+
+	private void path(int quote) throws IOException {
+		// each path starts at the origin, so a leading m is absolute
+		x = 0;
+		y = 0;
+		startX = 0;
+		startY = 0;
+		last = 0;
+		char command = 0;
+		while (true) {
+			skipSeparators();
+			int c = peek();
+			if (c == quote) {
+				next();
+				return;
+			}
+			if (c == -1)
+				throw new IOException("Unterminated path data");
+			if (Character.isLetter(c) && c != 'e' && c != 'E') {
+				command = (char) next();
+				if (command == 'Z' || command == 'z') {
+					close();
+					continue;
+				}
+			} else if (command == 0) {
+				throw new IOException("Path data must start with a command, found '" + (char) c + "'");
+			}
+			segment(command);
+			// coordinates after a moveto are implicit linetos
+			if (command == 'M')
+				command = 'L';
+			else if (command == 'm')
+				command = 'l';
+		}
+	}
+
+	private void segment(char command) throws IOException {
+		boolean relative = Character.isLowerCase(command);
+		double ox = relative ? x : 0;
+		double oy = relative ? y : 0;
+		switch (Character.toUpperCase(command)) {
+		case 'M': {
+			x = ox + number();
+			y = oy + number();
+			startX = x;
+			startY = y;
+			sink.moveTo(x, y);
+			break;
+		}
+		case 'L':
+			lineTo(ox + number(), oy + number());
+			break;
+		case 'H':
+			lineTo(ox + number(), y);
+			break;
+		case 'V':
+			lineTo(x, oy + number());
+			break;
+		case 'C': {
+			double x1 = ox + number();
+			double y1 = oy + number();
+			double x2 = ox + number();
+			double y2 = oy + number();
+			cubic(x1, y1, x2, y2, ox + number(), oy + number());
+			break;
+		}
+		case 'S': {
+			double x1 = reflect(x, controlX, "CS");
+			double y1 = reflect(y, controlY, "CS");
+			double x2 = ox + number();
+			double y2 = oy + number();
+			cubic(x1, y1, x2, y2, ox + number(), oy + number());
+			break;
+		}
+		case 'Q': {
+			double x1 = ox + number();
+			double y1 = oy + number();
+			quadratic(x1, y1, ox + number(), oy + number());
+			break;
+		}
+		case 'T': {
+			double x1 = reflect(x, controlX, "QT");
+			double y1 = reflect(y, controlY, "QT");
+			quadratic(x1, y1, ox + number(), oy + number());
+			break;
+		}
+		case 'A': {
+			double rx = Math.abs(number());
+			double ry = Math.abs(number());
+			double rotation = number();
+			boolean large = flag();
+			boolean sweep = flag();
+			arc(rx, ry, rotation, large, sweep, ox + number(), oy + number());
+			break;
+		}
+		default:
+			throw new IOException("Unknown path command '" + command + "'");
+		}
+		last = Character.toUpperCase(command);
+	}
+
+	private double reflect(double current, double control, String after) {
+		return after.indexOf(last) >= 0 ? 2 * current - control : current;
+	}
+
+	private void close() {
+		if (x != startX || y != startY)
+			sink.lineTo(startX, startY);
+		x = startX;
+		y = startY;
+		last = 'Z';
+	}
+
+	private void lineTo(double toX, double toY) {
+		sink.lineTo(toX, toY);
+		x = toX;
+		y = toY;
+	}
+
+	private void cubic(double x1, double y1, double x2, double y2, double x3, double y3) {
+		// the distance from the chord is at most 3/4 of the largest second difference, divided by n squared
+		double d = Math.max(Math.hypot(x - 2 * x1 + x2, y - 2 * y1 + y2), Math.hypot(x1 - 2 * x2 + x3, y1 - 2 * y2 + y3));
+		int n = segments(0.75 * d);
+		double x0 = x;
+		double y0 = y;
+		for (int i = 1; i < n; i++) {
+			double t = (double) i / n;
+			double u = 1 - t;
+			double a = u * u * u, b = 3 * u * u * t, c = 3 * u * t * t, e = t * t * t;
+			sink.lineTo(a * x0 + b * x1 + c * x2 + e * x3, a * y0 + b * y1 + c * y2 + e * y3);
+		}
+		lineTo(x3, y3);
+		controlX = x2;
+		controlY = y2;
+	}
+
+	private void quadratic(double x1, double y1, double x2, double y2) {
+		double d = Math.hypot(x - 2 * x1 + x2, y - 2 * y1 + y2);
+		int n = segments(0.25 * d);
+		double x0 = x;
+		double y0 = y;
+		for (int i = 1; i < n; i++) {
+			double t = (double) i / n;
+			double u = 1 - t;
+			double a = u * u, b = 2 * u * t, c = t * t;
+			sink.lineTo(a * x0 + b * x1 + c * x2, a * y0 + b * y1 + c * y2);
+		}
+		lineTo(x2, y2);
+		controlX = x1;
+		controlY = y1;
+	}
+
+	private int segments(double deviation) {
+		return (int) Math.min(10000, Math.max(1, Math.ceil(Math.sqrt(deviation / tolerance))));
+	}
+
+	/**
+	 * Flatten an elliptical arc, following the endpoint to center conversion in
+	 * the SVG specification (appendix F.6).
+	 */
+	private void arc(double rx, double ry, double rotation, boolean large, boolean sweep, double toX, double toY) {
+		if (toX == x && toY == y)
+			return;
+		if (rx == 0 || ry == 0) {
+			lineTo(toX, toY);
+			return;
+		}
+		double phi = Math.toRadians(rotation);
+		double cos = Math.cos(phi);
+		double sin = Math.sin(phi);
+		double dx = (x - toX) / 2;
+		double dy = (y - toY) / 2;
+		double x1 = cos * dx + sin * dy;
+		double y1 = -sin * dx + cos * dy;
+		double scale = (x1 * x1) / (rx * rx) + (y1 * y1) / (ry * ry);
+		if (scale > 1) {
+			rx *= Math.sqrt(scale);
+			ry *= Math.sqrt(scale);
+		}
+		double num = rx * rx * ry * ry - rx * rx * y1 * y1 - ry * ry * x1 * x1;
+		double den = rx * rx * y1 * y1 + ry * ry * x1 * x1;
+		double k = Math.sqrt(Math.max(0, num / den));
+		if (large == sweep)
+			k = -k;
+		double cx1 = k * rx * y1 / ry;
+		double cy1 = -k * ry * x1 / rx;
+		double cx = cos * cx1 - sin * cy1 + (x + toX) / 2;
+		double cy = sin * cx1 + cos * cy1 + (y + toY) / 2;
+		double theta = Math.atan2((y1 - cy1) / ry, (x1 - cx1) / rx);
+		double delta = Math.atan2((-y1 - cy1) / ry, (-x1 - cx1) / rx) - theta;
+		if (sweep && delta < 0)
+			delta += 2 * Math.PI;
+		else if (!sweep && delta > 0)
+			delta -= 2 * Math.PI;
+
+		double r = Math.max(rx, ry);
+		double step = r > tolerance ? 2 * Math.acos(1 - tolerance / r) : Math.PI / 2;
+		int n = (int) Math.min(10000, Math.max(1, Math.ceil(Math.abs(delta) / step)));
+		for (int i = 1; i < n; i++) {
+			double a = theta + delta * i / n;
+			double ex = rx * Math.cos(a);
+			double ey = ry * Math.sin(a);
+			sink.lineTo(cos * ex - sin * ey + cx, sin * ex + cos * ey + cy);
+		}
+		lineTo(toX, toY);
+	}
+
+	private double number() throws IOException {
+		skipSeparators();
+		StringBuilder number = this.number;
+		number.setLength(0);
+		int c = peek();
+		if (c == '+' || c == '-')
+			number.append((char) next());
+		boolean dot = false;
+		while ((c = peek()) != -1) {
+			if (c >= '0' && c <= '9') {
+				number.append((char) next());
+			} else if (c == '.' && !dot) {
+				dot = true;
+				number.append((char) next());
+			} else if ((c == 'e' || c == 'E') && number.length() > 0) {
+				number.append((char) next());
+				c = peek();
+				if (c == '+' || c == '-')
+					number.append((char) next());
+				while ((c = peek()) >= '0' && c <= '9')
+					number.append((char) next());
+				break;
+			} else {
+				break;
+			}
+		}
+		try {
+			return Double.parseDouble(number.toString());
+		} catch (NumberFormatException e) {
+			throw new IOException("Invalid number '" + number + "' in path data");
+		}
+	}
+
+	private boolean flag() throws IOException {
+		skipSeparators();
+		int c = next();
+		if (c != '0' && c != '1')
+			throw new IOException("Invalid arc flag in path data");
+		return c == '1';
+	}
+
+	private void skipWhitespace() throws IOException {
+		while (Character.isWhitespace(peek()))
+			next();
+	}
+
+	private void skipSeparators() throws IOException {
+		int c;
+		while ((c = peek()) == ',' || Character.isWhitespace(c))
+			next();
+	}
+
+	private int peek() throws IOException {
+		if (peek == -2)
+			peek = in.read();
+		return peek;
+	}
+
+	private int next() throws IOException {
+		int c = peek();
+		peek = -2;
+		return c;
+	}
+}
@@ -0,0 +1,191 @@
+// Copyright (c) 2011 James Ancona. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package net.scarhill.eibotboard;
+
+import net.scarhill.eibotboard.UbwException.ErrorCode;
+
+/**
+ * Samples the supply voltage and motor current (QC), the button (QB) and the
+ * node count (QN) while a board is plotting, keeping the most recent samples
+ * of each in a ring buffer of primitives.
+ * <p>
+ * The queries are made by a thread that is streaming to the board, in the
+ * gaps when it would otherwise be waiting: attached with
+ * {@link Ebb#setTelemetry(Telemetry)}, {@link #sample(EbbCommand, long)} is
+ * called after every SM, SP and TP with how much motion the board still has
+ * queued. A query is only made when that is more than
+ * <code>minLead</code> plus the last round trip time, so the board always has
+ * something to do while the reply comes back, and at most one query is made
+ * per call. When nothing is queued, as between jobs, nothing is sampled.
+ * <p>
+ * QB reports whether the button has been pressed since the last QB, so
+ * sampling it takes that report away from anything else that asks.
+ */
+public class Telemetry {
+	/**
+	 * What is sampled.
+	 */
+	public enum Channel {
+		/** QC: the value is the motor current reading and value2 the supply voltage reading */
+		CURRENT,
+		/** QB: the value is 1 if the button was pressed since the last sample */
+		BUTTON,
+		/** QN: the value is the node count */
+		NODE_COUNT
+	}
+
+	private static final int CHANNELS = Channel.values().length;
+
+	private final int capacity;
+	private final long[][] times;
+	private final long[][] values;
+	private final long[][] values2;
+	private final int[] counts = new int[CHANNELS];
+	private final long[] totals = new long[CHANNELS];
+	private final long[] intervals = new long[CHANNELS];
+	private final long[] due = new long[CHANNELS];
+	private volatile long minLead = 10;
+	private volatile long roundTrip;
+
+	/**
+	 * @param capacity how many samples of each channel to keep
+	 */
+	public Telemetry(int capacity) {
+		if (capacity < 1)
+			throw new IllegalArgumentException("Value '" + capacity + "' must be at least 1.");
+		this.capacity = capacity;
+		times = new long[CHANNELS][capacity];
+		values = new long[CHANNELS][capacity];
+		values2 = new long[CHANNELS][capacity];
+	}
+
+	/**
+	 * @param millis how often to sample <code>channel</code>, or 0 not to
+	 */
+	public synchronized void setInterval(Channel channel, long millis) {
+		intervals[channel.ordinal()] = millis;
+	}
+
+	/**
+	 * @param millis how much queued motion to always leave the board
+	 */
+	public void setMinLead(long millis) {
+		this.minLead = millis;
+	}
+
+	/**
+	 * @return the time the last query took, in ms
+	 */
+	public long getRoundTripMillis() {
+		return roundTrip;
+	}
+
+	/**
+	 * Make the most overdue query, if there is one and the board has enough
+	 * motion queued. Calls must not overlap; {@link Ebb} makes sure of that
+	 * when several threads are sending.
+	 *
+	 * @param leadMillis how long the board will be busy with motion it has already been sent
+	 */
+	public void sample(EbbCommand board, long leadMillis) {
+		if (leadMillis <= minLead + roundTrip)
+			return;
+		long now = System.currentTimeMillis();
+		int channel = -1;
+		synchronized (this) {
+			long overdue = 0;
+			for (int i = 0; i < CHANNELS; i++) {
+				if (intervals[i] > 0 && now >= due[i] && (channel < 0 || now - due[i] > overdue)) {
+					channel = i;
+					overdue = now - due[i];
+				}
+			}
+			if (channel < 0)
+				return;
+			due[channel] = now + intervals[channel];
+		}
+		long value = 0;
+		long value2 = 0;
+		try {
+			switch (Channel.values()[channel]) {
+			case CURRENT:
+				int[] current = board.queryCurrent();
+				value = current[0];
+				value2 = current[1];
+				break;
+			case BUTTON:
+				value = board.queryButton() ? 1 : 0;
+				break;
+			case NODE_COUNT:
+				value = board.queryNodeCount();
+				break;
+			}
+		} catch (UbwException e) {
+			if (e.getErrorCode() != ErrorCode.UNKNOWN_COMMAND)
+				throw e;
+			// the firmware hasn't got this query
+			setInterval(Channel.values()[channel], 0);
+			return;
+		}
+		roundTrip = System.currentTimeMillis() - now;
+		add(channel, now, value, value2);
+	}
+
+	private synchronized void add(int channel, long time, long value, long value2) {
+		int i = (int) (totals[channel] % capacity);
+		times[channel][i] = time;
+		values[channel][i] = value;
+		values2[channel][i] = value2;
+		totals[channel]++;
+		if (counts[channel] < capacity)
+			counts[channel]++;
+	}
+
+	/**
+	 * @return the number of samples of <code>channel</code> held
+	 */
+	public synchronized int size(Channel channel) {
+		return counts[channel.ordinal()];
+	}
+
+	/**
+	 * @return the number of samples of <code>channel</code> taken, including those no longer held
+	 */
+	public synchronized long getTotal(Channel channel) {
+		return totals[channel.ordinal()];
+	}
+
+	/**
+	 * @param index 0 for the oldest sample held, up to <code>size(channel) - 1</code> for the newest
+	 * @return the time a sample was asked for, from {@link System#currentTimeMillis()}
+	 */
+	public synchronized long getTime(Channel channel, int index) {
+		return times[channel.ordinal()][slot(channel, index)];
+	}
+
+	public synchronized long getValue(Channel channel, int index) {
+		return values[channel.ordinal()][slot(channel, index)];
+	}
+
+	public synchronized long getValue2(Channel channel, int index) {
+		return values2[channel.ordinal()][slot(channel, index)];
+	}
+
+	private int slot(Channel channel, int index) {
+		int c = channel.ordinal();
+		if (index < 0 || index >= counts[c])
+			throw new IndexOutOfBoundsException("Index " + index + ", size " + counts[c]);
+		return (int) ((totals[c] - counts[c] + index) % capacity);
+	}
+}
@@ -24,22 +24,52 @@ import gnu.io.UnsupportedCommOperationException;
 
 import java.io.BufferedOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.nio.charset.Charset;
+import java.util.ArrayList;
 import java.util.Enumeration;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
 import java.util.TooManyListenersException;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import net.scarhill.eibotboard.UbwException.ErrorCode;
 
-
+/**
+ * Any number of threads may send commands to a board at once; each gets the
+ * replies to its own commands.
+ * <p>
+ * With {@link #setReconnect(long)}, a board that drops off the bus is looked
+ * for again, and commands wait for it rather than failing.
+ */
 public class Ubw implements UbwCommand {
-	private static final Charset ASCII = Charset.forName("US-ASCII");
+	static final Charset ASCII = Charset.forName("US-ASCII");
+	private static final String OK = "OK";
+	private static final long RETRY_MILLIS = 250;
+	private static final long HANDSHAKE_MILLIS = 2000;
+	// version strings of the boards opened by this JVM, by port name
+	private static final Map<String, String> connectedVersions = new ConcurrentHashMap<String, String>();
 	private SerialPort serialPort = null;
+	private String portName;
 	private BufferedOutputStream out;
+	private CommandQueue queue;
+	/** each thread's last command */
+	private final ThreadLocal<CommandQueue.Request> sent = new ThreadLocal<CommandQueue.Request>();
 	private SerialReader reader;
-	private TimerListener timerListener;
+	private InputStream source;
+	private volatile TimerListener timerListener;
+	private volatile FirmwareVersion firmwareVersion;
+	private volatile long reconnectMillis;
+	private final AtomicBoolean reconnecting = new AtomicBoolean();
+	private volatile boolean closing;
+	// the last C and O commands, to restore after reconnecting
+	private volatile String directions;
+	private volatile String outputs;
 
 	public Ubw() {
         Enumeration thePorts = CommPortIdentifier.getPortIdentifiers();
@@ -65,6 +95,34 @@ public class Ubw implements UbwCommand {
 			throw new UbwException("Error opening port: " + port, e, UbwException.ErrorCode.COMM_ERROR);
 		}
 	}
+	/**
+	 * Connect to a board over an already opened pair of streams, e.g. a TCP
+	 * serial bridge or a simulated board. Responses are read by a daemon thread.
+	 */
+	public Ubw(InputStream in, OutputStream out) {
+		this(null, in, out);
+	}
+	/**
+	 * Connect to the board on serial port <code>portName</code> over an
+	 * already opened pair of streams, e.g. a TCP serial bridge for that port.
+	 * As when the port is opened by name, a board this JVM has already reset
+	 * on that port isn't reset again unless its firmware version has changed.
+	 * With a <code>null</code> port name the board is always reset.
+	 */
+	public Ubw(String portName, InputStream in, OutputStream out) {
+		source = in;
+		reader = new SerialReader(new InputStreamReader(in, ASCII));
+		this.out = new BufferedOutputStream(out);
+		queue = new CommandQueue(this.out, lostHandler());
+		startReader();
+		handshake(portName);
+	}
+
+	private void startReader() {
+		Thread readerThread = new Thread(reader, "Ubw reader");
+		readerThread.setDaemon(true);
+		readerThread.start();
+	}
 
 	private void connect(CommPortIdentifier portIdentifier) throws NoSuchPortException,
 			PortInUseException, UnsupportedCommOperationException, IOException, TooManyListenersException {
@@ -73,26 +131,259 @@ public class Ubw implements UbwCommand {
 			serialPort = (SerialPort) commPort;
 			serialPort.setSerialPortParams(9600, SerialPort.DATABITS_8,
 					SerialPort.STOPBITS_1, SerialPort.PARITY_NONE);
+			portName = portIdentifier.getName();
+			out = new BufferedOutputStream(serialPort.getOutputStream());
+			queue = new CommandQueue(out, lostHandler());
 			reader = new SerialReader(new InputStreamReader(serialPort.getInputStream()));
 			serialPort.addEventListener(reader);
             serialPort.notifyOnDataAvailable(true);
-			out = new BufferedOutputStream(serialPort.getOutputStream());
-			reset();
+			handshake(portName);
 		} else {
 			throw new UbwException("Port " + portIdentifier.getName() + " is not a serial port", UbwException.ErrorCode.COMM_ERROR);
 		}
 	}
 	
+	/**
+	 * Read the board's version, so that reconnecting can tell this board from
+	 * any other, and reset it unless this JVM has already reset it on
+	 * <code>portName</code> with the same firmware.
+	 */
+	private void handshake(String portName) {
+		String version = version();
+		firmwareVersion = new FirmwareVersion(version);
+		if (portName == null || !version.equals(connectedVersions.put(portName, version)))
+			reset();
+	}
+
 	public void close() {
-        serialPort.notifyOnDataAvailable(false);
-        serialPort.removeEventListener();
+		closing = true;
+		disconnect();
+		queue.close();
+	}
+
+	private void disconnect() {
+		if (serialPort != null) {
+	        serialPort.notifyOnDataAvailable(false);
+	        serialPort.removeEventListener();
+		}
 		try {
 			reader.close();
 		} catch (IOException ex) {}
 		try {
 			out.close();
 		} catch (IOException ex) {}
-		serialPort.close();
+		if (serialPort != null)
+			serialPort.close();
+	}
+
+	/**
+	 * Look for the board again if the connection to it is lost. While it is
+	 * being looked for, commands are queued and callers wait. When it is found,
+	 * it is given back its settings (see {@link #restoreCommands(List)}) in one
+	 * burst, then sent every command that hadn't been answered, so a plot that
+	 * was running carries on. If it isn't found in time, everything waiting
+	 * fails.
+	 *
+	 * @param millis how long to look for the board, or 0 not to
+	 */
+	public void setReconnect(long millis) {
+		this.reconnectMillis = millis;
+	}
+
+	/**
+	 * @return <code>true</code> while the board is being looked for
+	 */
+	public boolean isReconnecting() {
+		return queue.isSuspended();
+	}
+
+	private Runnable lostHandler() {
+		return new Runnable() {
+			@Override
+			public void run() {
+				lost();
+			}
+		};
+	}
+
+	/**
+	 * The connection has gone: look for the board on another thread, or fail
+	 * everything waiting.
+	 */
+	private void lost() {
+		if (closing || reconnectMillis <= 0) {
+			queue.close();
+			return;
+		}
+		queue.suspend();
+		if (!reconnecting.compareAndSet(false, true))
+			return;
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				reconnect();
+			}
+		}, "Ubw reconnect");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	private void reconnect() {
+		long deadline = System.currentTimeMillis() + reconnectMillis;
+		disconnect();
+		try {
+			while (!closing) {
+				try {
+					if (reopen())
+						return;
+				} catch (IOException e) {
+				} catch (UbwException e) {
+				}
+				if (System.currentTimeMillis() >= deadline)
+					break;
+				Thread.sleep(RETRY_MILLIS);
+			}
+		} catch (InterruptedException e) {
+		}
+		queue.close();
+		reconnecting.set(false);
+	}
+
+	/**
+	 * Open a new connection to the board after the old one was lost, and pass
+	 * it to {@link #attach(InputStream, OutputStream)}. This is tried until it
+	 * succeeds or the time given to {@link #setReconnect(long)} runs out.
+	 * <p>
+	 * The serial port the board was on is tried first, then every other serial
+	 * port, since a board may come back under a different name. A board
+	 * connected through streams can't be reopened unless this is overridden.
+	 *
+	 * @return <code>true</code> if the board was found
+	 */
+	protected boolean reopen() throws IOException {
+		if (portName == null)
+			return false;
+		List<CommPortIdentifier> candidates = new ArrayList<CommPortIdentifier>();
+		try {
+			candidates.add(CommPortIdentifier.getPortIdentifier(portName));
+		} catch (NoSuchPortException e) {
+		}
+		Enumeration<?> thePorts = CommPortIdentifier.getPortIdentifiers();
+		while (thePorts.hasMoreElements()) {
+			CommPortIdentifier com = (CommPortIdentifier) thePorts.nextElement();
+			if (com.getPortType() == CommPortIdentifier.PORT_SERIAL && !com.getName().equals(portName))
+				candidates.add(com);
+		}
+		for (CommPortIdentifier candidate : candidates) {
+			CommPort commPort;
+			try {
+				commPort = candidate.open(this.getClass().getName(), 2000);
+			} catch (PortInUseException e) {
+				continue;
+			}
+			try {
+				if (commPort instanceof SerialPort) {
+					SerialPort port = (SerialPort) commPort;
+					port.setSerialPortParams(9600, SerialPort.DATABITS_8,
+							SerialPort.STOPBITS_1, SerialPort.PARITY_NONE);
+					serialPort = port;
+					if (attach(port.getInputStream(), port.getOutputStream())) {
+						portName = candidate.getName();
+						return true;
+					}
+				}
+			} catch (UnsupportedCommOperationException e) {
+			} catch (IOException e) {
+			}
+			serialPort = null;
+			commPort.close();
+		}
+		return false;
+	}
+
+	/**
+	 * Take over a new connection to the board from {@link #reopen()}. The
+	 * board must answer V with the same version as before. It is sent the
+	 * commands from {@link #restoreCommands(List)} all at once, and then
+	 * everything that was waiting.
+	 *
+	 * @return <code>false</code> if this is some other board
+	 */
+	protected boolean attach(final InputStream in, OutputStream out) throws IOException {
+		InputStreamReader lines = new InputStreamReader(in, ASCII);
+		BufferedOutputStream buffered = new BufferedOutputStream(out);
+		// a device that doesn't answer is given up on by closing it
+		final AtomicBoolean expired = new AtomicBoolean();
+		Timer watchdog = new Timer("Ubw handshake", true);
+		watchdog.schedule(new TimerTask() {
+			@Override
+			public void run() {
+				expired.set(true);
+				try {
+					in.close();
+				} catch (IOException e) {
+				}
+			}
+		}, HANDSHAKE_MILLIS);
+		try {
+			buffered.write('V');
+			buffered.write(13);
+			buffered.flush();
+			String version = readLine(lines);
+			if (version == null || !version.equals(firmwareVersion.toString()))
+				return false;
+			List<String> restore = new ArrayList<String>();
+			restoreCommands(restore);
+			for (String command : restore) {
+				buffered.write(command.getBytes(ASCII));
+				buffered.write(13);
+			}
+			buffered.flush();
+			// a setting this firmware rejects is left as it is
+			for (int i = 0; i < restore.size(); i++) {
+				if (readLine(lines) == null)
+					return false;
+			}
+		} finally {
+			watchdog.cancel();
+		}
+		if (expired.get())
+			return false;
+		this.out = buffered;
+		source = in;
+		reader = new SerialReader(lines);
+		reconnecting.set(false);
+		// the queue resets what it has received, so nothing may be reading yet
+		queue.resume(buffered);
+		startReader();
+		return true;
+	}
+
+	private static String readLine(InputStreamReader in) throws IOException {
+		StringBuilder line = new StringBuilder();
+		int c;
+		while ((c = in.read()) > -1) {
+			if (c == '\n' || c == '\r') {
+				// the line feed after the carriage return, as SerialReader skips it
+				in.read();
+				if (line.length() > 0)
+					return line.toString();
+			} else {
+				line.append((char) c);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Add the commands that give a board that has been reconnected the
+	 * settings it had: the port directions and outputs.
+	 */
+	protected void restoreCommands(List<String> commands) {
+		if (directions != null)
+			commands.add(directions);
+		if (outputs != null)
+			commands.add(outputs);
 	}
 
 	@Override
@@ -101,7 +392,10 @@ public class Ubw implements UbwCommand {
 		validateByte(dirB);
 		validateByte(dirC);
 		validateRange(analogEnableCount, 0, 13);
-		execute("C," + dirA + "," + dirB + "," + dirC + "," + analogEnableCount);
+		String command = "C," + dirA + "," + dirB + "," + dirC + "," + analogEnableCount;
+		execute(command);
+		readResponse();
+		directions = command;
 	}
 
 	@Override
@@ -109,8 +403,10 @@ public class Ubw implements UbwCommand {
 		validateByte(portA);
 		validateByte(portB);
 		validateByte(portC);
-		execute("O," + portA + "," + portB + "," + portC);
+		String command = "O," + portA + "," + portB + "," + portC;
+		execute(command);
 		readResponse();
+		outputs = command;
 	}
 
 
@@ -120,17 +416,44 @@ public class Ubw implements UbwCommand {
 		String s = readResponse();
 		return processState(s);
 	}
-    private int[] processState(String s) {
-        try {
-			String[] r = s.split(",");
-			int[] response = new int[3];
-			response[0] = Integer.parseInt(r[1]);
-			response[1] = Integer.parseInt(r[2]);
-			response[2] = Integer.parseInt(r[3]);
-			return response;
-		} catch (RuntimeException e) {
-			throw new UbwException("Exception parsing response: '" + s + "'", e, UbwException.ErrorCode.RESPONSE_ERROR);
-		}
+    private int[] processState(CharSequence s) {
+        return parseFields(s, 1);
+    }
+
+    /**
+     * Parse a reply of comma separated unsigned decimal fields, such as
+     * "I,001,002,003", without creating a String for each field.
+     *
+     * @param skip the number of leading fields that aren't numbers
+     */
+    static int[] parseFields(CharSequence s, int skip) {
+        int count = 1;
+        for (int i = 0; i < s.length(); i++) {
+            if (s.charAt(i) == ',')
+                count++;
+        }
+        if (count <= skip)
+            throw new UbwException("Exception parsing response: '" + s + "'", UbwException.ErrorCode.RESPONSE_ERROR);
+        int[] response = new int[count - skip];
+        int field = -skip;
+        int digits = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == ',') {
+                if (field >= 0 && digits == 0)
+                    break;
+                field++;
+                digits = 0;
+            } else if (field >= 0) {
+                if (c < '0' || c > '9' || digits == 9)
+                    throw new UbwException("Exception parsing response: '" + s + "'", UbwException.ErrorCode.RESPONSE_ERROR);
+                response[field] = response[field] * 10 + c - '0';
+                digits++;
+            }
+        }
+        if (digits == 0)
+            throw new UbwException("Exception parsing response: '" + s + "'", UbwException.ErrorCode.RESPONSE_ERROR);
+        return response;
     }
 
 	@Override
@@ -139,6 +462,15 @@ public class Ubw implements UbwCommand {
 		return readResponse();
 	}
 
+	/**
+	 * @return the parsed firmware version. It is only read from the board once.
+	 */
+	public FirmwareVersion firmwareVersion() {
+		if (firmwareVersion == null)
+			firmwareVersion = new FirmwareVersion(version());
+		return firmwareVersion;
+	}
+
 	@Override
 	public void reset() {
 		execute("R");
@@ -160,14 +492,8 @@ public class Ubw implements UbwCommand {
 
 	@Override
 	public int[] sampleAnalogInputs() {
-		execute("R");
-		String s = readResponse();
-		String[] r = s.split(",");
-		int[] response = new int[r.length - 1];
-		for (int i = 1; i < r.length; i++) {
-			response[i - 1] = Integer.parseInt(r[i]);
-		}
-		return response;
+		execute("A");
+		return processState(readResponse());
 	}
 
 	@Override
@@ -235,13 +561,13 @@ public class Ubw implements UbwCommand {
 	}
 	@Override
 	public void bulkStream(byte[] byteStream) {
-		try {
-			out.write(("BS," + byteStream.length + ",").getBytes(ASCII));
-			out.write(byteStream);
-			out.write(13);
-		} catch (IOException e) {
-			throw new UbwException("Exception writing command 'BS," + byteStream.length + ",' to device", e, UbwException.ErrorCode.COMM_ERROR);
-		}
+		String prefix = "BS," + byteStream.length + ",";
+		byte[] command = new byte[prefix.length() + byteStream.length + 1];
+		for (int i = 0; i < prefix.length(); i++)
+			command[i] = (byte) prefix.charAt(i);
+		System.arraycopy(byteStream, 0, command, prefix.length(), byteStream.length);
+		command[command.length - 1] = 13;
+		sent.set(queue.submit(command, 1, false));
 		readResponse();
 	}
 
@@ -254,18 +580,99 @@ public class Ubw implements UbwCommand {
 			throw new IllegalArgumentException("Value '" + value + "' must be between " + l + " and " + m + ".");
 		
 	}
+	/**
+	 * Send a command. Its replies are read with {@link #readResponse()} on the
+	 * same thread; a thread's earlier replies that haven't been read are
+	 * discarded.
+	 */
 	protected void execute(String command) {
-		try {
-		    System.out.println(command);
-			out.write(command.getBytes(Charset.forName("US-ASCII")));
-			out.write(13);
-			out.flush();
-		} catch (IOException e) {
-			throw new UbwException("Exception writing command '" + command + "' to device", e, UbwException.ErrorCode.COMM_ERROR);
+		byte[] bytes = new byte[command.length() + 1];
+		for (int i = 0; i < command.length(); i++)
+			bytes[i] = (byte) command.charAt(i);
+		bytes[command.length()] = 13;
+		// the answers to I and to A (analog inputs) look like timer packets
+		boolean packetReply = command.equals("I") || command.equals("A");
+		sent.set(queue.submit(bytes, replyLines(command), packetReply));
+	}
+	/**
+	 * Send a command made of a mnemonic and numeric arguments, such as
+	 * "SM,100,5,-5", encoding it straight into the bytes that are queued
+	 * rather than building a String first. There is one of these for each
+	 * number of arguments up to four, so that no array is made for them.
+	 */
+	protected void execute(String mnemonic, long arg1) {
+		execute(mnemonic, 1, arg1, 0, 0, 0);
+	}
+	protected void execute(String mnemonic, long arg1, long arg2) {
+		execute(mnemonic, 2, arg1, arg2, 0, 0);
+	}
+	protected void execute(String mnemonic, long arg1, long arg2, long arg3) {
+		execute(mnemonic, 3, arg1, arg2, arg3, 0);
+	}
+	protected void execute(String mnemonic, long arg1, long arg2, long arg3, long arg4) {
+		execute(mnemonic, 4, arg1, arg2, arg3, arg4);
+	}
+	private void execute(String mnemonic, int count, long arg1, long arg2, long arg3, long arg4) {
+		int length = mnemonic.length() + 1 + count + digits(arg1);
+		if (count > 1)
+			length += digits(arg2);
+		if (count > 2)
+			length += digits(arg3);
+		if (count > 3)
+			length += digits(arg4);
+		byte[] bytes = new byte[length];
+		int p = 0;
+		for (int i = 0; i < mnemonic.length(); i++)
+			bytes[p++] = (byte) mnemonic.charAt(i);
+		p = encode(bytes, p, arg1);
+		if (count > 1)
+			p = encode(bytes, p, arg2);
+		if (count > 2)
+			p = encode(bytes, p, arg3);
+		if (count > 3)
+			p = encode(bytes, p, arg4);
+		bytes[p] = 13;
+		sent.set(queue.submit(bytes, replyLines(mnemonic), false));
+	}
+	/**
+	 * Write a comma and <code>arg</code> in decimal at <code>p</code>.
+	 *
+	 * @return the position after it
+	 */
+	private static int encode(byte[] bytes, int p, long arg) {
+		bytes[p++] = ',';
+		if (arg < 0) {
+			bytes[p++] = '-';
+			arg = -arg;
 		}
+		int end = p + digits(arg);
+		p = end;
+		do {
+			bytes[--end] = (byte) ('0' + arg % 10);
+			arg /= 10;
+		} while (arg > 0);
+		return p;
+	}
+	private static int digits(long value) {
+		int n = value < 0 ? 2 : 1;
+		for (long v = Math.abs(value); v >= 10; v /= 10)
+			n++;
+		return n;
 	}
+	/**
+	 * @return the next line of the reply to this thread's last command
+	 */
 	protected String readResponse() {
-	    return reader.getLastLine();
+		CommandQueue.Request request = sent.get();
+		if (request == null)
+			throw new UbwException("No command has been sent", ErrorCode.RESPONSE_ERROR);
+		return request.nextLine();
+	}
+	/**
+	 * @return the number of lines the board replies to <code>command</code> with, when it succeeds
+	 */
+	protected int replyLines(String command) {
+		return 1;
 	}
 
 	static final char[] HEXES = { '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'A', 'B', 'C', 'D', 'E', 'F' };
@@ -280,55 +687,96 @@ public class Ubw implements UbwCommand {
 		}
 		return hex.toString();
 	}
-    public class SerialReader implements SerialPortEventListener {
+    public class SerialReader implements SerialPortEventListener, Runnable {
         private InputStreamReader in;
         private StringBuilder builder = new StringBuilder();
-        private BlockingQueue<String> lines = new LinkedBlockingQueue<String>();
+        // read in blocks: InputStreamReader.read() allocates for every character
+        private final char[] buffer = new char[256];
+        private boolean skipNext;
+        private volatile boolean closed;
         
         public SerialReader (InputStreamReader in) {
             this.in = in;
         }
         public void close() throws IOException {
+            closed = true;
+            // unblocks the reader thread, which holds the reader's lock
+            if (source != null)
+                source.close();
             in.close();
         }
-        public String getLastLine() {
-            String line;
-            try {
-                line = lines.take();
-            } catch (InterruptedException e) {
-                throw new UbwException("Exception receiving data", e, ErrorCode.COMM_ERROR);
-            }
-            if (line.startsWith("!") && line.length() >= 2)
-                throw new UbwException("Error: " + line.substring(2), ErrorCode.valueOf(line.substring(0,2)));
-            return line;
-        }
 
         public void serialEvent(SerialPortEvent event) {
             if (event.getEventType() == SerialPortEvent.DATA_AVAILABLE) {
                 try {
-                    int c = 0;
-                    while (in.ready() && (c = in.read()) > -1) {
-                        if (c == '\n' || c == '\r') {
-                            processLine(builder.toString());
-                            builder.setLength(0);
-                            in.read();
-                        } else {
-                            builder.append((char)c);
-                        }
+                    int n;
+                    while (in.ready() && (n = in.read(buffer)) > -1) {
+                        for (int i = 0; i < n; i++)
+                            processChar(buffer[i]);
                     }
                 } catch (IOException e) {
-                    throw new UbwException("Exception receiving data", e, ErrorCode.COMM_ERROR);
+                    if (!closed)
+                        lost();
                 }
             }
         }
 
-        private void processLine(String string) {
-            System.out.println("line=" + string);
-            char start = string.substring(0, 1).toUpperCase().charAt(0);
-            if (timerListener != null && (start == 'I' || start == 'A')) {
-                timerListener.timerResponse(TimerMode.fromChar(start), processState(string));
+        /**
+         * Blocking read loop, used when the board is connected through plain streams.
+         */
+        public void run() {
+            try {
+                int n;
+                while ((n = in.read(buffer)) > -1) {
+                    for (int i = 0; i < n; i++)
+                        processChar(buffer[i]);
+                }
+            } catch (IOException e) {
+            }
+            // so a caller waiting for a response doesn't hang
+            if (!closed)
+                lost();
+        }
+
+        private void processChar(char c) {
+            if (skipNext) {
+                // the line feed after a carriage return
+                skipNext = false;
+            } else if (c == '\n' || c == '\r') {
+                processLine(builder);
+                builder.setLength(0);
+                skipNext = true;
+            } else {
+                builder.append(c);
+            }
+        }
+
+        /**
+         * Timer packets are parsed straight from the line buffer, and the
+         * usual "OK" doesn't need a new String.
+         */
+        private void processLine(StringBuilder line) {
+            if (line.length() == 0)
+                return;
+            char start = Character.toUpperCase(line.charAt(0));
+            if ((start == 'I' || start == 'A') && !queue.expectsPacket()) {
+                TimerListener listener = timerListener;
+                if (listener != null) {
+                    int[] values;
+                    try {
+                        values = processState(line);
+                    } catch (UbwException e) {
+                        // not a packet we understand
+                        return;
+                    }
+                    listener.timerResponse(TimerMode.fromChar(start), values);
+                }
+                return;
             }
-            lines.add(string);
+            if (line.length() == 2 && line.charAt(0) == 'O' && line.charAt(1) == 'K')
+                queue.received(OK);
+            else
+                queue.received(line.toString());
         }
 
     }
@@ -0,0 +1,455 @@
+// Copyright (c) 2011 James Ancona. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package net.scarhill.eibotboard;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.HashSet;
+import java.util.Set;
+
+import net.scarhill.eibotboard.UbwCommand.PinDirection;
+import net.scarhill.eibotboard.UbwCommand.Port;
+import net.scarhill.eibotboard.UbwCommand.TimerListener;
+import net.scarhill.eibotboard.UbwCommand.TimerMode;
+
+import org.junit.Test;
+
+
+/**
+ * Checks how much each command allocates, on the calling thread and on the
+ * thread reading the replies, against a budget in bytes per call. The board
+ * is an {@link EbbSimulator} on a localhost socket; what it allocates isn't
+ * counted. Each group of commands is measured in a JVM of its own, started
+ * by the test, since what the JIT compiler manages to remove depends on what
+ * else has run: after other tests have exercised the same code, the same
+ * commands can measure 50 bytes more. Even so it doesn't remove the same
+ * allocations every time, so some commands vary by a few dozen bytes from run
+ * to run, and the budgets are 64 bytes above the most that a 64 bit JVM with
+ * compressed references measures over many runs: enough to catch a command
+ * that starts building strings or buffers, not a stray small array. What is
+ * left for most commands is the queued command's bytes and its place in the
+ * {@link CommandQueue}. Needs a JVM with per-thread allocation counters
+ * (com.sun.management.ThreadMXBean); on others the tests do nothing.
+ */
+public class AllocationBudgetTest {
+    private static final int WARMUP = 20000;
+    private static final int CALLS = 2000;
+    private static final int ROUNDS = 3;
+    private static final long PACKET_MILLIS = 10000;
+    private static final long FORK_MILLIS = 120000;
+
+    private com.sun.management.ThreadMXBean threads;
+    private EbbSimulator simulator;
+    private Ebb ebb;
+    private Thread reader;
+    private final StringBuilder over = new StringBuilder();
+
+    @Test
+    public void testMotion() throws Exception {
+        fork("motion");
+    }
+
+    @Test
+    public void testQueries() throws Exception {
+        fork("queries");
+    }
+
+    @Test
+    public void testSettings() throws Exception {
+        fork("settings");
+    }
+
+    @Test
+    public void testBulk() throws Exception {
+        fork("bulk");
+    }
+
+    @Test
+    public void testTimerPackets() throws Exception {
+        fork("timerPackets");
+    }
+
+    /**
+     * Run one group of measurements with {@link #main(String[])} in a JVM of
+     * its own, failing with whatever went over budget.
+     */
+    private static void fork(String group) throws Exception {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        ProcessBuilder builder = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                AllocationBudgetTest.class.getName(), group);
+        builder.redirectErrorStream(true);
+        final Process process = builder.start();
+        final StringBuffer output = new StringBuffer();
+        Thread drain = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    BufferedReader in = new BufferedReader(new InputStreamReader(process.getInputStream()));
+                    String line;
+                    while ((line = in.readLine()) != null)
+                        output.append(line).append('\n');
+                } catch (IOException e) {
+                }
+            }
+        });
+        drain.start();
+        drain.join(FORK_MILLIS);
+        if (drain.isAlive()) {
+            process.destroy();
+            fail(group + " didn't finish in " + FORK_MILLIS + " ms\n" + output);
+        }
+        assertEquals(output.toString(), 0, process.waitFor());
+    }
+
+    /**
+     * Measure one group, named by <code>args[0]</code>, and exit with status 1
+     * after printing what went over budget.
+     */
+    public static void main(String[] args) {
+        int status = 0;
+        AllocationBudgetTest test = new AllocationBudgetTest();
+        try {
+            test.setUp();
+            if (test.threads != null) {
+                if (args[0].equals("motion"))
+                    test.motion();
+                else if (args[0].equals("queries"))
+                    test.queries();
+                else if (args[0].equals("settings"))
+                    test.settings();
+                else if (args[0].equals("bulk"))
+                    test.bulk();
+                else
+                    test.timerPackets();
+                if (test.over.length() > 0) {
+                    System.out.print(test.over);
+                    status = 1;
+                }
+            }
+        } catch (Throwable e) {
+            e.printStackTrace(System.out);
+            status = 1;
+        } finally {
+            try {
+                test.tearDown();
+            } catch (IOException e) {
+            }
+        }
+        System.out.flush();
+        // the simulator and reader threads would keep the JVM alive
+        System.exit(status);
+    }
+
+    private void setUp() throws Exception {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean))
+            return;
+        threads = (com.sun.management.ThreadMXBean) bean;
+        if (!threads.isThreadAllocatedMemorySupported()) {
+            threads = null;
+            return;
+        }
+        threads.setThreadAllocatedMemoryEnabled(true);
+        Set<Thread> before = readers();
+        simulator = new EbbSimulator();
+        ebb = simulator.connect();
+        for (Thread t : readers()) {
+            if (!before.contains(t))
+                reader = t;
+        }
+    }
+
+    private void tearDown() throws IOException {
+        if (ebb != null)
+            ebb.close();
+        if (simulator != null)
+            simulator.close();
+    }
+
+    private static Set<Thread> readers() {
+        Set<Thread> readers = new HashSet<Thread>();
+        for (Thread t : Thread.getAllStackTraces().keySet()) {
+            if (t.getName().equals("Ubw reader") && t.isAlive())
+                readers.add(t);
+        }
+        return readers;
+    }
+
+    private long allocated() {
+        return threads.getThreadAllocatedBytes(Thread.currentThread().getId())
+                + threads.getThreadAllocatedBytes(reader.getId());
+    }
+
+    /**
+     * Measure <code>call</code>, noting it if it goes over <code>budget</code>.
+     * The best of a few rounds is taken, since a round that the JIT compiler
+     * recompiles part way through can allocate more.
+     */
+    private void check(String name, long budget, Runnable call) {
+        for (int i = 0; i < WARMUP; i++)
+            call.run();
+        long perCall = Long.MAX_VALUE;
+        for (int round = 0; round < ROUNDS; round++) {
+            long before = allocated();
+            for (int i = 0; i < CALLS; i++)
+                call.run();
+            perCall = Math.min(perCall, (allocated() - before) / CALLS);
+        }
+        if (perCall > budget)
+            over.append(name).append(": ").append(perCall).append(" bytes, budget ").append(budget).append('\n');
+    }
+
+    private void motion() {
+        check("stepperMotorMove", 224, new Runnable() {
+            int i;
+            public void run() {
+                ebb.stepperMotorMove(10, (i++ & 1) == 0 ? 100 : -100, 5);
+            }
+        });
+        check("setPenState", 160, new Runnable() {
+            int i;
+            public void run() {
+                ebb.setPenState((i++ & 1) == 0);
+            }
+        });
+        check("setPenState(duration)", 168, new Runnable() {
+            int i;
+            public void run() {
+                ebb.setPenState((i++ & 1) == 0, 100);
+            }
+        });
+        check("togglePen", 160, new Runnable() {
+            public void run() {
+                ebb.togglePen();
+            }
+        });
+        check("togglePen(duration)", 160, new Runnable() {
+            public void run() {
+                ebb.togglePen(100);
+            }
+        });
+        check("nodeCountIncrement", 160, new Runnable() {
+            public void run() {
+                ebb.nodeCountIncrement();
+            }
+        });
+        check("nodeCountDecrement", 160, new Runnable() {
+            public void run() {
+                ebb.nodeCountDecrement();
+            }
+        });
+    }
+
+    private void queries() {
+        check("queryCurrent", 296, new Runnable() {
+            public void run() {
+                ebb.queryCurrent();
+            }
+        });
+        check("queryLayer", 264, new Runnable() {
+            public void run() {
+                ebb.queryLayer();
+            }
+        });
+        check("queryNodeCount", 264, new Runnable() {
+            public void run() {
+                ebb.queryNodeCount();
+            }
+        });
+        check("queryButton", 264, new Runnable() {
+            public void run() {
+                ebb.queryButton();
+            }
+        });
+        check("queryPen", 264, new Runnable() {
+            public void run() {
+                ebb.queryPen();
+            }
+        });
+        check("inputState", 304, new Runnable() {
+            public void run() {
+                ebb.inputState();
+            }
+        });
+        check("version", 304, new Runnable() {
+            public void run() {
+                ebb.version();
+            }
+        });
+        check("memoryRead", 360, new Runnable() {
+            public void run() {
+                ebb.memoryRead(100);
+            }
+        });
+        check("pinInput", 416, new Runnable() {
+            public void run() {
+                ebb.pinInput(Port.B, 3);
+            }
+        });
+        check("sampleAnalogInputs", 296, new Runnable() {
+            public void run() {
+                ebb.sampleAnalogInputs();
+            }
+        });
+    }
+
+    private void settings() {
+        check("configure", 336, new Runnable() {
+            public void run() {
+                ebb.configure(1, 2, 3, 0);
+            }
+        });
+        check("outputState", 208, new Runnable() {
+            public void run() {
+                ebb.outputState(1, 2, 3);
+            }
+        });
+        check("reset", 160, new Runnable() {
+            public void run() {
+                ebb.reset();
+            }
+        });
+        check("memoryWrite", 216, new Runnable() {
+            public void run() {
+                ebb.memoryWrite(100, 7);
+            }
+        });
+        check("pinDirection", 272, new Runnable() {
+            public void run() {
+                ebb.pinDirection(Port.B, 3, PinDirection.OUTPUT);
+            }
+        });
+        check("pinOutput", 272, new Runnable() {
+            public void run() {
+                ebb.pinOutput(Port.B, 3, true);
+            }
+        });
+        check("configure(parameter)", 208, new Runnable() {
+            public void run() {
+                ebb.configure(1, 1);
+            }
+        });
+        check("rcServoOutput(port)", 280, new Runnable() {
+            public void run() {
+                ebb.rcServoOutput(Port.B, 3, 5000);
+            }
+        });
+        check("rcServoOutput(channel)", 224, new Runnable() {
+            public void run() {
+                ebb.rcServoOutput(1, 5000, 3, 100);
+            }
+        });
+        check("bulkConfigure", 224, new Runnable() {
+            public void run() {
+                ebb.bulkConfigure(1, 2, 3, 4, 5);
+            }
+        });
+        check("setNodeCount", 280, new Runnable() {
+            public void run() {
+                ebb.setNodeCount(123456);
+            }
+        });
+        check("setLayer", 208, new Runnable() {
+            public void run() {
+                ebb.setLayer(3);
+            }
+        });
+        check("enableMotor", 208, new Runnable() {
+            public void run() {
+                ebb.enableMotor(1, 1);
+            }
+        });
+        check("servoModeConfigure", 240, new Runnable() {
+            public void run() {
+                ebb.servoModeConfigure(4, 13000);
+            }
+        });
+        check("bootLoad", 160, new Runnable() {
+            public void run() {
+                ebb.bootLoad();
+            }
+        });
+        check("timerReadInputs(off)", 208, new Runnable() {
+            public void run() {
+                ebb.timerReadInputs(0, TimerMode.DIGITAL, null);
+            }
+        });
+    }
+
+    private void bulk() {
+        final byte[] data = new byte[64];
+        for (int i = 0; i < data.length; i++)
+            data[i] = (byte) ('A' + i % 26);
+        // the command is copied once, to be queued
+        check("bulkStream", 304, new Runnable() {
+            public void run() {
+                ebb.bulkStream(data);
+            }
+        });
+        check("bulkOutput", 1016, new Runnable() {
+            public void run() {
+                ebb.bulkOutput(data);
+            }
+        });
+    }
+
+    /**
+     * A timer packet costs the reader thread the array of values passed to
+     * the listener and the buffer wrapper the JDK's stream decoder makes for
+     * each read, which the JIT compiler doesn't always remove.
+     */
+    private void timerPackets() throws InterruptedException {
+        final int[] packets = new int[1];
+        TimerListener listener = new TimerListener() {
+            @Override
+            public void timerResponse(TimerMode mode, int... value) {
+                synchronized (packets) {
+                    packets[0]++;
+                    packets.notifyAll();
+                }
+            }
+        };
+        ebb.timerReadInputs(1, TimerMode.DIGITAL, listener);
+        waitForPackets(packets, 200);
+        long before = threads.getThreadAllocatedBytes(reader.getId());
+        int start;
+        synchronized (packets) {
+            start = packets[0];
+        }
+        int end = waitForPackets(packets, start + 500);
+        long perPacket = (threads.getThreadAllocatedBytes(reader.getId()) - before) / (end - start);
+        ebb.timerReadInputs(0, TimerMode.DIGITAL, null);
+        if (perPacket > 128)
+            over.append("timer packet: ").append(perPacket).append(" bytes, budget 128\n");
+    }
+
+    private static int waitForPackets(int[] packets, int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + PACKET_MILLIS;
+        synchronized (packets) {
+            while (packets[0] < count) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0)
+                    throw new AssertionError(packets[0] + " timer packets in " + PACKET_MILLIS + " ms, expected " + count);
+                packets.wait(remaining);
+            }
+            return packets[0];
+        }
+    }
+}
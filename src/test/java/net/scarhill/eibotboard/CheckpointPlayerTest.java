@@ -0,0 +1,143 @@
+// Copyright (c) 2011 James Ancona. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package net.scarhill.eibotboard;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+
+public class CheckpointPlayerTest {
+
+    /**
+     * A board that loses its connection after a number of moves, or when a
+     * node is read back.
+     */
+    private static class FlakyBoard extends DryRun {
+        private int failAfter;
+        private long failAtNode = -1;
+        private int layerSets;
+        private final List<int[]> enables = new ArrayList<int[]>();
+
+        FlakyBoard(int failAfter) {
+            this.failAfter = failAfter;
+        }
+        @Override
+        public void stepperMotorMove(int duration, int axis1, int axis2) {
+            if (failAfter-- == 0)
+                throw new UbwException("Connection to device closed", UbwException.ErrorCode.COMM_ERROR);
+            super.stepperMotorMove(duration, axis1, axis2);
+        }
+        @Override
+        public long queryNodeCount() {
+            long node = super.queryNodeCount();
+            if (node == failAtNode) {
+                failAtNode = -1;
+                throw new UbwException("Connection to device closed", UbwException.ErrorCode.COMM_ERROR);
+            }
+            return node;
+        }
+        @Override
+        public void enableMotor(int motor1, int motor2) {
+            enables.add(new int[] {motor1, motor2});
+            super.enableMotor(motor1, motor2);
+        }
+        @Override
+        public void setLayer(int layer) {
+            layerSets++;
+            super.setLayer(layer);
+        }
+    }
+
+    private Plot plot() {
+        PlotRecorder recorder = new PlotRecorder();
+        recorder.enableMotor(2, 0);
+        recorder.setLayer(4);
+        for (int i = 0; i < 300; i++) {
+            if (i % 30 == 0)
+                recorder.setPenState(i % 60 != 0, 100);
+            recorder.stepperMotorMove(10, 5, i % 3 - 1);
+        }
+        return recorder.toPlot();
+    }
+
+    private File journal() throws Exception {
+        File file = File.createTempFile("plot", ".journal");
+        file.delete();
+        file.deleteOnExit();
+        return file;
+    }
+
+    @Test
+    public void testResumeOnSameBoard() throws Exception {
+        Plot plot = plot();
+        File file = journal();
+        CheckpointPlayer player = new CheckpointPlayer(plot, file);
+        player.setInterval(50);
+        FlakyBoard board = new FlakyBoard(-1);
+        // the host goes after marking node 200 but before writing it down
+        board.failAtNode = 200;
+        try {
+            player.play(board);
+            fail("should have failed");
+        } catch (UbwException e) {
+        }
+        assertTrue(file.exists());
+        assertEquals(200L, board.getMoveCount());
+
+        // the board kept its node count, so carry on from there, not the checkpoint
+        player.play(board);
+        assertEquals(200L, player.getResumedFrom());
+        assertEquals(300L, board.getMoveCount());
+        assertEquals(DryRun.estimate(plot).getX(), board.getX());
+        assertEquals(DryRun.estimate(plot).getY(), board.getY());
+        assertEquals(4, board.queryLayer());
+        assertEquals(2, board.layerSets);
+        assertFalse(file.exists());
+    }
+
+    @Test
+    public void testResumeOnResetBoard() throws Exception {
+        Plot plot = plot();
+        File file = journal();
+        CheckpointPlayer player = new CheckpointPlayer(plot, file);
+        player.setInterval(50);
+        try {
+            player.play(new FlakyBoard(170));
+            fail("should have failed");
+        } catch (UbwException e) {
+        }
+
+        // a fresh board has lost the node count: go back to the last checkpoint
+        FlakyBoard fresh = new FlakyBoard(-1);
+        player.play(fresh);
+        assertEquals(150L, player.getResumedFrom());
+        assertEquals(150L, fresh.getMoveCount());
+        assertEquals(300L, fresh.queryNodeCount());
+        // pen was raised at move 150 and stays up until 180
+        assertTrue(fresh.getPenMoveCount() >= 1);
+        // the EM the plot sent, exactly as it was sent
+        assertEquals(1, fresh.enables.size());
+        assertEquals(2, fresh.enables.get(0)[0]);
+        assertEquals(0, fresh.enables.get(0)[1]);
+        assertFalse(file.exists());
+    }
+}
@@ -0,0 +1,182 @@
+// Copyright (c) 2011 James Ancona. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package net.scarhill.eibotboard;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import net.scarhill.eibotboard.UbwCommand.TimerListener;
+import net.scarhill.eibotboard.UbwCommand.TimerMode;
+import net.scarhill.eibotboard.UbwException.ErrorCode;
+
+import org.junit.Test;
+
+
+public class CommandQueueTest {
+    private static byte[] bytes(String command) {
+        return (command + "\r").getBytes(Ubw.ASCII);
+    }
+
+    @Test
+    public void testRepliesGoToTheirCommands() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        CommandQueue queue = new CommandQueue(out);
+        CommandQueue.Request ql = queue.submit(bytes("QL"), 2, false);
+        CommandQueue.Request sm = queue.submit(bytes("SM,10,1,1"), 1, false);
+        CommandQueue.Request bad = queue.submit(bytes("XX"), 1, false);
+        CommandQueue.Request i = queue.submit(bytes("I"), 1, true);
+        assertEquals("QL\rSM,10,1,1\rXX\rI\r", out.toString("US-ASCII"));
+        assertTrue(!queue.expectsPacket());
+        queue.received("3");
+        queue.received("OK");
+        queue.received("OK");
+        queue.received("!8 Err: Unknown command");
+        assertTrue(queue.expectsPacket());
+        queue.received("I,001,002,003");
+        // nothing is waiting for this one
+        queue.received("OK");
+        assertEquals("3", ql.nextLine());
+        assertEquals("OK", ql.nextLine());
+        assertEquals("OK", sm.nextLine());
+        try {
+            bad.nextLine();
+            fail();
+        } catch (UbwException e) {
+            assertEquals(ErrorCode.UNKNOWN_COMMAND, e.getErrorCode());
+        }
+        assertEquals("I,001,002,003", i.nextLine());
+        try {
+            sm.nextLine();
+            fail();
+        } catch (UbwException e) {
+            assertEquals(ErrorCode.RESPONSE_ERROR, e.getErrorCode());
+        }
+    }
+
+    @Test
+    public void testCloseWakesWaiters() throws Exception {
+        final CommandQueue queue = new CommandQueue(new ByteArrayOutputStream());
+        final CommandQueue.Request r = queue.submit(bytes("QN"), 2, false);
+        final AtomicReference<UbwException> thrown = new AtomicReference<UbwException>();
+        final CountDownLatch done = new CountDownLatch(1);
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    r.nextLine();
+                } catch (UbwException e) {
+                    thrown.set(e);
+                }
+                done.countDown();
+            }
+        }).start();
+        Thread.sleep(50);
+        queue.close();
+        assertTrue(done.await(5, java.util.concurrent.TimeUnit.SECONDS));
+        assertEquals(ErrorCode.COMM_ERROR, thrown.get().getErrorCode());
+    }
+
+    @Test
+    public void testWriteFailure() throws Exception {
+        CommandQueue queue = new CommandQueue(new java.io.OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                throw new IOException("unplugged");
+            }
+        });
+        CommandQueue.Request r = queue.submit(bytes("V"), 1, false);
+        try {
+            r.nextLine();
+            fail();
+        } catch (UbwException e) {
+            assertEquals(ErrorCode.COMM_ERROR, e.getErrorCode());
+        }
+    }
+
+    /**
+     * Threads making different queries at once, with motion and timer packets
+     * mixed in, each get their own answers.
+     */
+    @Test
+    public void testManyThreads() throws Exception {
+        EbbSimulator simulator = new EbbSimulator();
+        final Ebb ebb = simulator.connect();
+        final int rounds = 500;
+        try {
+            ebb.setLayer(7);
+            final AtomicInteger packets = new AtomicInteger();
+            ebb.timerReadInputs(2, TimerMode.DIGITAL, new TimerListener() {
+                @Override
+                public void timerResponse(TimerMode mode, int... value) {
+                    packets.incrementAndGet();
+                }
+            });
+            final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+            List<Thread> threads = new ArrayList<Thread>();
+            for (int t = 0; t < 8; t++) {
+                final int kind = t % 4;
+                threads.add(new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            for (int i = 0; i < rounds; i++) {
+                                switch (kind) {
+                                case 0:
+                                    ebb.stepperMotorMove(1, 1, -1);
+                                    break;
+                                case 1:
+                                    assertArrayEquals(new int[] { 394, 300 }, ebb.queryCurrent());
+                                    break;
+                                case 2:
+                                    assertEquals(7, ebb.queryLayer());
+                                    break;
+                                case 3:
+                                    assertEquals(EbbSimulator.VERSION, ebb.version());
+                                    assertArrayEquals(new int[] { 0, 0, 0 }, ebb.inputState());
+                                    break;
+                                }
+                            }
+                        } catch (Throwable e) {
+                            failure.compareAndSet(null, e);
+                        }
+                    }
+                }));
+            }
+            for (Thread thread : threads)
+                thread.start();
+            for (Thread thread : threads)
+                thread.join();
+            ebb.timerReadInputs(0, TimerMode.DIGITAL, null);
+            if (failure.get() != null)
+                throw new AssertionError(failure.get());
+            assertEquals(2L * rounds, simulator.moves);
+            assertEquals(2L * rounds, simulator.x);
+            assertEquals(-2L * rounds, simulator.y);
+            assertTrue(packets.get() > 0);
+        } finally {
+            ebb.close();
+            simulator.close();
+        }
+    }
+}
@@ -0,0 +1,269 @@
+// Copyright (c) 2011 James Ancona. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package net.scarhill.eibotboard;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import net.scarhill.eibotboard.UbwCommand.TimerListener;
+import net.scarhill.eibotboard.UbwCommand.TimerMode;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+
+/**
+ * End-to-end tests of {@link DeviceServer} and {@link DeviceClient} on localhost,
+ * serving a simulated board.
+ */
+public class DeviceServerTest {
+    private EbbSimulator simulator;
+    private Ebb ebb;
+    private DeviceServer server;
+
+    @Before
+    public void setUp() throws Exception {
+        simulator = new EbbSimulator();
+        ebb = simulator.connect();
+        server = new DeviceServer(0);
+        server.addBoard("plotter", ebb);
+        server.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.close();
+        ebb.close();
+        simulator.close();
+    }
+
+    @Test
+    public void testPipelinedMoves() {
+        DeviceClient client = new DeviceClient("127.0.0.1", server.getPort(), "plotter");
+        client.setNodeCount(0);
+        for (int i = 0; i < 500; i++) {
+            client.stepperMotorMove(10, 1, -1);
+            client.nodeCountIncrement();
+        }
+        assertEquals(500L, client.queryNodeCount());
+        assertEquals(500L, simulator.x);
+        assertEquals(-500L, simulator.y);
+        assertEquals(EbbSimulator.VERSION, client.version());
+        client.close();
+        // SN, 500 x SM and NI, QN, V and CLOSE
+        assertEquals(1004L, server.getStats("plotter").getCommands());
+    }
+
+    @Test
+    public void testErrorsAreReportedOnNextCall() {
+        DeviceClient client = new DeviceClient("127.0.0.1", server.getPort(), "plotter");
+        // rejected by Ebb's validation on the server
+        client.stepperMotorMove(10, 40000, 0);
+        try {
+            client.sync();
+            fail("expected the pipelined error");
+        } catch (IllegalArgumentException e) {
+        }
+        client.setLayer(3);
+        assertEquals(3, client.queryLayer());
+        client.close();
+        assertEquals(1L, server.getStats("plotter").getErrors());
+    }
+
+    @Test
+    public void testConcurrentClientsShareBoardFairly() throws Exception {
+        final int clients = 8;
+        final int moves = 200;
+        Thread[] threads = new Thread[clients];
+        final Throwable[] errors = new Throwable[1];
+        for (int i = 0; i < clients; i++) {
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        DeviceClient client = new DeviceClient("127.0.0.1", server.getPort(), "plotter", 16);
+                        for (int m = 0; m < moves; m++) {
+                            client.stepperMotorMove(1, 1, 0);
+                        }
+                        client.queryPen();
+                        client.close();
+                    } catch (Throwable t) {
+                        errors[0] = t;
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        if (errors[0] != null)
+            throw new AssertionError(errors[0]);
+        assertEquals((long) clients * moves, simulator.x);
+        assertTrue(server.getStats("plotter").getCommandsPerSecond() > 0);
+    }
+
+    @Test
+    public void testOverlongLineClosesConnection() throws Exception {
+        Socket socket = new Socket("127.0.0.1", server.getPort());
+        socket.setSoTimeout(5000);
+        OutputStream out = socket.getOutputStream();
+        byte[] junk = new byte[8192];
+        Arrays.fill(junk, (byte) '1');
+        try {
+            for (int i = 0; i <= DeviceServer.MAX_LINE_LENGTH / junk.length; i++)
+                out.write(junk);
+            out.flush();
+        } catch (IOException e) {
+            // closed while we were still writing
+        }
+        int read;
+        try {
+            read = socket.getInputStream().read();
+        } catch (IOException e) {
+            // reset, because the server closed with our data unread
+            read = -1;
+        }
+        assertEquals(-1, read);
+        socket.close();
+        // the server is still serving everyone else
+        DeviceClient client = new DeviceClient("127.0.0.1", server.getPort(), "plotter");
+        assertEquals(EbbSimulator.VERSION, client.version());
+        client.close();
+    }
+
+    @Test
+    public void testDisconnectStopsTimer() throws Exception {
+        Socket socket = new Socket("127.0.0.1", server.getPort());
+        socket.setSoTimeout(5000);
+        OutputStream out = socket.getOutputStream();
+        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "US-ASCII"));
+        out.write("1,0,OPEN,plotter\n".getBytes("US-ASCII"));
+        String[] opened = in.readLine().split(",");
+        assertEquals("OK", opened[1]);
+        out.write(("2," + opened[2] + ",T,10,0\n").getBytes("US-ASCII"));
+        String line;
+        while ((line = in.readLine()).startsWith(DeviceProtocol.EVENT_SEQ + ","))
+            ;
+        assertEquals("2,OK", line);
+        assertEquals("T,10,0", simulator.lastCommand);
+        // go away without closing the session
+        socket.close();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!"T,0,0".equals(simulator.lastCommand) && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        assertEquals("T,0,0", simulator.lastCommand);
+    }
+
+    @Test
+    public void testSlowReaderLosesEvents() throws Exception {
+        // a board that sends timer packets as fast as it can
+        server.addBoard("flood", new DryRun() {
+            private volatile boolean stopped;
+            @Override
+            public void timerReadInputs(int millis, final TimerMode mode, final TimerListener listener) {
+                stopped = millis == 0;
+                if (stopped)
+                    return;
+                Thread t = new Thread(new Runnable() {
+                    public void run() {
+                        while (!stopped)
+                            listener.timerResponse(mode, 1, 2, 3);
+                    }
+                });
+                t.setDaemon(true);
+                t.start();
+            }
+        });
+        Socket socket = new Socket("127.0.0.1", server.getPort());
+        socket.setSoTimeout(5000);
+        OutputStream out = socket.getOutputStream();
+        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "US-ASCII"));
+        out.write("1,0,OPEN,flood\n".getBytes("US-ASCII"));
+        String[] opened = in.readLine().split(",");
+        out.write(("2," + opened[2] + ",T,1,0\n").getBytes("US-ASCII"));
+        // don't read: the server must drop events rather than keep them all
+        long deadline = System.currentTimeMillis() + 10000;
+        while (server.getStats("flood").getDroppedEvents() == 0 && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        assertTrue(server.getStats("flood").getDroppedEvents() > 0);
+        socket.close();
+    }
+
+    @Test(timeout = 10000)
+    public void testListenerFailureFailsCalls() throws Exception {
+        DeviceClient client = new DeviceClient("127.0.0.1", server.getPort(), "plotter");
+        final CountDownLatch thrown = new CountDownLatch(1);
+        client.timerReadInputs(10, TimerMode.DIGITAL, new TimerListener() {
+            @Override
+            public void timerResponse(TimerMode mode, int... value) {
+                thrown.countDown();
+                throw new IllegalStateException("listener failed");
+            }
+        });
+        thrown.await();
+        try {
+            client.queryLayer();
+            fail("should have failed");
+        } catch (UbwException e) {
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testMalformedReplyClosesClient() throws Exception {
+        final ServerSocket fake = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+        final AtomicBoolean closedByClient = new AtomicBoolean();
+        Thread peer = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    Socket s = fake.accept();
+                    BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), "US-ASCII"));
+                    String[] open = in.readLine().split(",");
+                    s.getOutputStream().write((open[0] + ",OK,notanumber\nnot,a,reply\n").getBytes("US-ASCII"));
+                    closedByClient.set(in.readLine() == null);
+                    s.close();
+                } catch (IOException e) {
+                }
+            }
+        });
+        peer.start();
+        try {
+            new DeviceClient("127.0.0.1", fake.getLocalPort(), "plotter");
+            fail("should have failed");
+        } catch (RuntimeException e) {
+        }
+        peer.join();
+        assertTrue(closedByClient.get());
+        fake.close();
+    }
+
+    @Test(expected = UbwException.class)
+    public void testUnknownBoard() {
+        new DeviceClient("127.0.0.1", server.getPort(), "nosuchboard");
+    }
+}
@@ -0,0 +1,93 @@
+// Copyright (c) 2011 James Ancona. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package net.scarhill.eibotboard;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import net.scarhill.eibotboard.DryRun.Phase;
+
+import org.junit.Test;
+
+
+public class DryRunTest {
+    @Test
+    public void testPhasesAndLayers() {
+        DryRun dryRun = new DryRun();
+        dryRun.setLayer(1);
+        dryRun.stepperMotorMove(100, 50, 0);      // travel
+        dryRun.setPenState(false);                // default 500 ms
+        dryRun.stepperMotorMove(200, 0, 80);      // draw
+        dryRun.stepperMotorMove(30, 0, 0);        // pause
+        dryRun.setLayer(2);
+        dryRun.togglePen(150);                    // up again
+        dryRun.stepperMotorMove(70, -50, -80);    // travel
+
+        assertEquals(1050L, dryRun.getTotalMillis());
+        assertEquals(200L, dryRun.getPhaseMillis(Phase.DRAW));
+        assertEquals(170L, dryRun.getPhaseMillis(Phase.TRAVEL));
+        assertEquals(650L, dryRun.getPhaseMillis(Phase.PEN));
+        assertEquals(30L, dryRun.getPhaseMillis(Phase.PAUSE));
+        assertEquals(830L, dryRun.getLayerMillis(1));
+        assertEquals(220L, dryRun.getLayerMillis(2));
+        assertArrayEquals(new int[] {1, 2}, dryRun.getLayers());
+        // moves don't count as nodes, and the counter doesn't go below zero
+        assertEquals(0L, dryRun.queryNodeCount());
+        dryRun.nodeCountDecrement();
+        assertEquals(0L, dryRun.queryNodeCount());
+        assertTrue(dryRun.queryPen());
+    }
+
+    @Test
+    public void testMillionsOfCommands() {
+        PlotRecorder recorder = new PlotRecorder(1 << 20);
+        int moves = 3000000;
+        for (int i = 0; i < moves; i++) {
+            if (i % 1000 == 0)
+                recorder.setPenState(i % 2000 == 0, 20);
+            recorder.stepperMotorMove(2, 3, -3);
+        }
+        long started = System.currentTimeMillis();
+        DryRun estimate = DryRun.estimate(recorder.toPlot());
+        long elapsed = System.currentTimeMillis() - started;
+        assertEquals(2L * moves + 20 * (moves / 1000), estimate.getTotalMillis());
+        assertEquals(3003000L, estimate.getCommandCount());
+        assertTrue("took " + elapsed + " ms", elapsed < 5000);
+    }
+
+    @Test
+    public void testOtherCommands() {
+        DryRun dryRun = new DryRun();
+        try {
+            dryRun.setLayer(256);
+            fail();
+        } catch (IllegalArgumentException e) {
+        }
+        dryRun.setLayer(3);
+        dryRun.enableMotor(1, 1);
+        dryRun.configure(0, 0, 0, 0);
+        dryRun.outputState(1, 2, 3);
+        dryRun.bulkOutput(new byte[] {1, 2});
+        dryRun.setPenState(false, 100);
+        assertEquals(3, dryRun.inputState().length);
+        assertEquals(2, dryRun.queryCurrent().length);
+        dryRun.reset();
+        assertEquals(0, dryRun.queryLayer());
+        assertTrue(dryRun.queryPen());
+        assertEquals(7L, dryRun.getCommandCount());
+        assertEquals(100L, dryRun.getTotalMillis());
+    }
+}
@@ -0,0 +1,296 @@
+// Copyright (c) 2011 James Ancona. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package net.scarhill.eibotboard;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+
+/**
+ * Emulates the firmware side of an EBB on a localhost socket, so that a real
+ * {@link Ebb} can be tested without hardware. Replies follow what {@link Ubw}
+ * and {@link Ebb} expect to read. With a time scale above zero, timed commands
+ * (SM, SP, TP) take their duration and the one deep motion FIFO is emulated by
+ * holding back the "OK" while it is full.
+ */
+public class EbbSimulator implements Closeable {
+	private static final Charset ASCII = Charset.forName("US-ASCII");
+	public static final String VERSION = "EBBv13_and_above EB Firmware Version 2.4.2";
+
+	private final ServerSocket serverSocket;
+	private Socket device;
+	private Socket host;
+	private OutputStream out;
+	private volatile double timeScale;
+	private volatile String version = VERSION;
+	private volatile boolean closed;
+	private Thread timer;
+	private Thread server;
+
+	// board state, only changed by the simulator thread and unplug()
+	volatile long nodeCount;
+	volatile int layer;
+	volatile boolean penUp = true;
+	volatile long x;
+	volatile long y;
+	volatile int microstepMode = 1;
+	volatile long commands;
+	volatile long moves;
+	volatile int resets;
+	volatile String lastCommand;
+	private long busyUntil;
+	private long lastDuration;
+
+	public EbbSimulator() throws IOException {
+		serverSocket = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+	}
+
+	/**
+	 * @param timeScale 0 to reply immediately, 1 for real time
+	 */
+	public void setTimeScale(double timeScale) {
+		this.timeScale = timeScale;
+	}
+
+	public void setVersion(String version) {
+		this.version = version;
+	}
+
+	/**
+	 * Start the simulator and connect an {@link Ebb} to it.
+	 */
+	public Ebb connect() throws IOException {
+		host = open();
+		return new Ebb(host.getInputStream(), host.getOutputStream());
+	}
+
+	/**
+	 * Plug the board in.
+	 *
+	 * @return the host end of the connection
+	 */
+	public Socket open() throws IOException {
+		Socket host = new Socket(serverSocket.getInetAddress(), serverSocket.getLocalPort());
+		host.setTcpNoDelay(true);
+		final Socket socket = serverSocket.accept();
+		socket.setTcpNoDelay(true);
+		device = socket;
+		out = new BufferedOutputStream(socket.getOutputStream());
+		server = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				serve(socket);
+			}
+		}, "EbbSimulator");
+		server.setDaemon(true);
+		server.start();
+		return host;
+	}
+
+	/**
+	 * Simulate the board dropping off the bus and losing power: the connection
+	 * closes, a command being carried out is abandoned, and the settings go
+	 * back to their power on values. The position is kept.
+	 */
+	public void unplug() throws IOException {
+		server.interrupt();
+		if (timer != null)
+			timer.interrupt();
+		device.close();
+		nodeCount = 0;
+		layer = 0;
+		penUp = true;
+		microstepMode = 1;
+	}
+
+	/**
+	 * Simulate the board being unplugged.
+	 */
+	@Override
+	public void close() throws IOException {
+		closed = true;
+		if (timer != null)
+			timer.interrupt();
+		if (device != null)
+			device.close();
+		serverSocket.close();
+	}
+
+	private void serve(Socket socket) {
+		StringBuilder command = new StringBuilder();
+		try {
+			InputStream in = socket.getInputStream();
+			int c;
+			while ((c = in.read()) > -1) {
+				if (c == '\r') {
+					String reply = execute(command.toString());
+					command.setLength(0);
+					if (reply != null)
+						send(reply);
+				} else if (c != '\n') {
+					command.append((char) c);
+				}
+			}
+		} catch (IOException e) {
+			if (!closed && !socket.isClosed())
+				e.printStackTrace();
+		} catch (InterruptedException e) {
+		}
+	}
+
+	private synchronized void send(String reply) throws IOException {
+		for (String line : reply.split("\n")) {
+			out.write(line.getBytes(ASCII));
+			out.write('\r');
+			out.write('\n');
+		}
+		out.flush();
+	}
+
+	/**
+	 * @return the reply lines, separated by '\n'
+	 */
+	String execute(String command) throws InterruptedException {
+		commands++;
+		lastCommand = command;
+		String[] f = command.split(",");
+		String cmd = f[0].toUpperCase();
+		try {
+			if (cmd.equals("SM")) {
+				int duration = Integer.parseInt(f[1]);
+				int axis1 = Integer.parseInt(f[2]);
+				int axis2 = Integer.parseInt(f[3]);
+				if (duration < 1 || Math.abs(axis1) > 32767 || Math.abs(axis2) > 32767)
+					return "!6 Err: Invalid parameter value";
+				motion(duration);
+				x += axis1;
+				y += axis2;
+				moves++;
+				return "OK";
+			} else if (cmd.equals("SP")) {
+				penUp = f[1].equals("1");
+				motion(f.length > 2 ? Integer.parseInt(f[2]) : 500);
+				return "OK";
+			} else if (cmd.equals("TP")) {
+				penUp = !penUp;
+				motion(f.length > 1 ? Integer.parseInt(f[1]) : 500);
+				return "OK";
+			} else if (cmd.equals("EM")) {
+				int mode = Integer.parseInt(f[1]);
+				if (mode > 0)
+					microstepMode = mode;
+				return "OK";
+			} else if (cmd.equals("SN")) {
+				nodeCount = Long.parseLong(f[1]);
+				return "OK";
+			} else if (cmd.equals("NI")) {
+				nodeCount++;
+				return "OK";
+			} else if (cmd.equals("ND")) {
+				if (nodeCount > 0)
+					nodeCount--;
+				return "OK";
+			} else if (cmd.equals("SL")) {
+				layer = Integer.parseInt(f[1]);
+				return "OK";
+			} else if (cmd.equals("QN")) {
+				return nodeCount + "\nOK";
+			} else if (cmd.equals("QL")) {
+				return layer + "\nOK";
+			} else if (cmd.equals("QP")) {
+				return (penUp ? "1" : "0") + "\nOK";
+			} else if (cmd.equals("QB")) {
+				return "0\nOK";
+			} else if (cmd.equals("QC")) {
+				return "0394,0300\nOK";
+			} else if (cmd.equals("V")) {
+				return version;
+			} else if (cmd.equals("R")) {
+				resets++;
+				nodeCount = 0;
+				layer = 0;
+				penUp = true;
+				microstepMode = 1;
+				return "OK";
+			} else if (cmd.equals("I")) {
+				return "I,000,000,000";
+			} else if (cmd.equals("A")) {
+				return "A,0000,0000";
+			} else if (cmd.equals("MR")) {
+				return "MR,0";
+			} else if (cmd.equals("PI") && f.length == 3) {
+				return "PI,0";
+			} else if (cmd.equals("T")) {
+				timer(Integer.parseInt(f[1]), f[2].equals("1") ? "A,0000,0000" : "I,000,000,000");
+				return "OK";
+			} else if (cmd.equals("C") || cmd.equals("O") || cmd.equals("SC") || cmd.equals("S2")
+					|| cmd.equals("CU") || cmd.equals("MW") || cmd.equals("PD") || cmd.equals("PI")
+					|| cmd.equals("PO") || cmd.equals("RC") || cmd.equals("BC") || cmd.equals("BO")
+					|| cmd.startsWith("BS") || cmd.equals("BL")) {
+				return "OK";
+			}
+			return "!8 Err: Unknown command";
+		} catch (RuntimeException e) {
+			return "!6 Err: Invalid parameter value";
+		}
+	}
+
+	/**
+	 * Hold the reply until the FIFO has room for this command.
+	 */
+	private void motion(int duration) throws InterruptedException {
+		double scale = timeScale;
+		if (scale <= 0)
+			return;
+		long now = System.nanoTime();
+		long fifoFree = busyUntil - lastDuration;
+		if (fifoFree > now) {
+			long wait = fifoFree - now;
+			Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+			now = System.nanoTime();
+		}
+		lastDuration = (long) (duration * scale * 1000000);
+		busyUntil = Math.max(now, busyUntil) + lastDuration;
+	}
+
+	private void timer(final int period, final String packet) {
+		if (timer != null) {
+			timer.interrupt();
+			timer = null;
+		}
+		if (period == 0)
+			return;
+		timer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					while (!closed) {
+						Thread.sleep(period);
+						send(packet);
+					}
+				} catch (InterruptedException e) {
+				} catch (IOException e) {
+				}
+			}
+		}, "EbbSimulator timer");
+		timer.setDaemon(true);
+		timer.start();
+	}
+}
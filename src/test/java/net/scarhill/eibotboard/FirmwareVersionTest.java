@@ -0,0 +1,69 @@
+// Copyright (c) 2011 James Ancona. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package net.scarhill.eibotboard;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import net.scarhill.eibotboard.FirmwareVersion.Feature;
+
+import org.junit.Test;
+
+
+public class FirmwareVersionTest {
+    @Test
+    public void testParse() {
+        FirmwareVersion v = new FirmwareVersion("EBBv13_and_above EB Firmware Version 2.0.1");
+        assertTrue(v.isEbb());
+        assertTrue(v.isKnown());
+        assertEquals(2, v.getMajor());
+        assertEquals(0, v.getMinor());
+        assertEquals(1, v.getPatch());
+        assertTrue(v.supports(Feature.ALT_PAUSE));
+        assertFalse(v.supports(Feature.QUERY_CURRENT));
+
+        FirmwareVersion ubw = new FirmwareVersion("UBW FW D Version 1.4.0");
+        assertFalse(ubw.isEbb());
+        assertFalse(ubw.supports(Feature.PEN_TOGGLE));
+        assertTrue(ubw.compareTo(v) < 0);
+
+        assertTrue(new FirmwareVersion("EBB Version 1.9").atLeast(1, 9, 0));
+        assertTrue(new FirmwareVersion("something else").supports(Feature.QUERY_CURRENT));
+    }
+
+    @Test
+    public void testOldFirmware() throws Exception {
+        EbbSimulator simulator = new EbbSimulator();
+        simulator.setVersion("EBBv13_and_above EB Firmware Version 1.8.4");
+        Ebb ebb = simulator.connect();
+        assertFalse(ebb.supports(Feature.PEN_DURATION));
+        long commands = simulator.commands;
+        try {
+            ebb.queryCurrent();
+            fail("QC should be rejected");
+        } catch (UbwException e) {
+            assertEquals(UbwException.ErrorCode.UNKNOWN_COMMAND, e.getErrorCode());
+        }
+        // nothing was sent
+        assertEquals(commands, simulator.commands);
+        // SP without duration, then a delay
+        ebb.setPenState(false, 250);
+        assertEquals(commands + 2, simulator.commands);
+        assertEquals("SM,250,0,0", simulator.lastCommand);
+        ebb.close();
+        simulator.close();
+    }
+}
@@ -0,0 +1,461 @@
+// Copyright (c) 2011 James Ancona. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package net.scarhill.eibotboard;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import net.scarhill.eibotboard.UbwCommand.TimerListener;
+import net.scarhill.eibotboard.UbwCommand.TimerMode;
+
+/**
+ * Load and soak test: drives a fleet of {@link EbbSimulator} boards from many
+ * threads at once for a fixed time, and reports command latency percentiles,
+ * throughput, heap growth and garbage collection time. Each board gets one
+ * thread per command workload plus, with the timer workload, a stream of
+ * timer packets. The report can be written as JSON, to compare runs from
+ * release to release.
+ * <p>
+ * Run it from the command line with <code>key=value</code> arguments:
+ * <pre>
+ *   java net.scarhill.eibotboard.FleetSoak boards=24 seconds=3600 scale=1 out=soak.json
+ * </pre>
+ * <code>scale</code> is the simulators' time scale: 0 (the default) answers
+ * at once, which measures the host side alone; 1 runs motion in real time.
+ */
+public class FleetSoak {
+    public enum Workload {
+        /** back to back short SM moves */
+        MOTION,
+        /** timer packets every few ms, timed by their spacing */
+        TIMER,
+        /** 64 byte BS commands */
+        BULK,
+        /** QC, QL, QN, QP and QB in turn */
+        QUERIES
+    }
+
+    private int boards = 4;
+    private long durationMillis = 10000;
+    private double timeScale;
+    private int timerPeriod = 5;
+    private Set<Workload> workloads = EnumSet.allOf(Workload.class);
+
+    public void setBoards(int boards) {
+        this.boards = boards;
+    }
+    public void setDurationMillis(long millis) {
+        this.durationMillis = millis;
+    }
+    public void setTimeScale(double timeScale) {
+        this.timeScale = timeScale;
+    }
+    /**
+     * @param millis the time between timer packets
+     */
+    public void setTimerPeriod(int millis) {
+        this.timerPeriod = millis;
+    }
+    public void setWorkloads(Set<Workload> workloads) {
+        this.workloads = EnumSet.copyOf(workloads);
+    }
+
+    public Report run() throws Exception {
+        Report report = new Report();
+        report.boards = boards;
+        report.timeScale = timeScale;
+        report.started = System.currentTimeMillis();
+        report.heapStart = usedHeap();
+        long gcCount = gcCount();
+        long gcMillis = gcMillis();
+
+        List<EbbSimulator> simulators = new ArrayList<EbbSimulator>();
+        List<Ebb> ebbs = new ArrayList<Ebb>();
+        List<Worker> workers = new ArrayList<Worker>();
+        List<Histogram> timers = new ArrayList<Histogram>();
+        try {
+            for (int i = 0; i < boards; i++) {
+                EbbSimulator simulator = new EbbSimulator();
+                simulator.setTimeScale(timeScale);
+                simulators.add(simulator);
+                ebbs.add(simulator.connect());
+            }
+            long start = System.nanoTime();
+            long deadline = start + durationMillis * 1000000L;
+            for (Ebb ebb : ebbs) {
+                if (workloads.contains(Workload.TIMER)) {
+                    TimerSampler sampler = new TimerSampler();
+                    timers.add(sampler.intervals);
+                    ebb.timerReadInputs(timerPeriod, TimerMode.DIGITAL, sampler);
+                }
+                for (Workload workload : workloads) {
+                    if (workload != Workload.TIMER)
+                        workers.add(new Worker(ebb, workload, deadline));
+                }
+            }
+            for (Worker worker : workers)
+                worker.start();
+            for (Worker worker : workers)
+                worker.join();
+            report.durationMillis = (System.nanoTime() - start) / 1000000;
+            for (Ebb ebb : ebbs) {
+                if (workloads.contains(Workload.TIMER))
+                    ebb.timerReadInputs(0, TimerMode.DIGITAL, null);
+            }
+        } finally {
+            for (Ebb ebb : ebbs)
+                ebb.close();
+            for (EbbSimulator simulator : simulators)
+                simulator.close();
+        }
+
+        for (Worker worker : workers)
+            report.add(worker.workload, worker.latencies, worker.errors);
+        for (Histogram h : timers)
+            report.add(Workload.TIMER, h, 0);
+        report.gcCount = gcCount() - gcCount;
+        report.gcMillis = gcMillis() - gcMillis;
+        report.heapEnd = usedHeap();
+        return report;
+    }
+
+    private static long usedHeap() {
+        System.gc();
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    private static long gcCount() {
+        long n = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+            n += Math.max(0, gc.getCollectionCount());
+        return n;
+    }
+
+    private static long gcMillis() {
+        long n = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+            n += Math.max(0, gc.getCollectionTime());
+        return n;
+    }
+
+    /**
+     * Sends one workload's commands to one board as fast as they are answered.
+     */
+    private static class Worker extends Thread {
+        private final Ebb ebb;
+        private final Workload workload;
+        private final long deadline;
+        private final Histogram latencies = new Histogram();
+        private long errors;
+
+        Worker(Ebb ebb, Workload workload, long deadline) {
+            super("FleetSoak " + workload);
+            this.ebb = ebb;
+            this.workload = workload;
+            this.deadline = deadline;
+        }
+
+        @Override
+        public void run() {
+            byte[] bulk = new byte[64];
+            for (int i = 0; i < bulk.length; i++)
+                bulk[i] = (byte) ('A' + i % 26);
+            long now = System.nanoTime();
+            for (int i = 0; now < deadline; i++) {
+                try {
+                    switch (workload) {
+                    case MOTION:
+                        int step = (i & 1) == 0 ? 1 : -1;
+                        ebb.stepperMotorMove(1, step, -step);
+                        break;
+                    case BULK:
+                        ebb.bulkStream(bulk);
+                        break;
+                    case QUERIES:
+                        switch (i % 5) {
+                        case 0:
+                            ebb.queryCurrent();
+                            break;
+                        case 1:
+                            ebb.queryLayer();
+                            break;
+                        case 2:
+                            ebb.queryNodeCount();
+                            break;
+                        case 3:
+                            ebb.queryPen();
+                            break;
+                        case 4:
+                            ebb.queryButton();
+                            break;
+                        }
+                        break;
+                    }
+                } catch (UbwException e) {
+                    errors++;
+                }
+                long end = System.nanoTime();
+                latencies.record(end - now);
+                now = end;
+            }
+        }
+    }
+
+    /**
+     * Records the spacing of timer packets. Packets from one board all arrive
+     * on its reader thread.
+     */
+    private static class TimerSampler implements TimerListener {
+        private final Histogram intervals = new Histogram();
+        private long last;
+
+        @Override
+        public void timerResponse(TimerMode mode, int... value) {
+            long now = System.nanoTime();
+            if (last != 0)
+                intervals.record(now - last);
+            last = now;
+        }
+    }
+
+    /**
+     * A histogram of nanosecond values with a precision of about 1.5%: values
+     * below 128 have a bucket each, and each power of two above that is split
+     * into 64 buckets. Not thread safe.
+     */
+    static class Histogram {
+        private static final int SUB_BITS = 7;
+        private static final int HALF = 1 << (SUB_BITS - 1);
+        private final long[] counts = new long[(64 - SUB_BITS + 2) * HALF];
+        private long total;
+        private long max;
+
+        void record(long nanos) {
+            long v = Math.max(0, nanos);
+            int shift = Math.max(0, 63 - Long.numberOfLeadingZeros(v) - (SUB_BITS - 1));
+            counts[shift * HALF + (int) (v >>> shift)]++;
+            total++;
+            max = Math.max(max, v);
+        }
+
+        void add(Histogram h) {
+            for (int i = 0; i < counts.length; i++)
+                counts[i] += h.counts[i];
+            total += h.total;
+            max = Math.max(max, h.max);
+        }
+
+        long getTotal() {
+            return total;
+        }
+
+        long getMax() {
+            return max;
+        }
+
+        /**
+         * @param fraction 0.5 for the median, 0.999 for the 99.9th percentile
+         * @return the largest value that could be in the bucket the percentile falls in, or 0 if nothing was recorded
+         */
+        long percentile(double fraction) {
+            if (total == 0)
+                return 0;
+            long rank = Math.max(1, (long) Math.ceil(fraction * total));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    int shift = i < 2 * HALF ? 0 : i / HALF - 1;
+                    long low = (long) (i - shift * HALF) << shift;
+                    return Math.min(max, low + (1L << shift) - 1);
+                }
+            }
+            return max;
+        }
+    }
+
+    /**
+     * The results of a run.
+     */
+    public static class Report {
+        private final Map<Workload, Histogram> latencies = new EnumMap<Workload, Histogram>(Workload.class);
+        private final Map<Workload, Long> errors = new EnumMap<Workload, Long>(Workload.class);
+        private int boards;
+        private double timeScale;
+        private long started;
+        private long durationMillis;
+        private long heapStart;
+        private long heapEnd;
+        private long gcCount;
+        private long gcMillis;
+
+        private void add(Workload workload, Histogram h, long errorCount) {
+            Histogram all = latencies.get(workload);
+            if (all == null) {
+                all = new Histogram();
+                latencies.put(workload, all);
+                errors.put(workload, 0L);
+            }
+            all.add(h);
+            errors.put(workload, errors.get(workload) + errorCount);
+        }
+
+        /**
+         * @return the number of commands sent, or of timer packets received
+         */
+        public long getCount(Workload workload) {
+            Histogram h = latencies.get(workload);
+            return h == null ? 0 : h.getTotal();
+        }
+
+        public long getErrors(Workload workload) {
+            Long n = errors.get(workload);
+            return n == null ? 0 : n;
+        }
+
+        /**
+         * @return a percentile of the command latency, or for {@link Workload#TIMER} the packet spacing, in &micro;s
+         */
+        public long getPercentileMicros(Workload workload, double fraction) {
+            Histogram h = latencies.get(workload);
+            return h == null ? 0 : h.percentile(fraction) / 1000;
+        }
+
+        /**
+         * @return the number of commands sent, of every workload but the timer
+         */
+        public long getCommands() {
+            long n = 0;
+            for (Workload w : latencies.keySet()) {
+                if (w != Workload.TIMER)
+                    n += getCount(w);
+            }
+            return n;
+        }
+
+        public double getCommandsPerSecond() {
+            return durationMillis == 0 ? 0 : getCommands() * 1000.0 / durationMillis;
+        }
+
+        public long getDurationMillis() {
+            return durationMillis;
+        }
+
+        /**
+         * @return how much more heap was in use after the run than before, after a full collection each time
+         */
+        public long getHeapGrowth() {
+            return heapEnd - heapStart;
+        }
+
+        public long getGcCount() {
+            return gcCount;
+        }
+
+        /**
+         * @return the time the collectors reported spending during the run, in ms
+         */
+        public long getGcMillis() {
+            return gcMillis;
+        }
+
+        public String toJson() {
+            StringBuilder b = new StringBuilder();
+            b.append("{\n");
+            b.append("  \"started\": ").append(started).append(",\n");
+            b.append("  \"java\": \"").append(System.getProperty("java.version")).append("\",\n");
+            b.append("  \"boards\": ").append(boards).append(",\n");
+            b.append("  \"timeScale\": ").append(timeScale).append(",\n");
+            b.append("  \"durationMillis\": ").append(durationMillis).append(",\n");
+            b.append("  \"commands\": ").append(getCommands()).append(",\n");
+            b.append("  \"commandsPerSecond\": ").append(Math.round(getCommandsPerSecond())).append(",\n");
+            b.append("  \"heap\": { \"startBytes\": ").append(heapStart).append(", \"endBytes\": ").append(heapEnd)
+                    .append(", \"growthBytes\": ").append(getHeapGrowth()).append(" },\n");
+            b.append("  \"gc\": { \"collections\": ").append(gcCount).append(", \"millis\": ").append(gcMillis)
+                    .append(" },\n");
+            b.append("  \"workloads\": {");
+            String separator = "\n";
+            for (Map.Entry<Workload, Histogram> e : latencies.entrySet()) {
+                Workload w = e.getKey();
+                Histogram h = e.getValue();
+                b.append(separator).append("    \"").append(w.name().toLowerCase()).append("\": { ");
+                b.append(w == Workload.TIMER ? "\"packets\": " : "\"commands\": ").append(h.getTotal());
+                b.append(", \"errors\": ").append(getErrors(w));
+                b.append(", \"p50Micros\": ").append(getPercentileMicros(w, 0.5));
+                b.append(", \"p99Micros\": ").append(getPercentileMicros(w, 0.99));
+                b.append(", \"p999Micros\": ").append(getPercentileMicros(w, 0.999));
+                b.append(", \"maxMicros\": ").append(h.getMax() / 1000);
+                b.append(" }");
+                separator = ",\n";
+            }
+            b.append("\n  }\n}\n");
+            return b.toString();
+        }
+
+        public void writeJson(File file) throws IOException {
+            Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+            try {
+                out.write(toJson());
+            } finally {
+                out.close();
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        FleetSoak soak = new FleetSoak();
+        File out = null;
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            String key = eq < 0 ? arg : arg.substring(0, eq);
+            String value = eq < 0 ? "" : arg.substring(eq + 1);
+            if (key.equals("boards")) {
+                soak.setBoards(Integer.parseInt(value));
+            } else if (key.equals("seconds")) {
+                soak.setDurationMillis(Long.parseLong(value) * 1000);
+            } else if (key.equals("scale")) {
+                soak.setTimeScale(Double.parseDouble(value));
+            } else if (key.equals("timer")) {
+                soak.setTimerPeriod(Integer.parseInt(value));
+            } else if (key.equals("workloads")) {
+                Set<Workload> workloads = EnumSet.noneOf(Workload.class);
+                for (String w : value.split(","))
+                    workloads.add(Workload.valueOf(w.trim().toUpperCase()));
+                soak.setWorkloads(workloads);
+            } else if (key.equals("out")) {
+                out = new File(value);
+            } else {
+                System.err.println("Usage: FleetSoak [boards=N] [seconds=N] [scale=X] [timer=MS]"
+                        + " [workloads=motion,timer,bulk,queries] [out=FILE]");
+                System.exit(1);
+            }
+        }
+        Report report = soak.run();
+        if (out != null)
+            report.writeJson(out);
+        else
+            System.out.print(report.toJson());
+    }
+}
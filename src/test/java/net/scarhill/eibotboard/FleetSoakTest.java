@@ -0,0 +1,86 @@
+// Copyright (c) 2011 James Ancona. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package net.scarhill.eibotboard;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+
+import net.scarhill.eibotboard.FleetSoak.Histogram;
+import net.scarhill.eibotboard.FleetSoak.Report;
+import net.scarhill.eibotboard.FleetSoak.Workload;
+
+import org.junit.Test;
+
+
+public class FleetSoakTest {
+    @Test
+    public void testHistogram() {
+        Histogram h = new Histogram();
+        for (int i = 1; i <= 100000; i++)
+            h.record(i * 1000L);
+        assertEquals(100000L, h.getTotal());
+        assertEquals(100000000L, h.getMax());
+        long p50 = h.percentile(0.5);
+        assertTrue(p50 >= 50000000L && p50 < 50000000L * 1.02);
+        long p999 = h.percentile(0.999);
+        assertTrue(p999 >= 99900000L && p999 <= 100000000L);
+        long p0 = h.percentile(0);
+        assertTrue(p0 >= 1000L && p0 < 1000L * 1.02);
+        h = new Histogram();
+        h.record(5);
+        assertEquals(5L, h.percentile(0.99));
+        assertEquals(0L, new Histogram().percentile(0.5));
+    }
+
+    @Test
+    public void testShortRun() throws Exception {
+        FleetSoak soak = new FleetSoak();
+        soak.setBoards(3);
+        soak.setDurationMillis(1500);
+        Report report = soak.run();
+        for (Workload w : Workload.values()) {
+            assertTrue(w + " ran", report.getCount(w) > 0);
+            assertEquals(0L, report.getErrors(w));
+            long p50 = report.getPercentileMicros(w, 0.5);
+            assertTrue(p50 <= report.getPercentileMicros(w, 0.99));
+            assertTrue(report.getPercentileMicros(w, 0.99) <= report.getPercentileMicros(w, 0.999));
+        }
+        // packets come about every 5 ms
+        long spacing = report.getPercentileMicros(Workload.TIMER, 0.5);
+        assertTrue(spacing + " us", spacing >= 4000 && spacing < 20000);
+        assertTrue(report.getDurationMillis() >= 1500);
+        assertTrue(report.getCommandsPerSecond() > 0);
+
+        File file = File.createTempFile("soak", ".json");
+        try {
+            report.writeJson(file);
+            StringBuilder json = new StringBuilder();
+            BufferedReader in = new BufferedReader(new FileReader(file));
+            String line;
+            while ((line = in.readLine()) != null)
+                json.append(line).append('\n');
+            in.close();
+            assertTrue(json.indexOf("\"boards\": 3,") >= 0);
+            assertTrue(json.indexOf("\"p999Micros\"") >= 0);
+            assertTrue(json.indexOf("\"timer\": { \"packets\": ") >= 0);
+            assertTrue(json.indexOf("\"growthBytes\"") >= 0);
+        } finally {
+            file.delete();
+        }
+    }
+}
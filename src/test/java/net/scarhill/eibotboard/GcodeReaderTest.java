@@ -0,0 +1,63 @@
+// Copyright (c) 2011 James Ancona. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package net.scarhill.eibotboard;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+import org.junit.Test;
+
+
+public class GcodeReaderTest {
+    @Test
+    public void testSubset() throws IOException {
+        String gcode = "%\n(header) G21 G90\n"
+                + "G0 X10 Y10 ; travel\n"
+                + "G1 X20 F1500\n"
+                + "Y20\n"
+                + "G91 G1 X-10 Y0\n"
+                + "G90 G20 G0 X1 Y1\n"
+                + "M3\n"
+                + "G0 X2\n"
+                + "M5\n"
+                + "G21 G0 X0 Y10 Z1\n"
+                + "G1 Z-1\n"
+                + "G3 X0 Y-10 I0 J-10\n"
+                + "G1 Z1\n";
+        SvgPathReaderTest.Points sink = new SvgPathReaderTest.Points();
+        GcodeReader reader = new GcodeReader(new StringReader(gcode), sink);
+        reader.read();
+        double[][] expected = {
+                {10, 10, 0}, {20, 10, 1}, {20, 20, 1}, {10, 20, 1},
+                {25.4, 25.4, 0}, {50.8, 25.4, 1}, {0, 10, 0}};
+        for (int i = 0; i < expected.length; i++) {
+            for (int k = 0; k < 3; k++)
+                assertEquals("point " + i, expected[i][k], sink.points.get(i)[k], 1e-9);
+        }
+        // a counterclockwise half circle from the top to the bottom goes through (-10, 0)
+        double minX = 0;
+        for (int i = expected.length; i < sink.points.size(); i++) {
+            double[] p = sink.points.get(i);
+            assertEquals(1, p[2], 0);
+            assertEquals(10, Math.hypot(p[0], p[1]), 0.011);
+            minX = Math.min(minX, p[0]);
+        }
+        assertEquals(-10, minX, 0.011);
+        double[] last = sink.points.get(sink.points.size() - 1);
+        assertEquals(0, last[0], 1e-9);
+        assertEquals(-10, last[1], 1e-9);
+    }
+}
@@ -0,0 +1,120 @@
+// Copyright (c) 2011 James Ancona. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package net.scarhill.eibotboard;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+
+public class LayerIndexTest {
+    /**
+     * Checks that every line is drawn on the layer it belongs to, and totals them.
+     */
+    private static class Canvas extends DryRun {
+        long[] drawn = new long[4];
+        int layerSets;
+
+        @Override
+        public void stepperMotorMove(int duration, int axis1, int axis2) {
+            if (queryPen() != Plot.PEN_UP) {
+                // lines on layer n are drawn n steps below the x axis
+                assertEquals(-queryLayer(), getY());
+                assertEquals(0, axis2);
+                drawn[queryLayer()] += Math.abs(axis1);
+            }
+            super.stepperMotorMove(duration, axis1, axis2);
+        }
+
+        @Override
+        public void setLayer(int layer) {
+            layerSets++;
+            super.setLayer(layer);
+        }
+    }
+
+    /**
+     * Strokes on layers 1, 2, 1, 3, each a horizontal line of 100 steps
+     * further along the x axis.
+     */
+    private Plot plot() {
+        PlotRecorder recorder = new PlotRecorder();
+        recorder.enableMotor(1, 1);
+        int[] layers = {1, 2, 1, 3};
+        long y = 0;
+        for (int i = 0; i < layers.length; i++) {
+            recorder.setLayer(layers[i]);
+            recorder.stepperMotorMove(50, 20, (int) (-layers[i] - y));
+            y = -layers[i];
+            recorder.setPenState(!Plot.PEN_UP, 100);
+            for (int k = 0; k < 4; k++)
+                recorder.stepperMotorMove(25, 20, 0);
+            recorder.setPenState(Plot.PEN_UP, 100);
+        }
+        return recorder.toPlot();
+    }
+
+    @Test
+    public void testStatistics() {
+        Plot plot = plot();
+        LayerIndex index = LayerIndex.build(plot);
+        assertEquals(5, index.getSegmentCount());
+        assertArrayEquals(new int[] {0, 1, 2, 3}, index.getLayers());
+        assertEquals(2 * 350L, index.getLayerMillis(1));
+        assertEquals(350L, index.getLayerMillis(3));
+        assertEquals(0L, index.getLayerMillis(0));
+        assertEquals(160L, index.getLayerDrawSteps(1));
+        assertEquals(80L, index.getLayerDrawSteps(2));
+        assertEquals(2, index.getLayerPenLifts(1));
+        assertEquals(Math.round(Math.hypot(20, 1)) + Math.round(Math.hypot(20, 1)), index.getLayerTravelSteps(1));
+        assertEquals(3, index.getLayerOffset(1));
+        assertEquals(index.getFrom(2), index.getTo(1));
+        assertEquals(plot.size(), index.getTo(4));
+        long total = 0;
+        for (int i = 0; i < index.getSegmentCount(); i++)
+            total += index.getMillis(i);
+        assertEquals(DryRun.estimate(plot).getTotalMillis(), total);
+    }
+
+    @Test
+    public void testPlaySelectedLayers() {
+        Plot plot = plot();
+        LayerIndex index = LayerIndex.build(plot);
+
+        Canvas canvas = new Canvas();
+        index.play(plot, canvas, 1000, 1);
+        assertEquals(160L, canvas.drawn[1]);
+        assertEquals(0L, canvas.drawn[2] + canvas.drawn[3]);
+        assertEquals(2, canvas.layerSets);
+        assertTrue(canvas.queryPen());
+        // the second stroke on layer 1 still ends where it does in the full plot
+        assertEquals(300L, canvas.getX());
+
+        canvas = new Canvas();
+        index.play(plot, canvas, 1000, 2, 3);
+        assertEquals(0L, canvas.drawn[1]);
+        assertEquals(80L, canvas.drawn[2]);
+        assertEquals(80L, canvas.drawn[3]);
+        assertEquals(3, canvas.queryLayer());
+        assertEquals(400L, canvas.getX());
+        assertEquals(-3L, canvas.getY());
+
+        canvas = new Canvas();
+        index.play(plot, canvas, 1000, 0, 1, 2, 3);
+        DryRun full = DryRun.estimate(plot);
+        assertEquals(full.getTotalMillis(), canvas.getTotalMillis());
+    }
+}
@@ -0,0 +1,142 @@
+// Copyright (c) 2011 James Ancona. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package net.scarhill.eibotboard;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+
+
+public class PathSimplifierTest {
+    private static double distance(double[] p, double[] a, double[] b) {
+        double dx = b[0] - a[0], dy = b[1] - a[1];
+        double t = Math.max(0, Math.min(1, ((p[0] - a[0]) * dx + (p[1] - a[1]) * dy) / (dx * dx + dy * dy)));
+        return Math.hypot(p[0] - a[0] - t * dx, p[1] - a[1] - t * dy);
+    }
+
+    @Test
+    public void testDenseCurveStaysWithinTolerance() {
+        SvgPathReaderTest.Points out = new SvgPathReaderTest.Points();
+        PathSimplifier simplifier = new PathSimplifier(out, 0.5, 1000);
+        List<double[]> in = new ArrayList<double[]>();
+        int points = 100000;
+        simplifier.moveTo(1000, 0);
+        in.add(new double[] {1000, 0});
+        for (int i = 1; i <= points; i++) {
+            double a = 2 * Math.PI * i / points;
+            double[] p = {1000 * Math.cos(a), 1000 * Math.sin(a) + (i % 2) * 0.2};
+            in.add(p);
+            simplifier.lineTo(p[0], p[1]);
+        }
+        simplifier.end();
+        assertTrue(out.ended);
+        assertEquals(points + 1, simplifier.getPointsIn());
+        assertEquals(out.points.size(), simplifier.getPointsOut());
+        assertTrue(out.points.size() + " points", out.points.size() < points / 100);
+
+        // the points kept are points of the input, and every point dropped is close to the line that replaced it
+        int k = 0;
+        for (int i = 1; i < out.points.size(); i++) {
+            double[] a = out.points.get(i - 1);
+            double[] b = out.points.get(i);
+            int start = k;
+            while (in.get(k)[0] != b[0] || in.get(k)[1] != b[1])
+                k++;
+            for (int j = start + 1; j < k; j++)
+                assertTrue(distance(in.get(j), a, b) <= 0.5);
+        }
+        assertEquals(points, k);
+    }
+
+    @Test
+    public void testCollinearAndRepeatedPoints() {
+        SvgPathReaderTest.Points out = new SvgPathReaderTest.Points();
+        PathSimplifier simplifier = new PathSimplifier(out, 0);
+        simplifier.moveTo(0, 0);
+        for (int i = 1; i <= 1000; i++) {
+            simplifier.lineTo(i, 2 * i);
+            simplifier.lineTo(i, 2 * i);
+        }
+        simplifier.lineTo(1000, 0);
+        simplifier.end();
+        assertEquals(3, out.points.size());
+        assertEquals(1000, out.points.get(1)[0], 0);
+        assertEquals(2000, out.points.get(1)[1], 0);
+    }
+
+    @Test
+    public void testCoalescing() {
+        // a gentle curve of lines a third of a step long, which take 0.1 ms each at 3000 steps per second
+        final Set<Long> visited = new HashSet<Long>();
+        DryRun board = new DryRun() {
+            @Override
+            public void stepperMotorMove(int duration, int axis1, int axis2) {
+                super.stepperMotorMove(duration, axis1, axis2);
+                visited.add(getX() << 32 | getY());
+            }
+        };
+        StepEmitter emitter = new StepEmitter(board, 1);
+        emitter.setDrawSpeed(3000);
+        emitter.moveTo(0, 0);
+        int lines = 30000;
+        for (int i = 1; i <= lines; i++)
+            emitter.lineTo(i / 3.0, 2000 * Math.sin(i / 6000.0));
+        // a sharp corner less than a millisecond long must still be reached
+        emitter.lineTo(10001, 2000 * Math.sin(5));
+        emitter.lineTo(10000, 2000 * Math.sin(5) + 1);
+        emitter.end();
+        assertEquals(10000, board.getX());
+        assertEquals(Math.round(2000 * Math.sin(5)) + 1, board.getY());
+        assertTrue(visited.contains(10001L << 32 | Math.round(2000 * Math.sin(5))));
+        assertTrue(emitter.getMoveCount() + " moves", emitter.getMoveCount() < lines / 5);
+
+        DryRun plain = new DryRun();
+        StepEmitter uncoalesced = new StepEmitter(plain, 1);
+        uncoalesced.setCoalescing(false);
+        uncoalesced.setDrawSpeed(3000);
+        for (int i = 1; i <= lines; i++)
+            uncoalesced.lineTo(i / 3.0, 2000 * Math.sin(i / 6000.0));
+        // lines that round to the same step are dropped either way
+        assertTrue(uncoalesced.getMoveCount() > 9000);
+        assertTrue(uncoalesced.getMoveCount() > 2 * emitter.getMoveCount());
+    }
+
+    @Test
+    public void testCoalescingKeepsReversals() {
+        final List<int[]> moves = new ArrayList<int[]>();
+        DryRun board = new DryRun() {
+            @Override
+            public void stepperMotorMove(int duration, int axis1, int axis2) {
+                super.stepperMotorMove(duration, axis1, axis2);
+                moves.add(new int[] {axis1, axis2});
+            }
+        };
+        StepEmitter emitter = new StepEmitter(board, 1);
+        emitter.setDrawSpeed(20000);
+        emitter.moveTo(0, 0);
+        emitter.lineTo(8, 0);
+        emitter.lineTo(-5, 0);
+        emitter.end();
+        assertEquals(2, moves.size());
+        assertEquals(8, moves.get(0)[0]);
+        assertEquals(-13, moves.get(1)[0]);
+        assertEquals(-5, board.getX());
+    }
+}
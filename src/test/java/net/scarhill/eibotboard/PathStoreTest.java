@@ -0,0 +1,94 @@
+// Copyright (c) 2011 James Ancona. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package net.scarhill.eibotboard;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Test;
+
+
+public class PathStoreTest {
+    private static void fill(PathStore store, int strokes, int length) {
+        for (int s = 0; s < strokes; s++) {
+            store.moveTo(s, -s);
+            for (int i = 1; i < length; i++)
+                store.lineTo(s + i * 0.5, -s + (i % 3));
+        }
+        store.end();
+    }
+
+    @Test
+    public void testCursorAcrossSegments() throws IOException {
+        PathStore store = new PathStore(null, 1000);
+        fill(store, 3000, 77);
+        assertEquals(3000L * 77, store.getPointCount());
+        assertEquals(3000, store.getStrokeCount());
+        assertEquals(77L * 1234, store.getStrokeStart(1234));
+
+        PathStore.Cursor c = store.cursor();
+        long n = 0;
+        while (c.next()) {
+            int s = (int) (n / 77);
+            int i = (int) (n % 77);
+            assertEquals(n, c.getIndex());
+            assertEquals(s, c.getStroke());
+            assertEquals(i == 0, c.isMove());
+            assertEquals(s + i * 0.5, c.getX(), 0);
+            assertEquals(i == 0 ? -s : -s + (i % 3), c.getY(), 0);
+            n++;
+        }
+        assertEquals(store.getPointCount(), n);
+
+        c = store.cursor(10, 12);
+        assertTrue(c.next());
+        assertTrue(c.isMove());
+        assertEquals(10, c.getStroke());
+        assertEquals(10.0, c.getX(), 0);
+        int points = 1;
+        while (c.next())
+            points++;
+        assertEquals(2 * 77, points);
+        assertFalse(store.cursor(5, 5).next());
+    }
+
+    @Test
+    public void testMappedStoreFeedsCompiler() throws IOException {
+        File file = File.createTempFile("paths", ".bin");
+        file.deleteOnExit();
+        PathStore store = new PathStore(file, 4096);
+        try {
+            fill(store, 500, 200);
+            // whole segments of 4096 points, 16 bytes each
+            assertEquals((500L * 200 + 4095) / 4096 * 4096 * 16, file.length());
+
+            PlotRecorder recorder = new PlotRecorder();
+            StepEmitter emitter = new StepEmitter(recorder, 10);
+            store.replay(0, store.getStrokeCount(), emitter);
+            emitter.end();
+
+            PlotCompiler compiler = new PlotCompiler(10);
+            compiler.setPool(new ForkJoinPool(3));
+            Plot plot = compiler.compile(store.chunks(17));
+            assertEquals(recorder.toPlot().getBuffer(), plot.getBuffer());
+        } finally {
+            store.close();
+        }
+    }
+}
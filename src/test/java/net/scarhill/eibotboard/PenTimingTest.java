@@ -0,0 +1,110 @@
+// Copyright (c) 2011 James Ancona. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package net.scarhill.eibotboard;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.Properties;
+
+import org.junit.Test;
+
+
+public class PenTimingTest {
+    @Test
+    public void testModel() {
+        PenTiming timing = new PenTiming();
+        // 4000 units at 400 per 21 ms cycle, 30 ms to settle, 20% margin
+        assertEquals((int) Math.ceil((4000 / (400 / 21.0) + 30) * 1.2), timing.getUpMillis());
+        timing.servoModeConfigure(4, 20000);
+        timing.servoModeConfigure(5, 15000);
+        timing.servoModeConfigure(10, 1000);
+        timing.servoModeConfigure(12, 0);
+        timing.setMargin(0);
+        // rates faster than the servo can follow are limited by its slew rate
+        assertEquals((int) Math.ceil(5000 / 40.0 + 30), timing.getUpMillis());
+        assertEquals((int) Math.ceil(5000 / 40.0 + 30), timing.getDownMillis());
+        timing.servoModeConfigure(11, 420);
+        assertEquals((int) Math.ceil(5000 / 20.0 + 30), timing.getUpMillis());
+        timing.servoModeConfigure(2, 1);
+        assertEquals((int) Math.ceil(5000 / 20.0 + 30), timing.getUpMillis());
+
+        Properties profile = new Properties();
+        profile.setProperty("pen.slew", "100");
+        profile.setProperty("pen.settle", "10");
+        timing.load(profile);
+        assertEquals(5000 / 100 + 10, timing.getDownMillis());
+        PenTiming copy = new PenTiming();
+        timing.store(profile);
+        copy.load(profile);
+        copy.servoModeConfigure(4, 20000);
+        copy.servoModeConfigure(5, 15000);
+        copy.servoModeConfigure(12, 0);
+        assertEquals(timing.getDownMillis(), copy.getDownMillis());
+    }
+
+    @Test
+    public void testLoadChecksValues() {
+        PenTiming timing = new PenTiming();
+        int millis = timing.getDownMillis();
+        String[][] bad = {{"pen.slew", "0"}, {"pen.cycle", "0"}, {"pen.margin", "-0.5"}, {"pen.settle", "-1"}};
+        for (String[] setting : bad) {
+            Properties profile = new Properties();
+            profile.setProperty("pen.slew", "100");
+            profile.setProperty(setting[0], setting[1]);
+            try {
+                timing.load(profile);
+                fail(setting[0] + "=" + setting[1]);
+            } catch (IllegalArgumentException e) {
+            }
+            // nothing from a rejected profile is kept
+            assertEquals(millis, timing.getDownMillis());
+        }
+        try {
+            timing.setSettleMillis(-1);
+            fail();
+        } catch (IllegalArgumentException e) {
+        }
+    }
+
+    @Test
+    public void testAppliedByEbb() throws Exception {
+        EbbSimulator simulator = new EbbSimulator();
+        Ebb ebb = simulator.connect();
+        try {
+            PenTiming timing = new PenTiming();
+            timing.setMargin(0);
+            ebb.setPenTiming(timing);
+            ebb.servoModeConfigure(10, 0);
+            ebb.setPenState(false);
+            assertEquals("SP,0," + (4000 / 40 + 30), simulator.lastCommand);
+            ebb.servoModeConfigure(11, 200);
+            ebb.togglePen();
+            assertEquals("TP," + (int) Math.ceil(4000 / (200 / 21.0) + 30), simulator.lastCommand);
+            ebb.setPenTiming(null);
+            ebb.setPenState(true);
+            assertEquals("SP,1", simulator.lastCommand);
+        } finally {
+            ebb.close();
+            simulator.close();
+        }
+
+        DryRun dryRun = new DryRun();
+        PenTiming timing = new PenTiming();
+        dryRun.setPenTiming(timing);
+        dryRun.setPenState(false);
+        dryRun.togglePen();
+        assertEquals((long) timing.getDownMillis() + timing.getUpMillis(), dryRun.getTotalMillis());
+    }
+}
@@ -0,0 +1,141 @@
+// Copyright (c) 2011 James Ancona. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package net.scarhill.eibotboard;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+
+public class PlanCacheTest {
+    private File directory;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = File.createTempFile("plans", "");
+        directory.delete();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files)
+                file.delete();
+        }
+        directory.delete();
+    }
+
+    private static Plot plot(int moves) {
+        PlotRecorder recorder = new PlotRecorder();
+        for (int i = 0; i < moves; i++)
+            recorder.stepperMotorMove(10, i % 100, 1);
+        return recorder.toPlot();
+    }
+
+    private static String key(String drawing, MachineProfile profile) throws IOException {
+        return PlanCache.key(new ByteArrayInputStream(drawing.getBytes("UTF-8")), profile);
+    }
+
+    @Test
+    public void testKeys() throws IOException {
+        MachineProfile profile = new MachineProfile();
+        String key = key("<path d='M0,0 L1,1'/>", profile);
+        assertEquals(64, key.length());
+        assertEquals(key, key("<path d='M0,0 L1,1'/>", new MachineProfile()));
+        assertFalse(key.equals(key("<path d='M0,0 L1,2'/>", profile)));
+        MachineProfile other = new MachineProfile();
+        other.setMicrostepMode(2);
+        assertFalse(key.equals(key("<path d='M0,0 L1,1'/>", other)));
+        other = new MachineProfile();
+        other.setServo(4, 16000);
+        assertFalse(key.equals(key("<path d='M0,0 L1,1'/>", other)));
+        assertFalse(other.equals(profile));
+        other = new MachineProfile();
+        other.setOrigin(10, 0);
+        assertFalse(key.equals(key("<path d='M0,0 L1,1'/>", other)));
+        other = new MachineProfile();
+        other.setPenTiming(new PenTiming());
+        String timed = key("<path d='M0,0 L1,1'/>", other);
+        assertFalse(key.equals(timed));
+        assertFalse(other.equals(profile));
+        other.getPenTiming().setSettleMillis(50);
+        assertFalse(timed.equals(key("<path d='M0,0 L1,1'/>", other)));
+        other = new MachineProfile();
+        other.setTolerance(0.1);
+        assertFalse(key.equals(key("<path d='M0,0 L1,1'/>", other)));
+        assertFalse(other.equals(profile));
+        other.setTolerance(profile.getTolerance());
+        assertEquals(profile.hashCode(), other.hashCode());
+    }
+
+    @Test
+    public void testProfileCompilerUsesScale() {
+        List<PlotCompiler.Chunk> line = Collections.<PlotCompiler.Chunk>singletonList(new PlotCompiler.Chunk() {
+            @Override
+            public void draw(PathSink sink) {
+                sink.moveTo(0, 0);
+                sink.lineTo(100, 0);
+            }
+        });
+        MachineProfile profile = new MachineProfile();
+        profile.setStepsPerUnit(2);
+        assertEquals(200L, DryRun.estimate(profile.newCompiler().compile(line)).getX());
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEviction() throws Exception {
+        Plot plot = plot(1000);
+        PlanCache cache = new PlanCache(directory, 3 * plot.size() + 3 * 200);
+        PlotFile stored = cache.put("a", plot);
+        assertEquals(plot.getBuffer(), stored.getPlot().getBuffer());
+        Thread.sleep(20);
+        cache.put("b", plot);
+        Thread.sleep(20);
+        cache.put("c", plot);
+        Thread.sleep(20);
+        assertNotNull(cache.get("a"));
+        assertNull(cache.get("x"));
+        Thread.sleep(20);
+        cache.put("d", plot);
+        assertEquals(3, cache.getEntryCount());
+        assertFalse(cache.contains("b"));
+        assertTrue(cache.contains("a"));
+        assertTrue(cache.getSize() <= 3 * plot.size() + 3 * 200);
+        assertEquals(1L, cache.getHits());
+        assertEquals(1L, cache.getMisses());
+
+        // a new cache over the same directory knows the order of use
+        cache = new PlanCache(directory, 3 * plot.size() + 3 * 200);
+        assertEquals(3, cache.getEntryCount());
+        cache.put("e", plot);
+        assertFalse(cache.contains("c"));
+        PlotFile hit = cache.get("a");
+        DryRun board = new DryRun();
+        hit.play(board);
+        assertEquals(1000L, board.getMoveCount());
+    }
+}
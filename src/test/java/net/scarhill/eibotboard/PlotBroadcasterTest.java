@@ -0,0 +1,115 @@
+// Copyright (c) 2011 James Ancona. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package net.scarhill.eibotboard;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+
+/**
+ * Broadcasts a plot to simulated boards.
+ */
+public class PlotBroadcasterTest {
+
+    private Plot square(int moves) {
+        PlotRecorder recorder = new PlotRecorder();
+        recorder.enableMotor(1, 1);
+        recorder.setPenState(false, 100);
+        for (int i = 0; i < moves; i++) {
+            recorder.stepperMotorMove(5, 10, i % 2 == 0 ? 3 : -3);
+        }
+        recorder.setPenState(true, 100);
+        return recorder.toPlot();
+    }
+
+    @Test
+    public void testSlowAndFailedBoardsDontStallOthers() throws Exception {
+        Plot plot = square(200);
+        assertEquals(200L, plot.getNodeCount());
+        List<EbbSimulator> simulators = new ArrayList<EbbSimulator>();
+        List<EbbCommand> boards = new ArrayList<EbbCommand>();
+        for (int i = 0; i < 3; i++) {
+            EbbSimulator simulator = new EbbSimulator();
+            boards.add(simulator.connect());
+            simulators.add(simulator);
+        }
+        // the last board moves in real time, the others instantly
+        simulators.get(2).setTimeScale(1);
+        // and this one breaks part way through
+        boards.add(new PlotRecorder() {
+            private int moves;
+            @Override
+            public void stepperMotorMove(int duration, int axis1, int axis2) {
+                if (++moves > 30)
+                    throw new UbwException("unplugged", UbwException.ErrorCode.COMM_ERROR);
+            }
+        });
+
+        PlotBroadcaster broadcaster = new PlotBroadcaster(plot);
+        broadcaster.setSyncInterval(10);
+        broadcaster.setMaxLead(20);
+        broadcaster.setLagTimeout(50);
+        List<PlotBroadcaster.Outcome> outcomes = broadcaster.broadcast(boards);
+
+        for (int i = 0; i < 3; i++) {
+            PlotBroadcaster.Outcome outcome = outcomes.get(i);
+            assertTrue(outcome.isFinished());
+            assertNull(outcome.getError());
+            assertEquals(200L, outcome.getNodes());
+            assertEquals(2000L, simulators.get(i).x);
+            assertEquals(0L, simulators.get(i).y);
+        }
+        assertTrue(outcomes.get(0).isInStep());
+        assertTrue(outcomes.get(1).isInStep());
+        assertFalse(outcomes.get(2).isInStep());
+        assertTrue(outcomes.get(0).getElapsedMillis() < outcomes.get(2).getElapsedMillis());
+        assertFalse(outcomes.get(3).isFinished());
+        assertFalse(outcomes.get(3).isInStep());
+        assertTrue(outcomes.get(3).getError() instanceof UbwException);
+
+        for (int i = 0; i < 3; i++) {
+            ((Ebb) boards.get(i)).close();
+            simulators.get(i).close();
+        }
+    }
+
+    @Test
+    public void testRecorderAnswersQueries() {
+        PlotRecorder recorder = new PlotRecorder();
+        assertTrue(recorder.queryPen());
+        recorder.setPenState(false, 100);
+        recorder.setLayer(3);
+        recorder.setNodeCount(7);
+        recorder.stepperMotorMove(5, 10, 0);
+        recorder.nodeCountIncrement();
+        assertFalse(recorder.queryPen());
+        assertEquals(3, recorder.queryLayer());
+        assertEquals(8L, recorder.queryNodeCount());
+        assertFalse(recorder.queryButton());
+
+        PlotRecorder copy = new PlotRecorder();
+        copy.append(recorder.toPlot());
+        copy.togglePen();
+        assertTrue(copy.queryPen());
+        assertEquals(3, copy.queryLayer());
+        assertEquals(8L, copy.queryNodeCount());
+    }
+}
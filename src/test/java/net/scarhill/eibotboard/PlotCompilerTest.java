@@ -0,0 +1,130 @@
+// Copyright (c) 2011 James Ancona. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package net.scarhill.eibotboard;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+
+public class PlotCompilerTest {
+    /**
+     * A row of wobbly circles.
+     */
+    private static class Circles implements PlotCompiler.Chunk {
+        private final int first;
+        private final int count;
+
+        Circles(int first, int count) {
+            this.first = first;
+            this.count = count;
+        }
+
+        @Override
+        public void draw(PathSink sink) {
+            for (int c = first; c < first + count; c++) {
+                double cx = 30 * (c % 40), cy = 30 * (c / 40);
+                sink.moveTo(cx + 10, cy);
+                for (int i = 1; i <= 2000; i++) {
+                    double a = 2 * Math.PI * i / 2000;
+                    double r = 10 + 0.3 * Math.sin(17 * a + c);
+                    sink.lineTo(cx + r * Math.cos(a), cy + r * Math.sin(a));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testSameAsSequential() {
+        List<Circles> chunks = new ArrayList<Circles>();
+        for (int i = 0; i < 400; i += 7)
+            chunks.add(new Circles(i, Math.min(7, 400 - i)));
+
+        PlotRecorder recorder = new PlotRecorder();
+        StepEmitter emitter = new StepEmitter(recorder, 20);
+        PathSimplifier sequential = new PathSimplifier(emitter, 0.025);
+        new Circles(0, 400).draw(sequential);
+        sequential.end();
+        Plot expected = recorder.toPlot();
+
+        PlotCompiler compiler = new PlotCompiler(20);
+        compiler.setTolerance(0.025);
+        compiler.setPool(new ForkJoinPool(4));
+        Plot plot = compiler.compile(chunks);
+        assertEquals(expected.getCommandCount(), plot.getCommandCount());
+        assertEquals(expected.getBuffer(), plot.getBuffer());
+    }
+
+    @Test(timeout = 10000)
+    public void testPlotsBeforeLastChunkIsCompiled() {
+        final CountDownLatch started = new CountDownLatch(1);
+        List<PlotCompiler.Chunk> chunks = new ArrayList<PlotCompiler.Chunk>();
+        chunks.add(new Circles(0, 1));
+        chunks.add(new PlotCompiler.Chunk() {
+            @Override
+            public void draw(PathSink sink) {
+                // can only finish once the board has started drawing the first chunk
+                try {
+                    started.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                }
+                assertEquals(0, started.getCount());
+                new Circles(1, 1).draw(sink);
+            }
+        });
+        DryRun board = new DryRun() {
+            @Override
+            public void stepperMotorMove(int duration, int axis1, int axis2) {
+                super.stepperMotorMove(duration, axis1, axis2);
+                started.countDown();
+            }
+        };
+        PlotCompiler compiler = new PlotCompiler(20);
+        compiler.setPool(new ForkJoinPool(2));
+        compiler.compile(chunks, board);
+        assertEquals(0, started.getCount());
+        // the second circle ends on the x axis at 10 + 0.3 sin(1) from its center
+        assertEquals(Math.round(20 * (40 + 0.3 * Math.sin(1))), board.getX());
+    }
+
+    @Test
+    public void testPenTiming() {
+        PenTiming timing = new PenTiming();
+        timing.setSettleMillis(5);
+        timing.setMargin(0);
+        final List<Integer> durations = new ArrayList<Integer>();
+        DryRun board = new DryRun() {
+            @Override
+            public void setPenState(boolean state, int duration) {
+                super.setPenState(state, duration);
+                durations.add(duration);
+            }
+        };
+        PlotCompiler compiler = new PlotCompiler(20);
+        compiler.setPenTiming(timing);
+        compiler.setPool(new ForkJoinPool(2));
+        List<Circles> chunks = new ArrayList<Circles>();
+        chunks.add(new Circles(0, 2));
+        compiler.compile(chunks, board);
+        assertEquals(4, durations.size());
+        assertEquals(timing.getDownMillis(), (int) durations.get(0));
+        assertEquals(timing.getUpMillis(), (int) durations.get(1));
+    }
+}
@@ -0,0 +1,117 @@
+// Copyright (c) 2011 James Ancona. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package net.scarhill.eibotboard;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import org.junit.Test;
+
+
+public class PlotFileTest {
+    private File file() throws IOException {
+        File file = File.createTempFile("plot", ".ebp");
+        file.deleteOnExit();
+        return file;
+    }
+
+    @Test
+    public void testWriteAndPlay() throws IOException {
+        PlotRecorder recorder = new PlotRecorder();
+        recorder.enableMotor(1, 1);
+        recorder.setLayer(1);
+        int slOffset = 0;
+        for (int i = 0; i < 1000; i++) {
+            if (i == 500) {
+                slOffset = recorder.size();
+                recorder.setLayer(2);
+            }
+            if (i % 100 == 0)
+                recorder.setPenState(i % 200 != 0, 50);
+            recorder.stepperMotorMove(5, 2, -1);
+        }
+        Plot plot = recorder.toPlot();
+        File file = file();
+        PlotFile.write(plot, file);
+        assertEquals(36 + 3 * LayerIndex.ENTRY + plot.size(), file.length());
+
+        PlotFile saved = PlotFile.open(file);
+        assertEquals(DryRun.estimate(plot).getTotalMillis(), saved.getEstimatedMillis());
+        assertEquals(5500L, saved.getEstimatedMillis());
+        LayerIndex layers = saved.getLayerIndex();
+        assertEquals(3, layers.getSegmentCount());
+        assertEquals(3, layers.getLayerOffset(1));
+        assertEquals(slOffset, layers.getLayerOffset(2));
+        assertEquals(plot.getCommandCount(), saved.getPlot().getCommandCount());
+        assertEquals(1000L, saved.getPlot().getNodeCount());
+
+        DryRun board = new DryRun();
+        saved.play(board);
+        assertEquals(2000L, board.getX());
+        assertEquals(-1000L, board.getY());
+        assertEquals(2, board.queryLayer());
+        assertEquals(plot.getBuffer(), saved.getPlot().getBuffer());
+    }
+
+    @Test
+    public void testRejectsDamagedFiles() throws IOException {
+        PlotRecorder recorder = new PlotRecorder();
+        recorder.stepperMotorMove(5, 2, -1);
+        File file = file();
+        PlotFile.write(recorder.toPlot(), file);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(file.length() - 1);
+        raf.close();
+        try {
+            PlotFile.open(file);
+            fail("should have failed");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().endsWith("is truncated"));
+        }
+        raf = new RandomAccessFile(file, "rw");
+        raf.writeInt(0);
+        raf.close();
+        try {
+            PlotFile.open(file);
+            fail("should have failed");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().endsWith("is not a plot file"));
+        }
+    }
+
+    @Test
+    public void testRejectsBadOpcodes() throws IOException {
+        PlotRecorder recorder = new PlotRecorder();
+        recorder.stepperMotorMove(5, 2, -1);
+        recorder.stepperMotorMove(5, 2, -1);
+        File file = file();
+        PlotFile.write(recorder.toPlot(), file);
+        // the second move's opcode
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.seek(file.length() - Plot.length(Plot.SM));
+        raf.write(99);
+        raf.close();
+        try {
+            PlotFile.open(file);
+            fail("should have failed");
+        } catch (UbwException e) {
+            assertEquals(UbwException.ErrorCode.RESPONSE_ERROR, e.getErrorCode());
+        }
+    }
+}
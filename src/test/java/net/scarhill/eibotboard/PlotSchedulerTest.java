@@ -0,0 +1,136 @@
+// Copyright (c) 2011 James Ancona. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package net.scarhill.eibotboard;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+
+public class PlotSchedulerTest {
+    private EbbSimulator simulator;
+    private Ebb ebb;
+
+    @Before
+    public void setUp() throws Exception {
+        simulator = new EbbSimulator();
+        ebb = simulator.connect();
+        simulator.setTimeScale(1);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        ebb.close();
+        simulator.close();
+    }
+
+    /**
+     * @return a plot of <code>strokes</code> short strokes, each drawn with the pen down
+     */
+    private Plot strokes(int strokes) {
+        return strokes(new PlotRecorder(), strokes);
+    }
+
+    /**
+     * @return the commands already in <code>recorder</code> followed by <code>strokes</code> short strokes
+     */
+    private Plot strokes(PlotRecorder recorder, int strokes) {
+        for (int i = 0; i < strokes; i++) {
+            recorder.setPenState(false, 5);
+            for (int m = 0; m < 4; m++) {
+                recorder.stepperMotorMove(5, 7, 2);
+            }
+            recorder.setPenState(true, 5);
+            recorder.stepperMotorMove(5, 3, 0);
+        }
+        return recorder.toPlot();
+    }
+
+    @Test
+    public void testPreemption() throws Exception {
+        PlotScheduler scheduler = new PlotScheduler(Collections.singletonList(ebb), PlotScheduler.Policy.PRIORITY);
+        scheduler.setTravelSpeed(20000);
+        PlotJob low = new PlotJob("low", strokes(30), 0);
+        PlotJob high = new PlotJob("high", strokes(3), 10);
+        scheduler.submit(low);
+        Thread.sleep(150);
+        scheduler.submit(high);
+        high.await();
+        assertEquals(PlotJob.State.DONE, high.getState());
+        assertTrue(low.getState() != PlotJob.State.DONE);
+        low.await();
+        assertEquals(PlotJob.State.DONE, low.getState());
+        assertEquals(1, low.getPreemptions());
+        assertEquals(0L, low.getRemainingMillis());
+        // both jobs returned the carriage home
+        assertEquals(0L, simulator.x);
+        assertEquals(0L, simulator.y);
+        assertTrue(simulator.penUp);
+        scheduler.shutdown();
+    }
+
+    @Test
+    public void testResumeRestoresSettings() throws Exception {
+        PlotScheduler scheduler = new PlotScheduler(Collections.singletonList(ebb), PlotScheduler.Policy.PRIORITY);
+        scheduler.setTravelSpeed(20000);
+        PlotRecorder recorder = new PlotRecorder();
+        recorder.enableMotor(2, 0);
+        recorder.setLayer(3);
+        recorder.setNodeCount(1000);
+        PlotJob low = new PlotJob("low", strokes(recorder, 30), 0);
+        // the high priority job leaves the board in the step mode it powers up in
+        recorder = new PlotRecorder();
+        recorder.enableMotor(1, 1);
+        recorder.setLayer(0);
+        recorder.setNodeCount(0);
+        PlotJob high = new PlotJob("high", strokes(recorder, 3), 10);
+        scheduler.submit(low);
+        Thread.sleep(150);
+        assertEquals(2, simulator.microstepMode);
+        scheduler.submit(high);
+        // the low priority job may already have resumed by the time we see the high one finish
+        high.await();
+        low.await();
+        assertEquals(PlotJob.State.DONE, low.getState());
+        assertEquals(1, low.getPreemptions());
+        assertEquals(2, simulator.microstepMode);
+        assertEquals(3, simulator.layer);
+        assertEquals(1000L, simulator.nodeCount);
+        scheduler.shutdown();
+    }
+
+    @Test
+    public void testShortestFirst() throws Exception {
+        PlotScheduler scheduler = new PlotScheduler(Collections.singletonList(ebb), PlotScheduler.Policy.SHORTEST_FIRST);
+        scheduler.setPreemptive(false);
+        PlotJob first = new PlotJob("first", strokes(5), 0);
+        PlotJob longer = new PlotJob("long", strokes(10), 0);
+        PlotJob shorter = new PlotJob("short", strokes(2), 0);
+        assertTrue(longer.getEstimatedMillis() > shorter.getEstimatedMillis());
+        scheduler.submit(first);
+        Thread.sleep(50);
+        scheduler.submit(longer);
+        scheduler.submit(shorter);
+        scheduler.shutdown();
+        assertEquals(PlotJob.State.DONE, longer.getState());
+        assertTrue(shorter.getTurnaroundMillis() < longer.getTurnaroundMillis());
+        assertEquals(0, first.getPreemptions());
+        assertTrue(scheduler.getMeanTurnaroundMillis() > 0);
+    }
+}
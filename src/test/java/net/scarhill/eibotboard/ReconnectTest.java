@@ -0,0 +1,179 @@
+// Copyright (c) 2011 James Ancona. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package net.scarhill.eibotboard;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicReference;
+
+import net.scarhill.eibotboard.UbwException.ErrorCode;
+
+import org.junit.Test;
+
+
+public class ReconnectTest {
+    /**
+     * An {@link Ebb} on a simulator that plugs the board back in whenever it
+     * is looked for.
+     */
+    private static Ebb connect(final EbbSimulator simulator) throws IOException {
+        Socket socket = simulator.open();
+        return new Ebb(socket.getInputStream(), socket.getOutputStream()) {
+            @Override
+            protected boolean reopen() throws IOException {
+                Socket socket = simulator.open();
+                if (attach(socket.getInputStream(), socket.getOutputStream()))
+                    return true;
+                socket.close();
+                return false;
+            }
+        };
+    }
+
+    @Test
+    public void testWarmConnectSkipsReset() throws Exception {
+        EbbSimulator simulator = new EbbSimulator();
+        // the versions seen on a port are kept for the life of the JVM
+        String port = "simulated-" + System.identityHashCode(simulator);
+        try {
+            Socket socket = simulator.open();
+            Ebb ebb = new Ebb(port, socket.getInputStream(), socket.getOutputStream());
+            assertEquals(1, simulator.resets);
+            ebb.setLayer(5);
+            ebb.setNodeCount(1000);
+            ebb.close();
+
+            // the same board on the same port keeps its settings
+            socket = simulator.open();
+            ebb = new Ebb(port, socket.getInputStream(), socket.getOutputStream());
+            assertEquals(1, simulator.resets);
+            assertEquals(5, ebb.queryLayer());
+            assertEquals(1000L, ebb.queryNodeCount());
+            ebb.close();
+
+            // new firmware is reset
+            simulator.setVersion("EBBv13_and_above EB Firmware Version 2.5.0");
+            socket = simulator.open();
+            ebb = new Ebb(port, socket.getInputStream(), socket.getOutputStream());
+            assertEquals(2, simulator.resets);
+            assertEquals(0, ebb.queryLayer());
+            ebb.close();
+
+            // and so is a board connected without a port name
+            ebb = simulator.connect();
+            assertEquals(3, simulator.resets);
+            ebb.close();
+        } finally {
+            simulator.close();
+        }
+    }
+
+    @Test
+    public void testPlotCarriesOnAfterUnplug() throws Exception {
+        final EbbSimulator simulator = new EbbSimulator();
+        simulator.setTimeScale(1);
+        final Ebb ebb = connect(simulator);
+        try {
+            ebb.setReconnect(5000);
+            ebb.firmwareVersion();
+            ebb.configure(0, 0, 0, 0);
+            ebb.outputState(1, 2, 3);
+            ebb.enableMotor(3, 0);
+            ebb.servoModeConfigure(4, 13000);
+            ebb.setLayer(5);
+            ebb.setNodeCount(1000);
+            ebb.nodeCountIncrement();
+            ebb.setPenState(false, 10);
+            final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+            Thread job = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < 200; i++)
+                            ebb.stepperMotorMove(5, 1, 2);
+                    } catch (Throwable e) {
+                        failure.set(e);
+                    }
+                }
+            });
+            job.start();
+            while (simulator.moves < 50)
+                Thread.sleep(1);
+            simulator.unplug();
+            job.join(20000);
+            assertTrue(!job.isAlive());
+            if (failure.get() != null)
+                throw new AssertionError(failure.get());
+            assertTrue(!ebb.isReconnecting());
+
+            // every move was made once, with the settings back as they were
+            assertEquals(200L, simulator.moves);
+            assertEquals(200L, simulator.x);
+            assertEquals(400L, simulator.y);
+            assertEquals(3, simulator.microstepMode);
+            assertEquals(5, simulator.layer);
+            assertEquals(false, simulator.penUp);
+            assertEquals(1001L, simulator.nodeCount);
+            assertEquals(5, ebb.queryLayer());
+        } finally {
+            ebb.close();
+            simulator.close();
+        }
+    }
+
+    @Test
+    public void testOtherBoardIsNotTakenOver() throws Exception {
+        EbbSimulator simulator = new EbbSimulator();
+        Ebb ebb = connect(simulator);
+        try {
+            // the version is known from connecting, without asking for it
+            ebb.setReconnect(600);
+            simulator.setVersion("EBBv13_and_above EB Firmware Version 2.5.0");
+            simulator.unplug();
+            long started = System.currentTimeMillis();
+            try {
+                ebb.queryLayer();
+                fail();
+            } catch (UbwException e) {
+                assertEquals(ErrorCode.COMM_ERROR, e.getErrorCode());
+            }
+            assertTrue(System.currentTimeMillis() - started >= 500);
+        } finally {
+            ebb.close();
+            simulator.close();
+        }
+    }
+
+    @Test
+    public void testNoReconnect() throws Exception {
+        EbbSimulator simulator = new EbbSimulator();
+        Ebb ebb = connect(simulator);
+        try {
+            simulator.unplug();
+            try {
+                ebb.queryLayer();
+                fail();
+            } catch (UbwException e) {
+                assertEquals(ErrorCode.COMM_ERROR, e.getErrorCode());
+            }
+        } finally {
+            ebb.close();
+            simulator.close();
+        }
+    }
+}
@@ -0,0 +1,170 @@
+// Copyright (c) 2011 James Ancona. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package net.scarhill.eibotboard;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+
+public class SvgPathReaderTest {
+    /**
+     * Collects the points it is given, as {x, y, 0 for a move or 1 for a line}.
+     */
+    static class Points implements PathSink {
+        final List<double[]> points = new ArrayList<double[]>();
+        boolean ended;
+
+        @Override
+        public void moveTo(double x, double y) {
+            points.add(new double[] {x, y, 0});
+        }
+
+        @Override
+        public void lineTo(double x, double y) {
+            points.add(new double[] {x, y, 1});
+        }
+
+        @Override
+        public void end() {
+            ended = true;
+        }
+    }
+
+    @Test
+    public void testLinesAndRelativeCommands() throws IOException {
+        String svg = "<?xml version=\"1.0\"?>\n<!-- <path d=\"M 9 9\"/> -->\n"
+                + "<svg xmlns=\"http://www.w3.org/2000/svg\"><g id='a'>"
+                + "<path id=\"p\" d=\"M10,20 l5-5 h3 V0 z m1 1 2 2\" stroke='black'/></g>"
+                + "<rect x=\"1\" d=\"M 0 0\"/></svg>";
+        Points sink = new Points();
+        new SvgPathReader(new StringReader(svg), sink).read();
+        double[][] expected = {
+                {10, 20, 0}, {15, 15, 1}, {18, 15, 1}, {18, 0, 1}, {10, 20, 1}, {11, 21, 0}, {13, 23, 1}};
+        assertEquals(expected.length, sink.points.size());
+        for (int i = 0; i < expected.length; i++) {
+            for (int k = 0; k < 3; k++)
+                assertEquals("point " + i, expected[i][k], sink.points.get(i)[k], 1e-9);
+        }
+        assertTrue(sink.ended);
+    }
+
+    @Test
+    public void testEachPathStartsAtOrigin() throws IOException {
+        String svg = "<svg><path d=\"m 5,5 l 20,15\"/><path d=\"m 10,10 h 5\"/></svg>";
+        Points sink = new Points();
+        new SvgPathReader(new StringReader(svg), sink).read();
+        double[][] expected = {{5, 5, 0}, {25, 20, 1}, {10, 10, 0}, {15, 10, 1}};
+        assertEquals(expected.length, sink.points.size());
+        for (int i = 0; i < expected.length; i++) {
+            for (int k = 0; k < 3; k++)
+                assertEquals("point " + i, expected[i][k], sink.points.get(i)[k], 1e-9);
+        }
+    }
+
+    @Test
+    public void testCurvesStayWithinTolerance() throws IOException {
+        // a circle of radius 50 around (100, 100), as two arcs and as four cubic curves
+        double k = 50 * 0.5522847498;
+        String svg = "<path d=\"M150,100 A50,50 0 1,1 50,100 A50,50 0 1,1 150,100\"/>"
+                + "<path d='M150,100 C150," + (100 + k) + " " + (100 + k) + ",150 100,150"
+                + " S50," + (100 + k) + " 50,100 S" + (100 - k) + ",50 100,50 S150," + (100 - k) + " 150,100'/>";
+        Points sink = new Points();
+        SvgPathReader reader = new SvgPathReader(new StringReader(svg), sink);
+        reader.setTolerance(0.05);
+        reader.read();
+        assertTrue(sink.points.size() > 40);
+        for (double[] p : sink.points) {
+            double r = Math.hypot(p[0] - 100, p[1] - 100);
+            // the cubic approximation of a circle is itself off by 0.03%
+            assertEquals(50, r, 0.05);
+        }
+        // consecutive points must be close enough that the chords stay within tolerance too
+        for (int i = 1; i < sink.points.size(); i++) {
+            double[] a = sink.points.get(i - 1);
+            double[] b = sink.points.get(i);
+            double sagitta = 50 - Math.sqrt(2500 - Math.pow(Math.hypot(a[0] - b[0], a[1] - b[1]) / 2, 2));
+            assertTrue("sagitta " + sagitta, sagitta <= 0.07);
+        }
+    }
+
+    @Test
+    public void testFirstMoveBeforeFileIsRead() throws IOException {
+        // a path that would be a gigabyte long, generated as it is read
+        final long[] read = new long[1];
+        Reader endless = new Reader() {
+            final String head = "<svg><path d=\"M0,0";
+            final String segment = " l10,10";
+
+            @Override
+            public int read(char[] buf, int off, int len) {
+                for (int i = 0; i < len; i++, read[0]++) {
+                    long p = read[0];
+                    buf[off + i] = p < head.length() ? head.charAt((int) p)
+                            : segment.charAt((int) ((p - head.length()) % segment.length()));
+                }
+                return len;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        final RuntimeException stop = new RuntimeException();
+        final List<int[]> moves = new ArrayList<int[]>();
+        EbbCommand board = new DryRun() {
+            @Override
+            public void stepperMotorMove(int duration, int axis1, int axis2) {
+                super.stepperMotorMove(duration, axis1, axis2);
+                moves.add(new int[] {duration, axis1, axis2});
+                if (moves.size() == 3)
+                    throw stop;
+            }
+        };
+        StepEmitter emitter = new StepEmitter(board, 10);
+        emitter.setDrawSpeed(1000);
+        try {
+            new SvgPathReader(endless, emitter).read();
+        } catch (RuntimeException e) {
+            assertTrue(e == stop);
+        }
+        assertEquals(3, moves.size());
+        assertEquals(100, moves.get(0)[1]);
+        assertEquals(100, moves.get(0)[2]);
+        assertEquals(100, moves.get(0)[0]);
+        assertTrue(read[0] + " characters read", read[0] <= 16384);
+    }
+
+    @Test
+    public void testStepRoundingDoesNotDrift() throws IOException {
+        StringBuilder svg = new StringBuilder("<path d='M0,0");
+        for (int i = 0; i < 1000; i++)
+            svg.append(" l0.33,0.33");
+        svg.append("'/>");
+        DryRun board = new DryRun();
+        StepEmitter emitter = new StepEmitter(board, 1);
+        new SvgPathReader(new StringReader(svg.toString()), emitter).read();
+        assertEquals(330, board.getX());
+        assertEquals(330, board.getY());
+        assertTrue(board.queryPen());
+        assertEquals(2L, board.getPenMoveCount());
+    }
+}
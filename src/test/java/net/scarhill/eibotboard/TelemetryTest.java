@@ -0,0 +1,132 @@
+// Copyright (c) 2011 James Ancona. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package net.scarhill.eibotboard;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.scarhill.eibotboard.Telemetry.Channel;
+
+import org.junit.Test;
+
+
+public class TelemetryTest {
+    @Test
+    public void testSamplingDoesNotSlowMotion() throws Exception {
+        EbbSimulator simulator = new EbbSimulator();
+        simulator.setTimeScale(1);
+        Ebb ebb = simulator.connect();
+        try {
+            Telemetry telemetry = new Telemetry(1000);
+            telemetry.setInterval(Channel.CURRENT, 50);
+            telemetry.setInterval(Channel.NODE_COUNT, 100);
+            telemetry.setInterval(Channel.BUTTON, 200);
+            ebb.setTelemetry(telemetry);
+            long started = System.currentTimeMillis();
+            for (int i = 0; i < 100; i++) {
+                ebb.stepperMotorMove(20, 1, 1);
+                ebb.nodeCountIncrement();
+            }
+            long elapsed = System.currentTimeMillis() - started;
+            // the last move is still running, so the host is done a move early
+            assertTrue("took " + elapsed + " ms", elapsed < 99 * 20 + 150);
+            assertTrue(telemetry.size(Channel.CURRENT) + " samples", telemetry.size(Channel.CURRENT) >= 25);
+            assertTrue(telemetry.size(Channel.NODE_COUNT) >= 12);
+            assertTrue(telemetry.size(Channel.BUTTON) >= 5);
+            assertEquals(394L, telemetry.getValue(Channel.CURRENT, 0));
+            assertEquals(300L, telemetry.getValue2(Channel.CURRENT, 0));
+            for (int i = 1; i < telemetry.size(Channel.NODE_COUNT); i++) {
+                assertTrue(telemetry.getValue(Channel.NODE_COUNT, i) > telemetry.getValue(Channel.NODE_COUNT, i - 1));
+                assertTrue(telemetry.getTime(Channel.NODE_COUNT, i) >= telemetry.getTime(Channel.NODE_COUNT, i - 1) + 100);
+            }
+            assertEquals(100L, simulator.moves);
+
+            // with nothing queued, nothing is sampled
+            long samples = telemetry.getTotal(Channel.CURRENT);
+            Thread.sleep(100);
+            ebb.setLayer(1);
+            assertEquals(samples, telemetry.getTotal(Channel.CURRENT));
+        } finally {
+            ebb.close();
+            simulator.close();
+        }
+    }
+
+    @Test
+    public void testConcurrentSenders() throws Exception {
+        EbbSimulator simulator = new EbbSimulator();
+        simulator.setTimeScale(0);
+        final Ebb ebb = simulator.connect();
+        try {
+            final AtomicInteger inside = new AtomicInteger();
+            final AtomicInteger overlaps = new AtomicInteger();
+            Telemetry telemetry = new Telemetry(1000) {
+                @Override
+                public void sample(EbbCommand board, long leadMillis) {
+                    if (inside.incrementAndGet() > 1)
+                        overlaps.incrementAndGet();
+                    try {
+                        super.sample(board, leadMillis);
+                    } finally {
+                        inside.decrementAndGet();
+                    }
+                }
+            };
+            telemetry.setInterval(Channel.NODE_COUNT, 1);
+            ebb.setTelemetry(telemetry);
+            Thread[] senders = new Thread[4];
+            long started = System.currentTimeMillis();
+            for (int i = 0; i < senders.length; i++) {
+                senders[i] = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        for (int m = 0; m < 100; m++)
+                            ebb.stepperMotorMove(10, 1, 0);
+                    }
+                });
+                senders[i].start();
+            }
+            for (Thread t : senders)
+                t.join();
+            long elapsed = System.currentTimeMillis() - started;
+            // every sender's motion is counted, none lost to another's update
+            assertTrue(ebb.getQueuedMillis() + " ms queued", ebb.getQueuedMillis() >= 4000 - elapsed);
+            assertEquals(0, overlaps.get());
+            assertTrue(telemetry.getTotal(Channel.NODE_COUNT) > 0);
+        } finally {
+            ebb.close();
+            simulator.close();
+        }
+    }
+
+    @Test
+    public void testRingBuffer() throws Exception {
+        Telemetry telemetry = new Telemetry(4);
+        telemetry.setInterval(Channel.NODE_COUNT, 1);
+        DryRun board = new DryRun();
+        for (int i = 0; i < 10; i++) {
+            board.setNodeCount(i);
+            telemetry.sample(board, 1000);
+            Thread.sleep(3);
+        }
+        telemetry.sample(board, 5);
+        assertEquals(10L, telemetry.getTotal(Channel.NODE_COUNT));
+        assertEquals(4, telemetry.size(Channel.NODE_COUNT));
+        assertEquals(6L, telemetry.getValue(Channel.NODE_COUNT, 0));
+        assertEquals(9L, telemetry.getValue(Channel.NODE_COUNT, 3));
+        assertEquals(0, telemetry.size(Channel.CURRENT));
+    }
+}